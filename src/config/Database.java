@@ -0,0 +1,66 @@
+package config;
+
+/**
+ * The keys for configuration variables that relate to the database connection see
+ * {@link util.MongoHelper}.
+ *
+ * @author Stuart Clark
+ */
+public class Database {
+
+  private Database() {}
+
+  /**
+   * The maximum number of connections in the pool, 0 to use one per processor plus one per
+   * {@link Database#IO_THREADS}.
+   */
+  public static final String POOL_SIZE = "mongo.poolSize";
+
+  /**
+   * The time in milliseconds to wait for a connection to be established.
+   */
+  public static final String CONNECT_TIMEOUT = "mongo.connectTimeout";
+
+  /**
+   * The time in milliseconds to wait for a response on a socket, 0 to wait forever.
+   */
+  public static final String SOCKET_TIMEOUT = "mongo.socketTimeout";
+
+  /**
+   * The time in milliseconds a thread waits for a connection from the pool.
+   */
+  public static final String POOL_WAIT_TIMEOUT = "mongo.poolWaitTimeout";
+
+  /**
+   * The name of the {@link com.mongodb.WriteConcern} used by default e.g. ACKNOWLEDGED.
+   */
+  public static final String WRITE_CONCERN = "mongo.writeConcern";
+
+  /**
+   * The name of the {@link com.mongodb.WriteConcern} used by the phases that write a document per
+   * {@link model.ROI}.
+   */
+  public static final String BULK_WRITE_CONCERN = "mongo.bulkWriteConcern";
+
+  /**
+   * The number of documents fetched per round trip by large queries.
+   */
+  public static final String BATCH_SIZE = "mongo.batchSize";
+
+  /**
+   * The time in milliseconds before the server closes an idle cursor.
+   */
+  public static final String CURSOR_TIMEOUT = "mongo.cursorTimeout";
+
+  /**
+   * The number of threads that perform asynchronous database operations.
+   */
+  public static final String IO_THREADS = "mongo.ioThreads";
+
+  /**
+   * The number of asynchronous database operations that can wait before the submitting thread
+   * performs them itself.
+   */
+  public static final String IO_QUEUE_SIZE = "mongo.ioQueueSize";
+
+}
@@ -0,0 +1,29 @@
+package config;
+
+/**
+ * The keys for configuration variables that relate to {@link core.BatchInference}.
+ *
+ * @author Stuart Clark
+ */
+public class Inference {
+
+  private Inference() {}
+
+  /**
+   * The number of threads used to load, segment and compute the features for slices, 0 to use one
+   * per processor.
+   */
+  public static final String THREADS = "inference.threads";
+
+  /**
+   * The minimum number of instances classified at once (unless there are no more slices waiting).
+   */
+  public static final String BATCH_SIZE = "inference.batchSize";
+
+  /**
+   * The csv file that predictions should be written to, predictions are saved to the database if
+   * empty.
+   */
+  public static final String FILE = "inference.file";
+
+}
@@ -15,5 +15,7 @@ public class Misc {
   public static final String MATCH_EXAMPLES = "matchexamples";
   public static final String DARK_LIGHT_THRESH = "darklightthresh";
   public static final String CSV_DIR = "csvdir";
+  public static final String PROFILE_ALLOCATION = "profileallocation";
+  public static final String GT_CACHE = "gtcache";
 
 }
@@ -0,0 +1,27 @@
+package config;
+
+/**
+ * The keys for configuration variables that relate to {@link util.Metrics}.
+ *
+ * @author Stuart Clark
+ */
+public class Monitoring {
+
+  private Monitoring() {}
+
+  /**
+   * The file that the metrics are periodically written to, empty to not write them.
+   */
+  public static final String FILE = "metrics.file";
+
+  /**
+   * The time in milliseconds between writes of the metrics to {@link Monitoring#FILE}.
+   */
+  public static final String INTERVAL = "metrics.interval";
+
+  /**
+   * True if the metrics should be registered with JMX.
+   */
+  public static final String JMX = "metrics.jmx";
+
+}
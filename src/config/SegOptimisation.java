@@ -30,4 +30,40 @@ public class SegOptimisation {
    */
   public static final String LOAD_POPULATION = "segopt.loadPopulation";
 
+  /**
+   * The number of generations between checkpoints of the population.
+   */
+  public static final String CHECKPOINT_INTERVAL = "segopt.checkpointInterval";
+
+  /**
+   * True if candidates should be raced on subsets of the Mats, false if every candidate should be
+   * evaluated on all of the Mats.
+   */
+  public static final String RACING = "segopt.racing";
+
+  /**
+   * The fraction of the Mats used in the first batch of a race.
+   */
+  public static final String RACING_INITIAL = "segopt.racing.initial";
+
+  /**
+   * The probability that a race is abandoned wrongly.
+   */
+  public static final String RACING_DELTA = "segopt.racing.delta";
+
+  /**
+   * True if fitness evaluation should be distributed to worker processes, false otherwise.
+   */
+  public static final String DISTRIBUTED = "segopt.distributed";
+
+  /**
+   * The time in milliseconds after which a worker that has not sent a heartbeat is considered dead.
+   */
+  public static final String HEARTBEAT_TIMEOUT = "segopt.heartbeatTimeout";
+
+  /**
+   * The number of times a job can be claimed by workers before it is marked as failed.
+   */
+  public static final String MAX_ATTEMPTS = "segopt.maxAttempts";
+
 }
@@ -31,4 +31,9 @@ public class Segmentation {
   public static final String SURE_FG = "segmentation.surefg";
   public static final String SURE_BG_FRAC = "segmentation.surebgFraction";
 
+  /**
+   * The number of threads used to segment the slices of a stack, 0 to use one per processor.
+   */
+  public static final String THREADS = "segmentation.threads";
+
 }
@@ -0,0 +1,37 @@
+package config;
+
+/**
+ * The keys for configuration variables that relate to {@link core.DetectionServer}.
+ *
+ * @author Stuart Clark
+ */
+public class Server {
+
+  private Server() {}
+
+  /**
+   * The port on localhost that the server listens on.
+   */
+  public static final String PORT = "server.port";
+
+  /**
+   * The number of detection requests that are processed at the same time.
+   */
+  public static final String THREADS = "server.threads";
+
+  /**
+   * The number of detection requests that can wait to be processed before requests are rejected.
+   */
+  public static final String QUEUE_SIZE = "server.queueSize";
+
+  /**
+   * The memory in megabytes used to keep slice Mats between requests.
+   */
+  public static final String SLICE_CACHE_MB = "server.sliceCacheMb";
+
+  /**
+   * The maximum size in megabytes of an uploaded DICOM file.
+   */
+  public static final String MAX_UPLOAD_MB = "server.maxUploadMb";
+
+}
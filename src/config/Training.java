@@ -0,0 +1,46 @@
+package config;
+
+/**
+ * The keys for configuration variables that relate to training classifiers see
+ * {@link ml.TrainingHarness} and {@link ml.IncrementalTrainer}.
+ *
+ * @author Stuart Clark
+ */
+public class Training {
+
+  private Training() {}
+
+  /**
+   * The number of cross validation folds.
+   */
+  public static final String FOLDS = "training.folds";
+
+  /**
+   * The number of folds that are trained and evaluated at the same time, 0 to use one per
+   * processor.
+   */
+  public static final String THREADS = "training.threads";
+
+  /**
+   * The seed used to assign the rows to folds.
+   */
+  public static final String SEED = "training.seed";
+
+  /**
+   * The fraction of the maximum heap size that the training folds of classifiers that are not
+   * {@link weka.classifiers.UpdateableClassifier}s may use at once.
+   */
+  public static final String MEMORY_FRACTION = "training.memoryFraction";
+
+  /**
+   * The number of {@link model.ROI}s that can wait to be added to the classifier before publishers
+   * are blocked.
+   */
+  public static final String QUEUE_SIZE = "training.queueSize";
+
+  /**
+   * The number of updates between snapshots of the classifier.
+   */
+  public static final String SNAPSHOT_INTERVAL = "training.snapshotInterval";
+
+}
@@ -0,0 +1,516 @@
+package core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Query;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Inference;
+import ml.FeatureEngine;
+import ml.InstancesBuilder;
+import ml.ModelRegistry;
+import model.CTSlice;
+import model.CTStack;
+import model.Circle;
+import model.Prediction;
+import model.ROI;
+import util.ConfigHelper;
+import util.DataFilter;
+import util.LungsException;
+import util.MatUtils;
+import util.Metrics;
+import util.MongoHelper;
+import util.TimeUtils;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Used to screen many {@link CTStack}s for nodules without a {@link util.MatViewer}. Slices are
+ * loaded, segmented and have their features computed on a pool of threads, while the calling
+ * thread classifies the resulting instances in batches and writes a {@link Prediction} for every
+ * slice.
+ *
+ * @author Stuart Clark
+ */
+public class BatchInference {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchInference.class);
+  private static final long LOG_INTERVAL = 10000;
+
+  /**
+   * The number of segmented slices per thread that can wait to be classified before the threads
+   * block.
+   */
+  private static final int QUEUE_FACTOR = 4;
+
+  /**
+   * The name of the gauge for the number of segmented slices waiting to be classified see
+   * {@link Metrics}.
+   */
+  private static final String QUEUE_GAUGE = "inference.queue";
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private final Lungs lungs;
+  private final Classifier classifier;
+  private final FeatureEngine fEngine;
+  private final InstancesBuilder iBuilder;
+  private final Function<CTSlice, Mat> loader;
+  private final int threads;
+  private final int batchSize;
+
+  /**
+   * The structure of the instances that are classified.
+   */
+  private final Instances structure;
+
+  /**
+   * Loads and segments a slice and creates an {@link Instance} for each of its {@link ROI}s.
+   */
+  private final Function<CTSlice, Segmented> segmenter;
+
+  /**
+   * The total time in nanoseconds spent in each stage of the pipeline.
+   */
+  private final LongAdder loadTime;
+  private final LongAdder segmentTime;
+  private final LongAdder featureTime;
+  private final LongAdder classifyTime;
+
+  private final LongAdder slices;
+  private final LongAdder rois;
+  private final LongAdder nodules;
+  private final LongAdder failures;
+
+  /**
+   * @param lungs the {@link Lungs} used to segment the slices.
+   * @param classifier the classifier used to classify the {@link ROI}s. N.B. it is only ever used
+   *        by the thread that calls {@link BatchInference#run(List, Output)}.
+   * @param threads the number of threads used to load, segment and compute the features for slices.
+   * @param batchSize the minimum number of instances classified at once, unless there are no more
+   *        segmented slices waiting.
+   */
+  public BatchInference(Lungs lungs, Classifier classifier, int threads, int batchSize) {
+    this(lungs, classifier, threads, batchSize, MatUtils::getSliceMat);
+  }
+
+  /**
+   * @param loader used to load the {@link Mat} for a slice.
+   */
+  BatchInference(Lungs lungs, Classifier classifier, int threads, int batchSize,
+      Function<CTSlice, Mat> loader) {
+    this(lungs, classifier, threads, batchSize, loader, new InstancesBuilder(false));
+  }
+
+  private BatchInference(Lungs lungs, Classifier classifier, int threads, int batchSize,
+      Function<CTSlice, Mat> loader, InstancesBuilder iBuilder) {
+    this(lungs, classifier, new FeatureEngine(), iBuilder, loader, threads, batchSize,
+        iBuilder.getStructure(), null);
+  }
+
+  /**
+   * Used to test the batching and the {@link Prediction}s without segmenting any slices or
+   * computing their features.
+   *
+   * @param structure the structure of the instances created by the {@code segmenter}.
+   * @param segmenter creates the {@link Segmented} slice for each slice.
+   */
+  BatchInference(Classifier classifier, int threads, int batchSize, Instances structure,
+      Function<CTSlice, Segmented> segmenter) {
+    this(null, classifier, null, null, null, threads, batchSize, structure, segmenter);
+  }
+
+  /**
+   * @param threads the number of threads, 0 to use one per processor.
+   * @param segmenter creates the {@link Segmented} slice for each slice, {@code null} to load them
+   *        with the {@code loader} and segment them with the {@code lungs}.
+   */
+  private BatchInference(Lungs lungs, Classifier classifier, FeatureEngine fEngine,
+      InstancesBuilder iBuilder, Function<CTSlice, Mat> loader, int threads, int batchSize,
+      Instances structure, Function<CTSlice, Segmented> segmenter) {
+    this.lungs = lungs;
+    this.classifier = classifier;
+    this.fEngine = fEngine;
+    this.iBuilder = iBuilder;
+    this.loader = loader;
+    this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.batchSize = batchSize;
+    this.structure = structure;
+    this.segmenter = segmenter != null ? segmenter : this::segment;
+    this.loadTime = new LongAdder();
+    this.segmentTime = new LongAdder();
+    this.featureTime = new LongAdder();
+    this.classifyTime = new LongAdder();
+    this.slices = new LongAdder();
+    this.rois = new LongAdder();
+    this.nodules = new LongAdder();
+    this.failures = new LongAdder();
+  }
+
+  /**
+   * Predict the nodules in every slice of the {@code stacks}. Blocks until all of the slices have
+   * been processed.
+   *
+   * @param stacks
+   * @param output where the {@link Prediction}s are written.
+   * @throws LungsException if the classifier fails or the thread is interrupted.
+   */
+  public void run(List<CTStack> stacks, Output output) throws LungsException {
+    long start = System.currentTimeMillis();
+    List<CTSlice> all =
+        stacks.stream().flatMap(stack -> stack.getSlices().stream()).collect(Collectors.toList());
+    LOGGER.info("Running batch inference on " + stacks.size() + " stacks with " + all.size()
+        + " slices...");
+
+    // Segment the slices on the pool, blocking once the classifier falls behind
+    BlockingQueue<Segmented> queue = new ArrayBlockingQueue<>(threads * QUEUE_FACTOR);
+    Metrics.gauge(QUEUE_GAUGE, queue::size);
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    for (CTSlice slice : all) {
+      es.submit(() -> {
+        // A result is always queued, otherwise the calling thread would wait for it forever
+        Segmented segmented;
+        try {
+          segmented = segmenter.apply(slice);
+        } catch (RuntimeException | Error e) {
+          LOGGER.error("Failed to segment slice with id: " + slice.getId(), e);
+          segmented = new Segmented(slice);
+        }
+        queue.put(segmented);
+        return null;
+      });
+    }
+    es.shutdown();
+
+    // Periodically log the throughput
+    ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    });
+    progress.scheduleAtFixedRate(() -> logProgress(all.size(), start), LOG_INTERVAL, LOG_INTERVAL,
+        TimeUnit.MILLISECONDS);
+
+    try {
+      // Classify in batches, a batch is classified early if nothing else is ready
+      List<Segmented> batch = new ArrayList<>();
+      int batchInstances = 0;
+      for (int received = 0; received < all.size();) {
+        Segmented segmented = batch.isEmpty() ? queue.take() : queue.poll();
+        if (segmented == null) {
+          classify(batch, output);
+          batch.clear();
+          batchInstances = 0;
+          continue;
+        }
+
+        received++;
+        batch.add(segmented);
+        batchInstances += segmented.instances.size();
+        if (batchInstances >= batchSize) {
+          classify(batch, output);
+          batch.clear();
+          batchInstances = 0;
+        }
+      }
+      classify(batch, output);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LungsException("Interrupted while waiting for segmented slices", e);
+    } finally {
+      es.shutdownNow();
+      progress.shutdownNow();
+      Metrics.removeGauge(QUEUE_GAUGE);
+    }
+
+    logSummary(start);
+  }
+
+  /**
+   * Load and segment the {@code slice} and create an {@link Instance} for each of its {@link ROI}s.
+   *
+   * @param slice
+   * @return the segmented slice, failed if something went wrong.
+   */
+  private Segmented segment(CTSlice slice) {
+    try {
+      long time = System.nanoTime();
+      Mat mat = loader.apply(slice);
+      loadTime.add(System.nanoTime() - time);
+
+      time = System.nanoTime();
+      List<ROI> found = lungs.extractRois(mat);
+      segmentTime.add(System.nanoTime() - time);
+
+      time = System.nanoTime();
+      List<Instance> instances = new ArrayList<>(found.size());
+      for (ROI roi : found) {
+        fEngine.computeAllFeatures(roi, mat);
+        instances.add(iBuilder.createInstance(roi));
+      }
+      featureTime.add(System.nanoTime() - time);
+
+      mat.release();
+      return new Segmented(slice, found, instances);
+    } catch (Exception e) {
+      LOGGER.error("Failed to segment slice with id: " + slice.getId(), e);
+      return new Segmented(slice);
+    }
+  }
+
+  /**
+   * Classify all of the instances in the {@code batch} at once and write a {@link Prediction} for
+   * each of the slices that did not fail.
+   *
+   * @param batch
+   * @param output
+   * @throws LungsException
+   */
+  private void classify(List<Segmented> batch, Output output) throws LungsException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    long time = System.nanoTime();
+    int size = batch.stream().mapToInt(segmented -> segmented.instances.size()).sum();
+    Instances set = new Instances(structure, size);
+    batch.forEach(segmented -> set.addAll(segmented.instances));
+    int nodule = set.classAttribute().indexOfValue(ROI.Class.NODULE.name());
+
+    double[][] distributions;
+    try {
+      distributions = ModelRegistry.distributions(classifier, set);
+    } catch (Exception e) {
+      throw new LungsException("Failed to classify batch", e);
+    }
+
+    // Create the predictions
+    List<Prediction> predictions = new ArrayList<>(batch.size());
+    int i = 0;
+    for (Segmented segmented : batch) {
+      slices.increment();
+      if (segmented.failed) {
+        failures.increment();
+        continue;
+      }
+
+      Prediction prediction = new Prediction(segmented.slice, segmented.rois.size());
+      for (ROI roi : segmented.rois) {
+        double[] distribution = distributions[i++];
+        if (Utils.maxIndex(distribution) == nodule) {
+          prediction.addNodule(roi, distribution[nodule]);
+        }
+      }
+      predictions.add(prediction);
+
+      rois.add(prediction.getNumROIs());
+      nodules.add(prediction.getNumNodules());
+    }
+    classifyTime.add(System.nanoTime() - time);
+
+    output.write(predictions);
+  }
+
+  private void logProgress(int total, long start) {
+    double secs = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+    LOGGER.info(String.format("%d/%d slices processed, %.2f slices/sec, %.2f ROIs/sec",
+        slices.sum(), total, slices.sum() / secs, rois.sum() / secs));
+  }
+
+  private void logSummary(long start) {
+    double secs = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+    long processed = Math.max(slices.sum(), 1);
+    LOGGER.info("Finished batch inference in " + TimeUtils.elapsedTime(start));
+    LOGGER.info(String.format("%d slices (%d failed), %d ROIs and %d nodules", slices.sum(),
+        failures.sum(), rois.sum(), nodules.sum()));
+    LOGGER.info(String.format("Throughput: %.2f slices/sec, %.2f ROIs/sec", slices.sum() / secs,
+        rois.sum() / secs));
+    LOGGER.info(String.format(
+        "Mean time per slice: load %.2fms, segment %.2fms, features %.2fms, classify %.2fms",
+        loadTime.sum() / NANOS_PER_MILLI / processed, segmentTime.sum() / NANOS_PER_MILLI
+            / processed, featureTime.sum() / NANOS_PER_MILLI / processed, classifyTime.sum()
+            / NANOS_PER_MILLI / processed));
+  }
+
+  /**
+   * A slice that has been segmented and is waiting to be classified.
+   */
+  static class Segmented {
+
+    private final CTSlice slice;
+    private final List<ROI> rois;
+    private final List<Instance> instances;
+    private final boolean failed;
+
+    Segmented(CTSlice slice, List<ROI> rois, List<Instance> instances) {
+      this.slice = slice;
+      this.rois = rois;
+      this.instances = instances;
+      this.failed = false;
+    }
+
+    /**
+     * Creates a failed slice.
+     */
+    Segmented(CTSlice slice) {
+      this.slice = slice;
+      this.rois = new ArrayList<>();
+      this.instances = new ArrayList<>();
+      this.failed = true;
+    }
+
+  }
+
+  /**
+   * Where the {@link Prediction}s created by {@link BatchInference} are written.
+   */
+  public interface Output extends Closeable {
+
+    /**
+     * @param predictions
+     * @throws LungsException if the predictions could not be written.
+     */
+    void write(List<Prediction> predictions) throws LungsException;
+
+    /**
+     * @param ds
+     * @return an {@link Output} that saves the {@link Prediction}s to the database.
+     */
+    static Output mongo(Datastore ds) {
+      return new Output() {
+
+        @Override
+        public void write(List<Prediction> predictions) {
+          if (!predictions.isEmpty()) {
+            ds.save(predictions);
+          }
+        }
+
+        @Override
+        public void close() {
+          // Nothing to close
+        }
+      };
+    }
+
+    /**
+     * @param file
+     * @return an {@link Output} that writes a csv row to {@code file} for every nodule predicted,
+     *         and a row with empty nodule columns for every slice without one, so that like
+     *         {@link Output#mongo(Datastore)} every slice that was processed is recorded.
+     * @throws LungsException if {@code file} could not be opened.
+     */
+    static Output csv(File file) throws LungsException {
+      PrintWriter writer;
+      try {
+        writer = new PrintWriter(file, "UTF-8");
+      } catch (FileNotFoundException | UnsupportedEncodingException e) {
+        throw new LungsException("Failed to create print writer for " + file, e);
+      }
+      writer.println("seriesInstanceUID,imageSopUID,imageNumber,numROIs,x,y,radius,probability");
+
+      return new Output() {
+
+        @Override
+        public void write(List<Prediction> predictions) {
+          for (Prediction prediction : predictions) {
+            String slice = prediction.getSeriesInstanceUID() + "," + prediction.getImageSopUID()
+                + "," + prediction.getImageNumber() + "," + prediction.getNumROIs() + ",";
+            if (prediction.getNodules().isEmpty()) {
+              writer.println(slice + ",,,");
+            }
+            for (Prediction.Nodule nodule : prediction.getNodules()) {
+              Circle circle = nodule.getMinCircle();
+              writer.println(slice + circle.getCenter().x + "," + circle.getCenter().y + ","
+                  + circle.getRadius() + "," + nodule.getProbability());
+            }
+          }
+        }
+
+        @Override
+        public void close() {
+          writer.flush();
+          writer.close();
+        }
+      };
+    }
+
+  }
+
+  /**
+   * Screens the stacks with the series instance UIDs given as arguments, or all of the test stacks
+   * if there are none. Should be run with the following VM args
+   * -Djava.library.path=/usr/local/opt/opencv3/share/OpenCV/java -Xss515m -Xmx6g
+   *
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    Metrics.start();
+
+    // Find the stacks to screen
+    Datastore ds = MongoHelper.getDataStore();
+    Query<CTStack> query = ds.createQuery(CTStack.class);
+    if (args.length > 0) {
+      query.field("seriesInstanceUID").in(Arrays.asList(args));
+    } else {
+      DataFilter.get().test(query);
+    }
+    List<CTStack> stacks = query.asList();
+
+    // The registry's copy for this thread, which is the thread that runs the inference
+    LOGGER.info("Loading classifier");
+    Classifier classifier = Lungs.getModelRegistry().classifier();
+
+    BatchInference inference =
+        new BatchInference(Lungs.getInstance(), classifier, ConfigHelper.getInt(Inference.THREADS),
+            ConfigHelper.getInt(Inference.BATCH_SIZE));
+
+    // Write to the file if one has been given, otherwise replace the predictions in the database
+    String file = ConfigHelper.getString(Inference.FILE);
+    Output output;
+    if (file != null && !file.isEmpty()) {
+      output = Output.csv(new File(file));
+    } else {
+      List<String> uids =
+          stacks.stream().map(CTStack::getSeriesInstanceUID).collect(Collectors.toList());
+      ds.delete(ds.createQuery(Prediction.class).field("seriesInstanceUID").in(uids));
+      output = Output.mongo(ds);
+    }
+
+    try {
+      inference.run(stacks, output);
+    } finally {
+      try {
+        output.close();
+      } catch (IOException e) {
+        LOGGER.error("Failed to close output", e);
+      }
+    }
+  }
+
+}
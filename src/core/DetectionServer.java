@@ -0,0 +1,574 @@
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.bson.Document;
+import org.mongodb.morphia.Datastore;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import config.Server;
+import ij.plugin.DICOM;
+import ml.FeatureEngine;
+import ml.ModelRegistry;
+import model.CTSlice;
+import model.CTStack;
+import model.Circle;
+import model.ROI;
+import util.ConfigHelper;
+import util.LatencyHistogram;
+import util.LungsException;
+import util.MatUtils;
+import util.Metrics;
+import util.MongoHelper;
+
+/**
+ * A long running HTTP server on localhost that detects nodules, so that OpenCV, the database
+ * connection, the classifier and recently used slices stay loaded between scans. Provides the
+ * following endpoints:
+ *
+ * <ul>
+ * <li>{@code GET /detect?series=<seriesInstanceUID>} detects the nodules in a stack in the
+ * database.</li>
+ * <li>{@code POST /detect/dicom} detects the nodules in the DICOM file sent as the request
+ * body.</li>
+ * <li>{@code GET /stats} reports the latency percentiles for each endpoint and the queue
+ * length.</li>
+ * </ul>
+ *
+ * Detection requests are processed by a fixed number of threads, once {@code queueSize} requests
+ * are waiting any further requests are rejected with a 503. Uploads larger than {@code maxUpload}
+ * bytes are rejected with a 413. All responses are JSON.
+ *
+ * @author Stuart Clark
+ */
+public class DetectionServer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DetectionServer.class);
+
+  private static final String DETECT = "/detect";
+  private static final String DICOM_UPLOAD = "/detect/dicom";
+  private static final String STATS = "/stats";
+  private static final String SERIES_PARAM = "series";
+
+  private static final int OK = 200;
+  private static final int BAD_REQUEST = 400;
+  private static final int NOT_FOUND = 404;
+  private static final int METHOD_NOT_ALLOWED = 405;
+  private static final int PAYLOAD_TOO_LARGE = 413;
+  private static final int INTERNAL_ERROR = 500;
+  private static final int UNAVAILABLE = 503;
+
+  /**
+   * ROIs with a probability of being a nodule at least this high are reported as nodules.
+   */
+  private static final double NODULE_PROBABILITY = 0.5;
+
+  /**
+   * The name of the gauge for the number of requests waiting for a worker see {@link Metrics}.
+   */
+  private static final String QUEUE_GAUGE = "server.queue";
+
+  private static final long BYTES_PER_MB = 1024 * 1024;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final HttpServer server;
+  private final ThreadPoolExecutor workers;
+  private final Datastore ds;
+  private final Lungs lungs;
+  private final FeatureEngine fEngine;
+  private final ModelRegistry registry;
+
+  /**
+   * The maximum size in bytes of a DICOM upload.
+   */
+  private final long maxUpload;
+
+  /**
+   * The most recently used slice {@link Mat}s keyed by their image SOP UIDs.
+   */
+  private final SliceCache slices;
+
+  /**
+   * The latencies of each endpoint, measured from when the request was received to when the
+   * response was sent.
+   */
+  private final Map<String, LatencyHistogram> latencies;
+
+  /**
+   * The number of requests rejected because the queue was full.
+   */
+  private final LongAdder rejected;
+
+  /**
+   * @param port the port on localhost to listen on.
+   * @param threads the number of detection requests processed at the same time.
+   * @param queueSize the number of detection requests that can wait to be processed.
+   * @param cacheBytes the number of bytes of slice {@link Mat}s kept in memory.
+   * @param maxUpload the maximum size in bytes of a DICOM upload.
+   * @throws IOException if the server could not be created.
+   */
+  public DetectionServer(int port, int threads, int queueSize, long cacheBytes, long maxUpload)
+      throws IOException {
+    this.server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    this.workers =
+        new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize));
+    this.ds = MongoHelper.getDataStore();
+    this.lungs = Lungs.getInstance();
+    this.fEngine = new FeatureEngine();
+    this.registry = Lungs.getModelRegistry();
+    this.maxUpload = maxUpload;
+    this.slices = new SliceCache(cacheBytes);
+    this.latencies = new ConcurrentHashMap<>();
+    this.rejected = new LongAdder();
+    Metrics.gauge(QUEUE_GAUGE, () -> workers.getQueue().size());
+
+    server.createContext(DETECT, exchange -> {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        respond(exchange, METHOD_NOT_ALLOWED, error("Use GET"));
+        return;
+      }
+      submit(exchange, DETECT, () -> detectSeries(param(exchange, SERIES_PARAM)));
+    });
+    server.createContext(DICOM_UPLOAD, exchange -> {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        respond(exchange, METHOD_NOT_ALLOWED, error("Use POST"));
+        return;
+      }
+      // Reject uploads that are too large before they are queued
+      String length = exchange.getRequestHeaders().getFirst("Content-Length");
+      if (length != null) {
+        long bytes;
+        try {
+          bytes = Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+          respond(exchange, BAD_REQUEST, error("Invalid Content-Length " + length));
+          return;
+        }
+        if (bytes > maxUpload) {
+          respond(exchange, PAYLOAD_TOO_LARGE, error(tooLarge()));
+          return;
+        }
+      }
+      submit(exchange, DICOM_UPLOAD, () -> detectDicom(exchange.getRequestBody()));
+    });
+    server.createContext(STATS, exchange -> {
+      long start = System.nanoTime();
+      respond(exchange, OK, stats());
+      latency(STATS).recordSince(start);
+    });
+  }
+
+  /**
+   * Load the classifier and start listening for requests.
+   *
+   * @throws LungsException if the classifier could not be loaded.
+   */
+  public void start() throws LungsException {
+    LOGGER.info("Warming up with model version " + registry.version());
+    listen();
+  }
+
+  /**
+   * Start listening for requests without loading the classifier.
+   */
+  void listen() {
+    server.start();
+    LOGGER.info("Listening on http://localhost:" + getPort());
+  }
+
+  /**
+   * @return the port that the server is listening on.
+   */
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stop listening for requests and abandon any that are queued.
+   */
+  public void stop() {
+    server.stop(0);
+    workers.shutdownNow();
+    Metrics.removeGauge(QUEUE_GAUGE);
+    LOGGER.info("Stopped");
+    latencies.forEach((endpoint, latency) -> LOGGER.info(endpoint + ": " + latency.summary()));
+  }
+
+  /**
+   * Queue the {@code task} for the request, responding with a 503 if the queue is full.
+   *
+   * @param exchange
+   * @param endpoint the endpoint that the request was made to.
+   * @param task creates the body of the response.
+   */
+  private void submit(HttpExchange exchange, String endpoint, Callable<Document> task) {
+    long start = System.nanoTime();
+    try {
+      workers.execute(() -> {
+        int status;
+        Document body;
+        try {
+          body = task.call();
+          status = OK;
+        } catch (RequestException e) {
+          body = error(e.getMessage());
+          status = e.status;
+        } catch (Exception e) {
+          LOGGER.error("Failed to process request to " + endpoint, e);
+          body = error(e.toString());
+          status = INTERNAL_ERROR;
+        }
+        respond(exchange, status, body);
+        latency(endpoint).recordSince(start);
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      respond(exchange, UNAVAILABLE, error("Too many requests are queued"));
+    }
+  }
+
+  /**
+   * @param uid the series instance UID of the stack.
+   * @return the nodules detected in each slice of the stack.
+   * @throws RequestException if the stack does not exist.
+   * @throws LungsException if the {@link ROI}s could not be scored.
+   */
+  private Document detectSeries(String uid) throws RequestException, LungsException {
+    CTStack stack = ds.createQuery(CTStack.class).field("seriesInstanceUID").equal(uid).get();
+    if (stack == null) {
+      throw new RequestException(NOT_FOUND, "No stack with series instance UID " + uid);
+    }
+
+    // Segment and score every slice in the stack
+    List<CTSlice> stackSlices = stack.getSlices();
+    List<Mat> mats = stackSlices.parallelStream().map(this::sliceMat).collect(Collectors.toList());
+    List<List<ROI>> allROIs = lungs.extractRois(mats);
+    ModelRegistry.Scores scores = score(mats, allROIs);
+
+    // Report the slices that contain nodules
+    List<Document> results = new ArrayList<>();
+    int numROIs = 0;
+    int offset = 0;
+    for (int i = 0; i < stackSlices.size(); i++) {
+      List<ROI> rois = allROIs.get(i);
+      List<Document> nodules = nodules(rois, scores.getScores(), offset);
+      if (!nodules.isEmpty()) {
+        CTSlice slice = stackSlices.get(i);
+        results.add(new Document("imageSopUID", slice.getImageSopUID())
+            .append("imageNumber", slice.getImageNumber()).append("numROIs", rois.size())
+            .append("nodules", nodules));
+      }
+      numROIs += rois.size();
+      offset += rois.size();
+    }
+
+    return new Document("seriesInstanceUID", uid)
+        .append("modelVersion", (int) scores.getVersion()).append("numSlices", stackSlices.size())
+        .append("numROIs", numROIs).append("slices", results);
+  }
+
+  /**
+   * @param body the body of the request, which should be a DICOM file.
+   * @return the nodules detected in the DICOM image.
+   * @throws RequestException if the body is too large or is not a DICOM file.
+   * @throws IOException if the body could not be read.
+   * @throws LungsException if the {@link ROI}s could not be scored.
+   */
+  private Document detectDicom(InputStream body) throws RequestException, IOException,
+      LungsException {
+    // ImageJ can only read DICOM files from disk
+    Path file = Files.createTempFile("detect", ".dcm");
+    Mat mat;
+    try {
+      copy(body, file);
+      DICOM dicom = new DICOM();
+      dicom.open(file.toString());
+      if (dicom.getWidth() == 0 || dicom.getHeight() == 0) {
+        throw new RequestException(BAD_REQUEST, "The request body is not a DICOM image");
+      }
+      mat = MatUtils.fromDICOM(dicom);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+
+    List<Mat> mats = Collections.singletonList(mat);
+    List<List<ROI>> allROIs = Collections.singletonList(lungs.extractRois(mat));
+    ModelRegistry.Scores scores = score(mats, allROIs);
+    List<ROI> rois = allROIs.get(0);
+
+    return new Document("modelVersion", (int) scores.getVersion()).append("numROIs", rois.size())
+        .append("nodules", nodules(rois, scores.getScores(), 0));
+  }
+
+  /**
+   * Copy the {@code body} to the {@code file}, stopping once more than {@link #maxUpload} bytes
+   * have been read as the Content-Length header may be missing.
+   *
+   * @param body
+   * @param file
+   * @throws RequestException if the body is too large.
+   * @throws IOException
+   */
+  private void copy(InputStream body, Path file) throws RequestException, IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long total = 0;
+    try (OutputStream out = Files.newOutputStream(file)) {
+      int read;
+      while ((read = body.read(buffer)) != -1) {
+        total += read;
+        if (total > maxUpload) {
+          throw new RequestException(PAYLOAD_TOO_LARGE, tooLarge());
+        }
+        out.write(buffer, 0, read);
+      }
+    }
+  }
+
+  private String tooLarge() {
+    return "The request body is larger than " + maxUpload + " bytes";
+  }
+
+  /**
+   * Compute the features for all of the {@code allROIs} and score them in one batch.
+   *
+   * @param mats
+   * @param allROIs the {@link ROI}s found in each of the {@code mats}.
+   * @return the probability that each ROI is a nodule, in the order of the {@code allROIs}, and the
+   *         version of the model that scored them.
+   * @throws LungsException
+   */
+  private ModelRegistry.Scores score(List<Mat> mats, List<List<ROI>> allROIs)
+      throws LungsException {
+    IntStream.range(0, mats.size()).parallel().forEach(i -> {
+      Mat mat = mats.get(i);
+      allROIs.get(i).forEach(roi -> fEngine.computeAllFeatures(roi, mat));
+    });
+
+    List<ROI> all = allROIs.stream().flatMap(List::stream).collect(Collectors.toList());
+    return registry.score(all);
+  }
+
+  /**
+   * @param rois
+   * @param scores
+   * @param offset the index in {@code scores} of the score for the first of the {@code rois}.
+   * @return the {@code rois} that are nodules.
+   */
+  private static List<Document> nodules(List<ROI> rois, double[] scores, int offset) {
+    List<Document> nodules = new ArrayList<>();
+    for (int i = 0; i < rois.size(); i++) {
+      double score = scores[offset + i];
+      if (score >= NODULE_PROBABILITY) {
+        Circle circle = rois.get(i).getMinCircle();
+        nodules.add(new Document("x", circle.getCenter().x).append("y", circle.getCenter().y)
+            .append("radius", circle.getRadius()).append("probability", score));
+      }
+    }
+    return nodules;
+  }
+
+  /**
+   * @param slice
+   * @return the {@link Mat} for the slice, from the cache if it has been used recently.
+   */
+  private Mat sliceMat(CTSlice slice) {
+    Mat mat = slices.get(slice.getImageSopUID());
+    if (mat == null) {
+      mat = MatUtils.getSliceMat(slice);
+      slices.put(slice.getImageSopUID(), mat);
+    }
+    return mat;
+  }
+
+  private Document stats() {
+    Document endpoints = new Document();
+    latencies.forEach((endpoint, latency) -> endpoints.append(endpoint,
+        new Document("count", (int) latency.count())
+            .append("meanMs", LatencyHistogram.millis((long) latency.mean()))
+            .append("p50Ms", LatencyHistogram.millis(latency.percentile(50)))
+            .append("p90Ms", LatencyHistogram.millis(latency.percentile(90)))
+            .append("p99Ms", LatencyHistogram.millis(latency.percentile(99)))
+            .append("maxMs", LatencyHistogram.millis(latency.max()))));
+
+    return new Document("endpoints", endpoints).append("active", workers.getActiveCount())
+        .append("queued", workers.getQueue().size()).append("rejected", rejected.intValue())
+        .append("cachedSlices", slices.size())
+        .append("cachedMb", (double) slices.bytes() / BYTES_PER_MB);
+  }
+
+  private LatencyHistogram latency(String endpoint) {
+    return latencies.computeIfAbsent(endpoint, e -> new LatencyHistogram());
+  }
+
+  /**
+   * @param exchange
+   * @param name
+   * @return the value of the query parameter {@code name}.
+   * @throws RequestException if the parameter is missing.
+   */
+  private static String param(HttpExchange exchange, String name) throws RequestException {
+    String query = exchange.getRequestURI().getRawQuery();
+    Map<String, String> params = new HashMap<>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        String[] split = pair.split("=", 2);
+        if (split.length == 2) {
+          params.put(decode(split[0]), decode(split[1]));
+        }
+      }
+    }
+
+    String value = params.get(name);
+    if (value == null || value.isEmpty()) {
+      throw new RequestException(BAD_REQUEST, "Missing query parameter " + name);
+    }
+    return value;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Document error(String message) {
+    return new Document("error", message);
+  }
+
+  private static void respond(HttpExchange exchange, int status, Document body) {
+    byte[] bytes = body.toJson().getBytes(StandardCharsets.UTF_8);
+    try {
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    } catch (IOException e) {
+      LOGGER.error("Failed to send response", e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Thrown when a request can not be processed, the response has the status {@code status}.
+   */
+  private static class RequestException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    RequestException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+
+  }
+
+  /**
+   * The most recently used slice {@link Mat}s, evicting the least recently used once the pixel data
+   * of the {@link Mat}s is larger than {@code maxBytes}. A {@link Mat} larger than
+   * {@code maxBytes} is not kept.
+   */
+  private static class SliceCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Mat> mats;
+    private long bytes;
+
+    SliceCache(long maxBytes) {
+      this.maxBytes = maxBytes;
+      this.mats = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    synchronized Mat get(String uid) {
+      return mats.get(uid);
+    }
+
+    synchronized void put(String uid, Mat mat) {
+      long size = bytes(mat);
+      if (size > maxBytes) {
+        return;
+      }
+      Mat old = mats.put(uid, mat);
+      bytes += size - (old == null ? 0 : bytes(old));
+
+      // The new Mat is the most recently used so is evicted last
+      Iterator<Mat> eldest = mats.values().iterator();
+      while (bytes > maxBytes) {
+        bytes -= bytes(eldest.next());
+        eldest.remove();
+      }
+    }
+
+    synchronized int size() {
+      return mats.size();
+    }
+
+    synchronized long bytes() {
+      return bytes;
+    }
+
+    private static long bytes(Mat mat) {
+      return mat.total() * mat.elemSize();
+    }
+
+  }
+
+  /**
+   * Should be run with the following VM args
+   * -Djava.library.path=/usr/local/opt/opencv3/share/OpenCV/java -Xss515m -Xmx6g
+   *
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    Metrics.start();
+
+    DetectionServer server =
+        new DetectionServer(ConfigHelper.getInt(Server.PORT), ConfigHelper.getInt(Server.THREADS),
+            ConfigHelper.getInt(Server.QUEUE_SIZE),
+            ConfigHelper.getInt(Server.SLICE_CACHE_MB) * BYTES_PER_MB,
+            ConfigHelper.getInt(Server.MAX_UPLOAD_MB) * BYTES_PER_MB);
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    server.start();
+  }
+
+}
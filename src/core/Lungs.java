@@ -11,12 +11,12 @@ import static org.opencv.imgproc.Imgproc.MARKER_TILTED_CROSS;
 import static util.ConfigHelper.getDouble;
 import static util.ConfigHelper.getInt;
 import static util.MatUtils.getStackMats;
-import static util.MatUtils.put;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Collectors;
 
 import org.mongodb.morphia.Datastore;
@@ -24,30 +24,36 @@ import org.mongodb.morphia.query.Query;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.istack.internal.Nullable;
+
 import config.Annotation;
 import config.Segmentation;
 import ml.FeatureEngine;
-import ml.InstancesBuilder;
+import ml.ModelRegistry;
 import ml.feature.MinCircle;
 import model.CTSlice;
 import model.CTStack;
 import model.GroundTruth;
+import model.GroundTruthRepository;
 import model.KeyPoint;
 import model.ROI;
+import util.BinaryMask;
 import util.ColourBGR;
 import util.ConfigHelper;
 import util.DataFilter;
+import util.ImageSource;
 import util.LungsException;
 import util.MatUtils;
 import util.MatViewer;
+import util.Metrics;
 import util.MongoHelper;
 import util.PointUtils;
+import util.Renderer;
 import vision.BilateralFilter;
 import vision.BlobDetector;
 import vision.BlobToROI;
@@ -55,9 +61,6 @@ import vision.ConvexHull;
 import vision.ROIExtractor;
 import weka.classifiers.Classifier;
 import weka.classifiers.bayes.NaiveBayesUpdateable;
-import weka.core.Attribute;
-import weka.core.Instance;
-import weka.core.Instances;
 import weka.core.SerializationHelper;
 
 public class Lungs {
@@ -94,62 +97,118 @@ public class Lungs {
    */
   private static final String MODEL_FILE = "classifier.model";
 
-  private Datastore ds;
+  /*
+   * Timers for each of the stages of segmentation see Metrics
+   */
+  private static final Metrics.Timer FILTER_TIMER = Metrics.timer("segmentation.filter");
+  private static final Metrics.Timer WATERSHED_TIMER = Metrics.timer("segmentation.watershed");
+  private static final Metrics.Timer CAVITIES_TIMER = Metrics.timer("segmentation.cavities");
+  private static final Metrics.Timer BLOBS_TIMER = Metrics.timer("segmentation.blobDetection");
+  private static final Metrics.Timer BLOB_TO_ROI_TIMER = Metrics.timer("segmentation.blobToROI");
+
+  /**
+   * The pool used to segment the slices of stacks by instances that have not been given their own,
+   * created when it is first needed.
+   */
+  private static ForkJoinPool sharedPool;
+
+  private final Datastore ds;
   private final ROIExtractor extractor;
   private final BilateralFilter filter;
-  private BlobDetector blobDetector;
-  private BlobToROI blobToROI;
-  private boolean juxtapleural;
-  private boolean solitary;
+  private final BlobDetector blobDetector;
+  private final BlobToROI blobToROI;
+
+  /**
+   * True if juxtapleural ROIs should be extracted.
+   */
+  private final boolean juxtapleural;
+
+  /**
+   * True if solitary ROIs should be extracted.
+   */
+  private final boolean solitary;
 
+  /**
+   * The pool used to segment the slices of stacks, {@code null} if the {@code sharedPool} should be
+   * used.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates an instance that extracts both solitary and juxtapleural ROIs using the shared pool.
+   *
+   * @param filter
+   * @param extractor
+   * @param blobDetector
+   */
   public Lungs(BilateralFilter filter, ROIExtractor extractor, BlobDetector blobDetector) {
+    this(filter, extractor, blobDetector, true, true, null);
+  }
+
+  /**
+   * N.B. instances are immutable and can be shared between threads, the scratch {@link Mat}s used
+   * during segmentation are held by a {@link LungsContext} for each thread.
+   *
+   * @param filter
+   * @param extractor
+   * @param blobDetector
+   * @param juxtapleural true if juxtapleural ROIs should be extracted.
+   * @param solitary true if solitary ROIs should be extracted.
+   * @param pool the pool that should be used to segment the slices of stacks see
+   *        {@link Lungs#extractRois(List)}, {@code null} to use a pool shared by all instances.
+   */
+  public Lungs(BilateralFilter filter, ROIExtractor extractor, BlobDetector blobDetector,
+      boolean juxtapleural, boolean solitary, @Nullable ForkJoinPool pool) {
     this.ds = MongoHelper.getDataStore();
     this.filter = filter;
     this.extractor = extractor;
     this.blobDetector = blobDetector;
     this.blobToROI = new BlobToROI();
-    this.juxtapleural = true;
-    this.solitary = true;
-  }
-
-  public void setJuxtapleural(boolean juxtapleural) {
     this.juxtapleural = juxtapleural;
-  }
-
-  public void setSolitary(boolean solitary) {
     this.solitary = solitary;
+    this.pool = pool;
   }
 
   /**
-   * Annotated {@code bgrs} with the ground truth.
+   * Fetch the ground truth for each of the {@code slices} on the calling thread, so that the
+   * annotations can be rendered by the {@link MatViewer}'s background thread without querying the
+   * database.
    *
-   * @param slices the slices to annotations.
-   * @param bgrs 3 channel {@link Mat}s for the {@code slices} that will be annotated.
+   * @param slices
+   * @return the {@link GroundTruth}s for each of the {@code slices}, in slice order.
    */
-  private void groundTruth(List<CTSlice> slices, List<Mat> bgrs) {
-    for (int i = 0; i < slices.size(); i++) {
-      CTSlice slice = slices.get(i);
-      Mat bgr = bgrs.get(i);
-      annotate(bgr, slice);
-    }
+  private static List<List<GroundTruth>> groundTruths(List<CTSlice> slices) {
+    GroundTruthRepository repository = GroundTruthRepository.get();
+    return slices.stream()
+        .map(slice -> repository.get(slice.getSeriesInstanceUID(), slice.getImageSopUID()))
+        .collect(Collectors.toList());
   }
 
   /**
-   * Annotate {@code bgr} with the appropriate annotations for the {@code slice} if they are allowed
-   * by the system configuration (see ./conf/application.conf).
+   * @param mats the grey scale {@link Mat}s to render.
+   * @param paint annotates the 3 channel copy of the {@link Mat} at the given index.
+   * @return a source that renders an annotated 3 channel copy of each of the {@code mats} when it
+   *         is displayed, rather than holding them all in memory.
+   */
+  private static ImageSource render(List<Mat> mats, ObjIntConsumer<Mat> paint) {
+    return ImageSource.of(mats.size(), i -> {
+      Mat bgr = Renderer.toBGR(mats.get(i));
+      paint.accept(bgr, i);
+      return bgr;
+    });
+  }
+
+  /**
+   * Annotate {@code bgr} with the appropriate annotations for each of the {@code groundTruths} see
+   * {@link Lungs#annotate(Mat, GroundTruth)}.
    *
    * @param bgr
-   * @param slice
+   * @param groundTruths
    */
-  private void annotate(Mat bgr, CTSlice slice) {
-    List<GroundTruth> groundTruths =
-        ds.createQuery(GroundTruth.class).field("imageSopUID").equal(slice.getImageSopUID())
-            .asList();
-
+  private void annotate(Mat bgr, List<GroundTruth> groundTruths) {
     for (GroundTruth gt : groundTruths) {
       annotate(bgr, gt);
     }
-
   }
 
   /**
@@ -164,9 +223,7 @@ public class Lungs {
 
     // Annotate big nodules
     if (type == BIG_NODULE && ConfigHelper.getBoolean(Annotation.BIG_NODULE)) {
-      for (Point point : gt.getEdgePoints()) {
-        put(bgr, point, ColourBGR.RED);
-      }
+      Renderer.paint(bgr, gt.getEdgePoints(), ColourBGR.RED);
 
       // Annotate small nodules
     } else if (type == SMALL_NODULE && ConfigHelper.getBoolean(Annotation.SMALL_NODULE)) {
@@ -182,15 +239,69 @@ public class Lungs {
   }
 
   /**
-   * // TODO complete this javadoc when method had been decided upon.
+   * Extract the ROIs for each of the slices in the {@code stack} see
+   * {@link Lungs#extractRois(List)}.
+   *
+   * @param stack
+   * @return the ROIs for each slice in the {@code stack}, in slice order.
+   */
+  public List<List<ROI>> extractRois(CTStack stack) {
+    return extractRois(getStackMats(stack));
+  }
+
+  /**
+   * Extract the ROIs for each of the {@code mats}. The {@code mats} are segmented in parallel using
+   * the pool given in the constructor or a pool shared by all instances with the number of threads
+   * given by {@link Segmentation#THREADS}.
+   *
+   * @param mats the {@link Mat}s to segment.
+   * @return the ROIs for each of the {@code mats}, in the same order as {@code mats}.
+   */
+  public List<List<ROI>> extractRois(List<Mat> mats) {
+    ForkJoinPool pool = this.pool != null ? this.pool : sharedPool();
+
+    // Running the stream from inside the pool means its tasks are executed by the pool. The
+    // encounter order of mats is maintained by the collector.
+    return pool.submit(
+        () -> mats.parallelStream().map(this::extractRois).collect(Collectors.toList())).join();
+  }
+
+  /**
+   * @return the pool shared by instances that have not been given their own.
+   */
+  private static synchronized ForkJoinPool sharedPool() {
+    if (sharedPool == null) {
+      int threads = getInt(Segmentation.THREADS);
+      sharedPool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+    }
+    return sharedPool;
+  }
+
+  /**
+   * Extract the {@link ROI}s that could be nodules from a slice. The slice is filtered and
+   * segmented with the watershed algorithm, then only the regions inside the lung cavities (the
+   * holes in the largest region) are kept as solitary {@link ROI}s. Juxtapleural {@link ROI}s are
+   * added to, or replace, these depending on the flags given in the constructor. Each {@link ROI}
+   * has its region and contour set, and those whose minimum enclosing circle is too small or too
+   * large to be a nodule are removed.
    *
-   * @param original the {@link Mat}s to segment.
-   * @return the segmented {@link Mat}s.
+   * N.B. the intermediate {@link Mat}s are scratch {@link Mat}s reused by the calling thread see
+   * {@link LungsContext}, the {@code original} is never modified.
+   *
+   * @param original the slice to segment.
+   * @return the candidate nodule {@link ROI}s in the slice.
    */
   @SuppressWarnings("ConstantConditions")
   public List<ROI> extractRois(Mat original) {
+    LungsContext context = LungsContext.get();
+
     // Filter and extract ROIs
-    List<ROI> rois = extractor.extractROIs(filter.filter(original));
+    long start = FILTER_TIMER.start();
+    Mat filtered = filter.filter(original, context.filtered(original));
+    FILTER_TIMER.stop(start);
+    start = WATERSHED_TIMER.start();
+    List<ROI> rois = extractor.extractROIs(filtered);
+    WATERSHED_TIMER.stop(start);
 
     // Get largest ROI
     ROI largest = null;
@@ -204,31 +315,31 @@ public class Lungs {
     }
 
     // Create a mat with just the largest ROI in
-    Mat largestMat = MatUtils.similarMat(original, true);
-    for (Point point : largest.getRegion()) {
-      put(largestMat, point, FOREGROUND);
-    }
+    start = CAVITIES_TIMER.start();
+    Mat largestMat = context.largest(original);
+    Renderer.paint(largestMat, largest.getRegion(), new double[] {FOREGROUND});
 
-    // Create a set of all the points that lie withing the lungs cavities. Also includes some other
+    // Create a mask of all the points that lie withing the lungs cavities. Also includes some other
     // small cavities in the CT slice (such as the spinal cord cavity) which we are not actually
     // interested in but should make little difference to the final result.
-    List<MatOfPoint> cavities = internalContours(largestMat);
-    Mat cavityMat = MatUtils.similarMat(original, true);
+    List<MatOfPoint> cavities = internalContours(largestMat, context);
+    Mat cavityMat = context.cavities(original);
     Imgproc.fillPoly(cavityMat, cavities, new Scalar(FOREGROUND));
-    Set<Point> validPoints = maskPoints(cavityMat);
+    BinaryMask validPoints = new BinaryMask(cavityMat);
 
     // Filter out ROIs that do not occur inside the cavities. The remaining ROIs should be solitary
     // nodules and false positives.
     rois =
         rois.stream().filter(roi -> validPoints.containsAll(roi.getRegion()))
             .collect(Collectors.toList());
+    CAVITIES_TIMER.stop(start);
 
     // Extract the Juxtapleural ROIs
     if (juxtapleural) {
       if (solitary) {
-        rois.addAll(extractJuxtapleural(largestMat, cavities, original));
+        rois.addAll(extractJuxtapleural(largestMat, cavities, original, context));
       } else {
-        rois = extractJuxtapleural(largestMat, cavities, original);
+        rois = extractJuxtapleural(largestMat, cavities, original, context);
       }
     }
 
@@ -254,10 +365,10 @@ public class Lungs {
 
   }
 
-  private List<MatOfPoint> internalContours(Mat largestRoi) {
+  private List<MatOfPoint> internalContours(Mat largestRoi, LungsContext context) {
     // Create list of internal contours for the ROI
     List<MatOfPoint> contours = new ArrayList<>();
-    Imgproc.findContours(largestRoi, contours, new Mat(), Imgproc.RETR_TREE,
+    Imgproc.findContours(largestRoi, contours, context.hierarchy(), Imgproc.RETR_TREE,
         Imgproc.CHAIN_APPROX_NONE);
     // Removed external contour
     contours.remove(0);
@@ -265,51 +376,49 @@ public class Lungs {
     return contours;
   }
 
-  private Set<Point> maskPoints(Mat mask) {
-    Mat labels = MatUtils.similarMat(mask, false);
-    Imgproc.connectedComponents(mask, labels);
-    Set<Point> maskPoints = new HashSet<>();
-    ROIExtractor.labelsToROIs(labels).forEach(roi -> maskPoints.addAll(roi.getRegion()));
-    return maskPoints;
-  }
-
-  private List<ROI> extractJuxtapleural(Mat largestRoi, List<MatOfPoint> contours, Mat original) {
+  private List<ROI> extractJuxtapleural(Mat largestRoi, List<MatOfPoint> contours, Mat original,
+      LungsContext context) {
     // Create a list of convex hulls for the contours
     List<MatOfPoint> hulls = new ArrayList<>();
     contours.forEach(contour -> hulls.add(ConvexHull.findHull(contour)));
 
     // Create a set of points that could possibly contain juxtapleural nodules
-    Mat hullsMat = MatUtils.similarMat(original, true);
+    Mat hullsMat = context.hulls(original);
     // Draw the convex hulls
     Imgproc.fillPoly(hullsMat, hulls, new Scalar(FOREGROUND));
     // Invert the mat to create the invertedHulls
-    Mat invertedHulls = MatUtils.similarMat(hullsMat, false);
+    Mat invertedHulls = context.invertedHulls(original);
     Core.bitwise_not(hullsMat, invertedHulls);
     // Subtract the invertedHulls from the largestROI to create the mask
-    Mat mask = MatUtils.similarMat(invertedHulls, false);
+    Mat mask = context.juxtapleuralMask(original);
     Core.subtract(largestRoi, invertedHulls, mask);
-    Set<Point> validPoints = maskPoints(mask);
+    BinaryMask validPoints = new BinaryMask(mask);
 
     // Get the key points using the blob detector
+    long start = BLOBS_TIMER.start();
     List<KeyPoint> keyPoints = blobDetector.detect(original, validPoints);
-    Mat blobMat = MatUtils.similarMat(original, true);
+    BLOBS_TIMER.stop(start);
+    Mat blobMat = context.blobs(original);
     for (KeyPoint keyPoint : keyPoints) {
       Imgproc.circle(blobMat, keyPoint.getPoint(), (int) keyPoint.getRadius(), new Scalar(
           FOREGROUND), -1);
     }
 
     // Extract all of the blobs
-    Mat labels = MatUtils.similarMat(blobMat, false);
+    Mat labels = context.labels(blobMat);
     Imgproc.connectedComponents(blobMat, labels);
     List<ROI> blobs = ROIExtractor.labelsToROIs(labels);
 
     // Convert each of the blobs into to a more precise roi
     List<ROI> rois = new ArrayList<>(blobs.size());
     for (ROI blob : blobs) {
+      start = BLOB_TO_ROI_TIMER.start();
       try {
         rois.add(blobToROI.blobToROI(blob, original));
       } catch (LungsException e) {
         LOGGER.error("Failed to threshold blob", e);
+      } finally {
+        BLOB_TO_ROI_TIMER.stop(start);
       }
     }
 
@@ -320,9 +429,7 @@ public class Lungs {
   }
 
   public static void paintROI(Mat bgr, ROI roi, double[] colour) {
-    for (Point point : roi.getRegion()) {
-      put(bgr, point, colour);
-    }
+    Renderer.paint(bgr, roi.getRegion(), colour);
   }
 
   public void assistance(CTStack stack) throws Exception {
@@ -330,168 +437,148 @@ public class Lungs {
 
     // Load classifier
     LOGGER.info("Loading classifier");
-    Classifier classifier = readClassifier();
+    ModelRegistry registry = getModelRegistry();
 
     // Create nodule predictions
     LOGGER.info("Creating nodule predictions for stack");
     FeatureEngine fEngine = new FeatureEngine();
-    InstancesBuilder iBuilder = new InstancesBuilder(false);
-    List<Mat> annotated =
-        mats.stream().map(Mat::clone).map(MatUtils::grey2BGR).collect(Collectors.toList());
+    List<List<ROI>> allROIs = extractRois(mats);
+    List<List<ROI.Class>> allClassifications = new ArrayList<>(mats.size());
     // For each slice
     for (int i = 0; i < mats.size(); i++) {
       Mat mat = mats.get(i);
-      Mat predict = annotated.get(i);
 
-      // Create Instances
-      List<ROI> rois = extractRois(mat);
+      // Classify the ROIs
+      List<ROI> rois = allROIs.get(i);
       rois.parallelStream().forEach(roi -> fEngine.computeAllFeatures(roi, mat));
-      Instances instances = iBuilder.createSet("Slice Instances", rois.size());
-      iBuilder.addInstances(instances, rois);
-      Attribute classAttribute = instances.classAttribute();
-
-      // Create predictions
-      for (int j = 0; j < instances.size(); j++) {
-
-        // Classify the instance
-        Instance instance = instances.get(j);
-        double v = classifier.classifyInstance(instance);
-        ROI.Class classification = ROI.Class.valueOf(classAttribute.value((int) v));
-
-        // If nodule then annotate green else annotate orange
-        if (classification.equals(ROI.Class.NODULE)) {
-          LOGGER.info("Nodule Found!");
-          paintROI(predict, rois.get(j), ColourBGR.GREEN);
-        } else {
-          paintROI(predict, rois.get(j), ColourBGR.ORANGE);
-        }
-
+      List<ROI.Class> classifications = registry.classify(rois);
+      if (classifications.contains(ROI.Class.NODULE)) {
+        LOGGER.info("Nodule Found!");
       }
+      allClassifications.add(classifications);
 
       LOGGER.info((i + 1) + "/" + mats.size() + " slices processed");
     }
 
-    // Add ground truth
-    groundTruth(stack.getSlices(), annotated);
+    // The predictions and ground truth are painted when the slice is displayed
+    List<List<GroundTruth>> groundTruths = groundTruths(stack.getSlices());
+    ImageSource annotated = render(mats, (bgr, i) -> {
+      List<ROI> rois = allROIs.get(i);
+      List<ROI.Class> classifications = allClassifications.get(i);
+      for (int j = 0; j < rois.size(); j++) {
+        // If nodule then annotate green else annotate orange
+        boolean nodule = classifications.get(j).equals(ROI.Class.NODULE);
+        paintROI(bgr, rois.get(j), nodule ? ColourBGR.GREEN : ColourBGR.ORANGE);
+      }
+      annotate(bgr, groundTruths.get(i));
+    });
 
     // Display Mats
-    new MatViewer(mats, annotated).display();
+    new MatViewer(ImageSource.of(mats), annotated).display();
   }
 
   public void gtVsNoduleRoi(CTStack stack) {
     LOGGER.info("Loading Mats...");
     List<Mat> original = getStackMats(stack);
-    List<Mat> annotated = MatUtils.grey2BGR(original);
 
     List<CTSlice> slices = stack.getSlices();
 
-    LOGGER.info("Drawing detected nodules ...");
+    LOGGER.info("Fetching detected nodules ...");
     int numSlice = slices.size();
+    List<List<ROI>> nodules = new ArrayList<>(numSlice);
     for (int i = 0; i < numSlice; i++) {
       CTSlice slice = slices.get(i);
 
       Query<ROI> rois =
           ds.createQuery(ROI.class).field("imageSopUID").equal(slice.getImageSopUID())
               .field("classification").equal(ROI.Class.NODULE);
-      for (ROI roi : rois) {
-        paintROI(annotated.get(i), roi, ColourBGR.GREEN);
-      }
+      nodules.add(rois.asList());
 
       LOGGER.info(i + 1 + "/" + numSlice + " processed");
     }
 
-    LOGGER.info("Annotating ground truth");
-    groundTruth(slices, annotated);
+    LOGGER.info("Fetching ground truth");
+    List<List<GroundTruth>> groundTruths = groundTruths(slices);
+
+    // The nodules and ground truth are painted when the slice is displayed
+    ImageSource annotated = render(original, (bgr, i) -> {
+      for (ROI roi : nodules.get(i)) {
+        paintROI(bgr, roi, ColourBGR.GREEN);
+      }
+      annotate(bgr, groundTruths.get(i));
+    });
 
     LOGGER.info("Preparing to display Mats...");
-    new MatViewer(original, annotated).display();
+    new MatViewer(ImageSource.of(original), annotated).display();
   }
 
   public void annotatedSegmented(CTStack stack) {
     LOGGER.info("Loading Mats...");
     List<Mat> original = getStackMats(stack);
 
-    // Create bgr copies that can be annotated
-    LOGGER.info("Creating BGR Mats for annotations...");
-    List<Mat> annotated =
-        original.parallelStream().map(MatUtils::grey2BGR).collect(Collectors.toList());
-
-    // Paint ROIs to annotated Mats
-    LOGGER.info("Painting Mats with ROIs...");
-    for (int i = 0; i < original.size(); i++) {
-      Mat orig = original.get(i);
-      Mat anno = annotated.get(i);
-      for (ROI roi : extractRois(orig)) {
-        paintROI(anno, roi, ColourBGR.GREEN);
-      }
-      LOGGER.info(i + 1 + "/" + original.size() + " have had ROIs painted on");
-    }
+    LOGGER.info("Extracting ROIs...");
+    List<List<ROI>> allROIs = extractRois(original);
+    List<List<GroundTruth>> groundTruths = groundTruths(stack.getSlices());
 
-    // Paint ground truth to annotated Mats
-    LOGGER.info("Creating BGR Mats for ground truth...");
-    List<Mat> groundTruth =
-        original.parallelStream().map(MatUtils::grey2BGR).collect(Collectors.toList());
-    LOGGER.info("Painting Mats with ground truth...");
-    groundTruth(stack.getSlices(), groundTruth);
+    // The annotated Mats are rendered when they are displayed
+    ImageSource annotated = render(original, (bgr, i) -> {
+      for (ROI roi : allROIs.get(i)) {
+        paintROI(bgr, roi, ColourBGR.GREEN);
+      }
+    });
+    ImageSource groundTruth = render(original, (bgr, i) -> annotate(bgr, groundTruths.get(i)));
 
     // Display annotated and original Mats
-    LOGGER.info("Preparing to display...");
-    MatViewer matViewer = new MatViewer(groundTruth, annotated);
     LOGGER.info("Displaying Mats now");
-    matViewer.display();
+    new MatViewer(groundTruth, annotated).display();
   }
 
   public void roiContours(CTStack stack) {
     LOGGER.info("Loading Mats...");
     List<Mat> original = getStackMats(stack);
 
-    LOGGER.info("Drawing contours on Mats...");
-    List<Mat> annotated = new ArrayList<>();
-    for (int i = 0; i < original.size(); i++) {
-      LOGGER.info(i + "/" + original.size() + " processed");
-
-      Mat mat = original.get(i);
+    LOGGER.info("Extracting ROIs...");
+    List<List<ROI>> allROIs = extractRois(original);
 
-      Mat bgr = MatUtils.grey2BGR(mat);
-      for (ROI roi : extractRois(mat)) {
+    // The contours are drawn when the slice is displayed
+    ImageSource annotated = render(original, (bgr, i) -> {
+      for (ROI roi : allROIs.get(i)) {
         paintROI(bgr, roi, ColourBGR.GREEN);
-        for (Point point : roi.getContour()) {
-          put(bgr, point, ColourBGR.RED);
-        }
+        Renderer.paint(bgr, roi.getContour(), ColourBGR.RED);
       }
-
-      annotated.add(bgr);
-    }
+    });
 
     LOGGER.info("Preparing to display Mats...");
-    new MatViewer(annotated).display();
+    new MatViewer(annotated, annotated).display();
   }
 
   public void blobs(CTStack ctStack) {
     List<Mat> mats = MatUtils.getStackMats(ctStack);
-    List<Mat> annotated = mats.stream().map(MatUtils::grey2BGR).collect(Collectors.toList());
 
     int numMats = mats.size();
+    List<List<KeyPoint>> allKeyPoints = new ArrayList<>(numMats);
 
     for (int i = 0; i < numMats; i++) {
       LOGGER.info(i + "/" + numMats + " processed");
 
-      Mat mat = mats.get(i);
-      Mat anno = annotated.get(i);
-
-      List<KeyPoint> keyPoints = blobDetector.detect(mat, null);
+      List<KeyPoint> keyPoints = blobDetector.detect(mats.get(i), null);
       LOGGER.info(keyPoints.size() + " key points");
-      for (KeyPoint keyPoint : keyPoints) {
-        Imgproc.circle(anno, keyPoint.getPoint(), (int) keyPoint.getRadius(), new Scalar(
+      allKeyPoints.add(keyPoints);
+    }
+
+    // The key points are drawn when the slice is displayed
+    ImageSource annotated = render(mats, (bgr, i) -> {
+      for (KeyPoint keyPoint : allKeyPoints.get(i)) {
+        Imgproc.circle(bgr, keyPoint.getPoint(), (int) keyPoint.getRadius(), new Scalar(
             ColourBGR.RED), 1);
       }
+    });
 
-    }
-
-    new MatViewer(mats, annotated).display();
+    new MatViewer(ImageSource.of(mats), annotated).display();
   }
 
   public void logStats() {
+    LOGGER.info(blobDetector.getBlobsDetected() + " blobs detected");
     LOGGER.info("blobThresholder success rate was " + blobToROI.successRate() * 100 + "%");
   }
 
@@ -516,13 +603,32 @@ public class Lungs {
   }
 
   public static void writeClassifier(Classifier classifier) throws Exception {
-    SerializationHelper.write(MODEL_FILE, classifier);
+    ModelRegistry.write(classifier, getModelFile());
+  }
+
+  /**
+   * @return the file that classifiers are written to and read from.
+   */
+  public static File getModelFile() {
+    return new File(MODEL_FILE);
   }
 
+  /**
+   * @return a new copy of the classifier read from the model file, which belongs to the caller. Use
+   *         {@link Lungs#getModelRegistry()} to share the classifier between calls.
+   * @throws Exception
+   */
   public static Classifier readClassifier() throws Exception {
     return (Classifier) SerializationHelper.read(MODEL_FILE);
   }
 
+  /**
+   * @return the {@link ModelRegistry} for the file that classifiers are written to.
+   */
+  public static ModelRegistry getModelRegistry() {
+    return ModelRegistry.get(MODEL_FILE);
+  }
+
   /**
    * Should be run with the following VM args
    * -Djava.library.path=/usr/local/opt/opencv3/share/OpenCV/java -Xss515m -Xmx6g
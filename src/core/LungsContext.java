@@ -0,0 +1,193 @@
+package core;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Holds the scratch {@link Mat}s used by a thread while it segments slices using {@link Lungs} and
+ * the {@link vision.ROIExtractor}, so that they can be reused from one slice to the next rather
+ * than being allocated for every slice.
+ *
+ * Each thread has its own context see {@link LungsContext#get()}, which means that a single
+ * {@link Lungs} instance can be shared between threads. N.B. the {@link Mat}s returned are
+ * overwritten when the next slice is segmented on the same thread.
+ *
+ * @author Stuart Clark
+ */
+public class LungsContext {
+
+  private static final ThreadLocal<LungsContext> LOCAL = ThreadLocal.withInitial(LungsContext::new);
+
+  private final Mat filtered;
+  private final Mat largest;
+  private final Mat hierarchy;
+  private final Mat cavities;
+  private final Mat hulls;
+  private final Mat invertedHulls;
+  private final Mat juxtapleuralMask;
+  private final Mat blobs;
+  private final Mat labels;
+  private final Mat foreground;
+  private final Mat background;
+  private final Mat unknown;
+  private final Mat markers;
+  private final Mat watershedInput;
+
+  private LungsContext() {
+    this.filtered = new Mat();
+    this.largest = new Mat();
+    this.hierarchy = new Mat();
+    this.cavities = new Mat();
+    this.hulls = new Mat();
+    this.invertedHulls = new Mat();
+    this.juxtapleuralMask = new Mat();
+    this.blobs = new Mat();
+    this.labels = new Mat();
+    this.foreground = new Mat();
+    this.background = new Mat();
+    this.unknown = new Mat();
+    this.markers = new Mat();
+    this.watershedInput = new Mat();
+  }
+
+  /**
+   * @return the context for the current thread.
+   */
+  public static LungsContext get() {
+    return LOCAL.get();
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the filtered slice.
+   */
+  public Mat filtered(Mat original) {
+    return reuse(filtered, original, false);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a zeroed {@link Mat} for the largest ROI in the slice.
+   */
+  public Mat largest(Mat original) {
+    return reuse(largest, original, true);
+  }
+
+  /**
+   * @return a {@link Mat} for the contour hierarchy output by
+   *         {@link org.opencv.imgproc.Imgproc#findContours}.
+   */
+  public Mat hierarchy() {
+    return hierarchy;
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a zeroed {@link Mat} for the lung cavities mask.
+   */
+  public Mat cavities(Mat original) {
+    return reuse(cavities, original, true);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a zeroed {@link Mat} for the convex hulls of the lung cavities.
+   */
+  public Mat hulls(Mat original) {
+    return reuse(hulls, original, true);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the inverted convex hulls of the lung cavities.
+   */
+  public Mat invertedHulls(Mat original) {
+    return reuse(invertedHulls, original, false);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the mask of the area that juxtapleural nodules can be found in.
+   */
+  public Mat juxtapleuralMask(Mat original) {
+    return reuse(juxtapleuralMask, original, false);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a zeroed {@link Mat} for the blobs found by the {@link vision.BlobDetector}.
+   */
+  public Mat blobs(Mat original) {
+    return reuse(blobs, original, true);
+  }
+
+  /**
+   * @param mask the mask that is going to be labelled.
+   * @return a {@link Mat} for the labels output by
+   *         {@link org.opencv.imgproc.Imgproc#connectedComponents(Mat, Mat)}.
+   */
+  public Mat labels(Mat mask) {
+    labels.create(mask.rows(), mask.cols(), CvType.CV_32S);
+    return labels;
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the sure foreground found by the {@link vision.ROIExtractor}.
+   */
+  public Mat foreground(Mat original) {
+    return reuse(foreground, original, false);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the sure background found by the {@link vision.ROIExtractor}.
+   */
+  public Mat background(Mat original) {
+    return reuse(background, original, false);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the unknown region found by the {@link vision.ROIExtractor}.
+   */
+  public Mat unknown(Mat original) {
+    return reuse(unknown, original, false);
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a {@link Mat} for the watershed markers used by the {@link vision.ROIExtractor}, kept
+   *         separate from {@link LungsContext#labels(Mat)} as both are used for the same slice.
+   */
+  public Mat markers(Mat original) {
+    markers.create(original.rows(), original.cols(), CvType.CV_32S);
+    return markers;
+  }
+
+  /**
+   * @param original the slice being segmented.
+   * @return a BGR {@link Mat} for the input to the watershed algorithm.
+   */
+  public Mat watershedInput(Mat original) {
+    watershedInput.create(original.rows(), original.cols(), CvType.CV_8UC3);
+    return watershedInput;
+  }
+
+  /**
+   * @param scratch
+   * @param like
+   * @param zeroed true if every element of {@code scratch} should be set to 0.
+   * @return {@code scratch} with the same size and type as {@code like}, it is only reallocated if
+   *         the size or type has changed.
+   */
+  private static Mat reuse(Mat scratch, Mat like, boolean zeroed) {
+    scratch.create(like.rows(), like.cols(), like.type());
+    if (zeroed) {
+      scratch.setTo(new Scalar(0));
+    }
+    return scratch;
+  }
+
+}
@@ -13,6 +13,8 @@ import org.opencv.core.Core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import util.Metrics;
+
 /**
  * Used to import and aggregate all of the data and perform any pre-computation required for the
  * system to be run.
@@ -30,6 +32,7 @@ public class DataPipeline {
   public static void main(String[] args) throws ExecutionException, InterruptedException {
     LOGGER.info("Running DataPipeLine");
     System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    Metrics.start();
     long start = System.currentTimeMillis();
 
     ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
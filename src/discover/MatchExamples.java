@@ -9,7 +9,6 @@ import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.query.FindOptions;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +22,7 @@ import util.ColourBGR;
 import util.ConfigHelper;
 import util.MatUtils;
 import util.MongoHelper;
+import util.Renderer;
 
 /**
  * Used to create images that show examples of ROIs that have been matched to nodules with different
@@ -70,15 +70,13 @@ public class MatchExamples {
         GroundTruth gt = roi.getGroundTruth();
         CTSlice slice =
             ds.createQuery(CTSlice.class).field("imageSopUID").equal(gt.getImageSopUID()).get();
-        Mat mat = MatUtils.grey2BGR(MatUtils.getSliceMat(slice));
+        Mat mat = Renderer.toBGR(MatUtils.getSliceMat(slice));
 
         // Paint the ROI
         Lungs.paintROI(mat, roi, ColourBGR.GREEN);
 
         // Paint the GroundTruth
-        for (Point point : gt.getEdgePoints()) {
-          MatUtils.put(mat, point, ColourBGR.RED);
-        }
+        Renderer.paint(mat, gt.getEdgePoints(), ColourBGR.RED);
 
         // Write mat to file
         Imgcodecs.imwrite(scoreDir + "/" + i + ".bmp", mat);
@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import model.ROI;
+import model.ROIQueries;
 import util.LungsException;
 
 /**
@@ -37,7 +38,7 @@ public class MatchScores extends CsvWriter {
 
     // Find all the ROIs that have a non null matchScore
     LOGGER.info("Finding all the ROIs that have a non null matchScore...");
-    Query<ROI> query = ds.createQuery(ROI.class).field("matchScore").notEqual(null);
+    Query<ROI> query = ROIQueries.matchScores(ds);
     long numROI = query.count();
 
     // Iterate over the ROIs
@@ -3,17 +3,13 @@ package discover;
 import static model.GroundTruth.Type.BIG_NODULE;
 import static model.Histogram.POS_VALS_8BIT;
 import static util.MatUtils.getSliceMat;
-import static util.MatUtils.grey2BGR;
-import static util.MatUtils.put;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
@@ -38,6 +34,7 @@ import util.LungsException;
 import util.MatUtils;
 import util.MongoHelper;
 import util.MultiMap;
+import util.Renderer;
 
 /**
  * Used collect statics and view examples of nodules that fail to be detected by
@@ -128,12 +125,12 @@ public class MissedNodules {
 
     // Create a future for each of the slices that needs annotating
     int numSlice = uidToGt.size();
-    List<Future> futures = new ArrayList<>(numSlice);
+    FutureMonitor monitor = new FutureMonitor(es);
     int counter = 0;
     for (String sopUID : uidToGt.keySet()) {
 
       // Submit runnable for slice (use Callable to avoid try catch blocks)
-      futures.add(es.submit((Callable<Void>) () -> {
+      monitor.submit((Callable<Void>) () -> {
         // Get Mats for the slice
           CTSlice slice = ds.createQuery(CTSlice.class).field(IMAGE_SOP_UID).equal(sopUID).get();
           Mat mat = getSliceMat(slice);
@@ -162,17 +159,15 @@ public class MissedNodules {
 
             // Create an annotated image and save it
             if (images) {
-              Mat bgr = grey2BGR(mat);
-              for (Point point : gt.getEdgePoints()) {
-                put(bgr, point, ColourBGR.RED);
-              }
+              Mat bgr = Renderer.toBGR(mat);
+              Renderer.paint(bgr, gt.getEdgePoints(), ColourBGR.RED);
               Imgcodecs.imwrite(dir + "/" + id.getAndIncrement() + "-" + sopUID + ".bmp", bgr);
             }
 
           }
 
           return null;
-        }));
+        });
 
       // Logging
       if (++counter % LOG_INTERVAL == 0) {
@@ -182,7 +177,6 @@ public class MissedNodules {
     }
 
     // Monitor futures
-    FutureMonitor monitor = new FutureMonitor(futures);
     monitor.setLogString("slices processed");
     monitor.monitor();
 
@@ -1,27 +1,39 @@
 package ml;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-import org.apache.commons.collections4.IterableUtils;
 import org.mongodb.morphia.Datastore;
-import org.mongodb.morphia.query.Query;
+import org.mongodb.morphia.query.FindOptions;
+import org.mongodb.morphia.query.MorphiaIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import core.Lungs;
 import model.ROI;
+import model.ROIQueries;
 import util.MongoHelper;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.UpdateableClassifier;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.converters.ArffLoader.ArffReader;
-import weka.core.converters.ArffSaver;
-import weka.core.converters.Saver;
 
 /**
  * Used to generate the required arff files to be used with a {@link weka.classifiers.Classifier}.
@@ -34,10 +46,27 @@ public class ArffGenerator {
 
   private static final int LOG_INTERVAL = 5000;
 
+  /**
+   * The number of {@link ROI}s read from the cursor at a time and handed to a worker.
+   */
+  private static final int CHUNK_SIZE = 1000;
+
+  /**
+   * The size of the buffers in characters used when writing the arff files.
+   */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The number of test instances scored at a time by the {@link StreamingEvaluator}.
+   */
+  private static final int EVAL_BATCH_SIZE = 1000;
+
   public static final String TRAIN_FILE = "train.arff";
   public static final String TEST_FILE = "test.arff";
-  private static final String CLASS = "classification";
-  private static final String SET = "set";
+  public static final String TRAIN_STORE = "train.features";
+  public static final String TEST_STORE = "test.features";
+  private static final String TRAIN_NAME = "Training Set";
+  private static final String TEST_NAME = "Testing Set";
 
   private final Datastore ds;
   private final InstancesBuilder builder;
@@ -51,21 +80,17 @@ public class ArffGenerator {
     LOGGER.info("Running ArffGenerator...");
 
     // Create the arff files
-    createTrainFile();
-    createTestFile();
+    createFiles();
 
     // Load trainingData
-    BufferedReader reader = new BufferedReader(new FileReader(TRAIN_FILE));
-    ArffReader arff = new ArffReader(reader, 0);
-    Instances trainData = arff.getStructure();
-    trainData.setClassIndex(trainData.numAttributes() - 1);
+    FeatureStore trainStore = FeatureStore.open(new File(TRAIN_STORE));
+    Instances trainData = trainStore.structure(TRAIN_NAME);
 
-    // Incrementally build classifier
+    // Incrementally build classifier, oversampling the nodules
     LOGGER.info("Building the classifier...");
     Classifier classifier = Lungs.newClassifier();
     classifier.buildClassifier(trainData);
-    Instance instance;
-    while ((instance = arff.readInstance(trainData)) != null) {
+    for (Instance instance : trainStore.instances(trainData, trainStore.balanced())) {
       ((UpdateableClassifier) classifier).updateClassifier(instance);
     }
     LOGGER.info("Finished building classifier");
@@ -74,136 +99,232 @@ public class ArffGenerator {
     LOGGER.info("Writing classifier to file...");
     Lungs.writeClassifier(classifier);
 
-    // Load testData
+    // Score testData in parallel batches
     LOGGER.info("Testing the classifier...");
-    reader = new BufferedReader(new FileReader(TEST_FILE));
-    arff = new ArffReader(reader, 0);
-    Instances testData = arff.getStructure();
-    testData.setClassIndex(testData.numAttributes() - 1);
-
-    // Incrementally classify each of the instances in testData
-    Evaluation eval = new Evaluation(testData);
-    Instance inst;
-    while ((inst = arff.readInstance(testData)) != null) {
-      eval.evaluationForSingleInstance(classifier.distributionForInstance(inst), inst, true);
-    }
-
-    // Evaluate classifier and print some statistics
-    eval.evaluateModel(classifier, testData);
+    FeatureStore testStore = FeatureStore.open(new File(TEST_STORE));
+    Instances testData = testStore.structure(TEST_NAME);
+    StreamingEvaluator evaluator =
+        new StreamingEvaluator(classifier, Runtime.getRuntime().availableProcessors(),
+            EVAL_BATCH_SIZE);
+    StreamingEvaluator.Result result =
+        evaluator.evaluate(testData, testStore.instances(testData, testStore.all()));
+
+    // Print some statistics
+    Evaluation eval = result.getEvaluation();
     LOGGER.info(eval.toSummaryString("\nResults\n======\n", false));
     LOGGER.info(eval.toClassDetailsString("\n=== Detailed Accuracy By Class ===\n"));
     LOGGER.info(eval.toMatrixString("\n=== Confusion Matrix ===\n"));
+    LOGGER.info("\n" + result);
     LOGGER.info("ArffGenerator finished running");
   }
 
-  private void createTrainFile() throws IOException {
-    createFile("Training Set", TRAIN_FILE, ROI.Set.TRAIN, true);
-  }
-
-  private void createTestFile() throws IOException {
-    createFile("Testing Set", TEST_FILE, ROI.Set.TEST, false);
-  }
-
   /**
-   * Used to create arff files for the training and testing sets. (Also creates an arff file that
-   * contains all the {@link Instances} from both sets).
+   * Create the arff files and {@link FeatureStore}s for the training and testing sets in the
+   * working directory, from a single cursor that only retrieves the fields needed to create
+   * {@link Instance}s see {@link ROIQueries#features(Datastore)}.
    *
-   * @param file the name of the arff file to create
-   * @param name the name to give the {@link Instances} saved to the file.
-   * @param set the set you would like to create i.e {@link ROI.Set#TRAIN} or {@link ROI.Set#TEST}.
-   * @param oversample true if nodules should be oversampled so that there are the same number of
-   *        nodules and non-nodules
+   * @throws IOException if the files could not be written.
    */
-  private void createFile(String name, String file, ROI.Set set, boolean oversample)
-      throws IOException {
-    LOGGER.info("Creating " + name + "...");
-
-    // Find all the non nodules
-    LOGGER.info("Finding all NON_NODULE for " + name);
-    Query<ROI> nonNodules =
-        ds.createQuery(ROI.class).field(SET).equal(set).field(CLASS).equal(ROI.Class.NON_NODULE);
-    long numNonNodule = nonNodules.count();
-
-    // Find all the nodules
-    LOGGER.info("Finding all NODULE for " + name);
-    Query<ROI> noduleQuery =
-        ds.createQuery(ROI.class).field(SET).equal(set).field(CLASS).equal(ROI.Class.NODULE);
-    long numNodule = noduleQuery.count();
-
-    // Oversample nodules if required
-    Iterable<ROI> nodules;
-    if (oversample) {
-      nodules = oversample(noduleQuery, numNodule, numNonNodule);
-      numNodule = numNonNodule;
-    } else {
-      nodules = noduleQuery;
+  private void createFiles() throws IOException {
+    MorphiaIterator<ROI, ROI> rois =
+        ROIQueries.features(ds).fetch(new FindOptions().batchSize(CHUNK_SIZE));
+    try {
+      createFiles(rois, builder::createInstance, builder.getStructure(), new File("."));
+    } finally {
+      rois.close();
     }
+  }
 
-    // Log the size of the classes
-    LOGGER.info(name + " will have:\n" + numNodule + " NODULES\n" + numNonNodule + " NON_NODULES");
-
-    // Create the ArffSaver
-    ArffSaver saver = new ArffSaver();
-    saver.setFile(new File(file));
-    saver.setRetrieval(Saver.INCREMENTAL);
-    Instances instances = builder.createSet(name, (int) (numNodule + numNonNodule));
-    saver.setStructure(instances);
-
-    // Write all the nodules to the arff file
-    int counter = 0;
-    for (ROI roi : nodules) {
-      Instance instance = builder.createInstance(roi);
-      instance.setDataset(instances);
-      saver.writeIncremental(instance);
-
-      if (++counter % LOG_INTERVAL == 0) {
-        LOGGER.info(counter + "/" + numNonNodule + " NODULES have been added to the arff file");
+  /**
+   * Create the arff files and {@link FeatureStore}s for the training and testing sets. The
+   * {@code rois} are read once, the {@link Instance}s are created on worker threads and written to
+   * both files concurrently.
+   *
+   * The nodules in the training set arff file are oversampled so that there are the same number of
+   * nodules and non-nodules. The {@link FeatureStore}s hold each {@link ROI} once, they can be
+   * oversampled using {@link FeatureStore#balanced()}.
+   *
+   * @param rois the {@link ROI}s to write, those that are not in the training set are tested on.
+   * @param toInstance creates the {@link Instance} for an {@link ROI}.
+   * @param structure the structure of the {@link Instance}s.
+   * @param dir the directory the files are created in.
+   * @throws IOException if the files could not be written.
+   */
+  static void createFiles(Iterable<ROI> rois, Function<ROI, Instance> toInstance,
+      Instances structure, File dir) throws IOException {
+    LOGGER.info("Creating " + TRAIN_NAME + " and " + TEST_NAME + "...");
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    try (ArffWriter train =
+        new ArffWriter(new File(dir, TRAIN_FILE), new File(dir, TRAIN_STORE), structure,
+            TRAIN_NAME);
+        ArffWriter test =
+            new ArffWriter(new File(dir, TEST_FILE), new File(dir, TEST_STORE), structure,
+                TEST_NAME)) {
+
+      // Only allow a few chunks to wait for a worker so that the cursor can't run away
+      Semaphore waiting = new Semaphore(threads * 2);
+      List<Future<?>> futures = new ArrayList<>();
+      List<String> trainNodules = Collections.synchronizedList(new ArrayList<>());
+
+      // Read the ROIs in chunks and hand each chunk to a worker
+      long counter = 0;
+      List<ROI> chunk = new ArrayList<>(CHUNK_SIZE);
+      for (ROI roi : rois) {
+        chunk.add(roi);
+        if (chunk.size() == CHUNK_SIZE) {
+          futures.add(submit(es, waiting, chunk, toInstance, train, test, trainNodules));
+          chunk = new ArrayList<>(CHUNK_SIZE);
+        }
+
+        if (++counter % LOG_INTERVAL == 0) {
+          LOGGER.info(counter + " ROIs have been read");
+        }
       }
-    }
+      futures.add(submit(es, waiting, chunk, toInstance, train, test, trainNodules));
 
-    // Write all the non-nodules to the arff file
-    counter = 0;
-    for (ROI roi : nonNodules) {
-      Instance instance = builder.createInstance(roi);
-      instance.setDataset(instances);
-      saver.writeIncremental(instance);
+      // Wait for all of the chunks to be written
+      for (Future<?> future : futures) {
+        future.get();
+      }
 
-      if (++counter % LOG_INTERVAL == 0) {
-        LOGGER.info(counter + "/" + numNonNodule + " NON_NODULES have been added to the arff file");
+      // Oversample the nodules in the training set by repeating them
+      long numNonNodule = train.nonNodules.sum();
+      long numNodule = trainNodules.size();
+      if (numNodule == 0) {
+        LOGGER.warn(TRAIN_NAME + " has no NODULES to oversample");
       }
+      long numOversampled = numNodule == 0 ? 0 : Math.max(numNonNodule, numNodule);
+      StringBuilder rows = new StringBuilder();
+      for (long i = 0; i < numOversampled; i++) {
+        rows.append(trainNodules.get((int) (i % numNodule))).append('\n');
+        if (rows.length() > BUFFER_SIZE) {
+          train.write(rows);
+          rows.setLength(0);
+        }
+      }
+      train.write(rows);
+
+      LOGGER.info(TRAIN_NAME + " has:\n" + numOversampled + " NODULES (" + numNodule
+          + " before oversampling)\n" + numNonNodule + " NON_NODULES");
+      LOGGER.info(TEST_NAME + " has:\n" + test.nodules.sum() + " NODULES\n"
+          + test.nonNodules.sum() + " NON_NODULES");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while creating arff files", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to create arff files", e.getCause());
+    } finally {
+      es.shutdownNow();
     }
 
-    // Flushes the instances to the file
-    saver.writeIncremental(null);
-
-    LOGGER.info("Finished creating " + name);
+    LOGGER.info("Finished creating " + TRAIN_NAME + " and " + TEST_NAME);
   }
 
   /**
-   * @param noduleQuery
-   * @param numNodule
-   * @param numNonNodule
-   * @return an iterable with {@code numNonNodule} elements, produced by repeating the ROIs in
-   *         nodule query.
+   * Submit a task that creates {@link Instance}s for the {@code chunk} of {@link ROI}s and writes
+   * them to the files for their sets. The nodules in the training set are added to
+   * {@code trainNodules} rather than being written so that they can be oversampled.
+   *
+   * @return the future for the task.
+   * @throws InterruptedException if interrupted while waiting for a worker.
    */
-  @SuppressWarnings("unchecked")
-  private Iterable<ROI> oversample(Query<ROI> noduleQuery, long numNodule, long numNonNodule) {
-    // Calculate how many times the nodules query need to be repeated
-    long numRequired = numNonNodule - numNodule;
-    int numFullRepeat = (int) (numRequired / numNodule);
+  private static Future<?> submit(ExecutorService es, Semaphore waiting, List<ROI> chunk,
+      Function<ROI, Instance> toInstance, ArffWriter train, ArffWriter test,
+      List<String> trainNodules) throws InterruptedException {
+    waiting.acquire();
+    return es.submit(() -> {
+      try {
+        StringBuilder trainRows = new StringBuilder();
+        StringBuilder testRows = new StringBuilder();
+        List<Instance> trainInstances = new ArrayList<>();
+        List<Instance> testInstances = new ArrayList<>();
+        List<String> nodules = new ArrayList<>();
+        for (ROI roi : chunk) {
+          boolean isTrain = roi.getSet() == ROI.Set.TRAIN;
+          boolean isNodule = roi.getClassification() == ROI.Class.NODULE;
+          ArffWriter writer = isTrain ? train : test;
+
+          Instance instance = toInstance.apply(roi);
+          instance.setDataset(writer.structure);
+          String row = instance.toString();
+          (isTrain ? trainInstances : testInstances).add(instance);
+
+          if (isTrain && isNodule) {
+            nodules.add(row);
+          } else {
+            (isTrain ? trainRows : testRows).append(row).append('\n');
+          }
+          (isNodule ? writer.nodules : writer.nonNodules).increment();
+        }
+
+        trainNodules.addAll(nodules);
+        train.write(trainRows);
+        train.store.write(trainInstances);
+        test.write(testRows);
+        test.store.write(testInstances);
+      } finally {
+        waiting.release();
+      }
+      return null;
+    });
+  }
 
+  /**
+   * Writes the rows of an arff file through a buffer, rows can be written by many threads at once.
+   * Also holds the writer for the {@link FeatureStore} of the same set.
+   */
+  private static class ArffWriter implements Closeable {
+
+    private final Instances structure;
+    private final Writer writer;
+    private final FeatureStore.Writer store;
+
+    /**
+     * The number of each class that have been written.
+     */
+    private final LongAdder nodules;
+    private final LongAdder nonNodules;
+
+    /**
+     * Creates the file and writes the header for the {@code structure}.
+     *
+     * @param file
+     * @param storeFile the file for the {@link FeatureStore}.
+     * @param structure an empty set of {@link Instances}.
+     * @param name the name of the set.
+     * @throws IOException
+     */
+    ArffWriter(File file, File storeFile, Instances structure, String name) throws IOException {
+      this.structure = new Instances(structure, 0);
+      this.structure.setRelationName(name);
+      this.store = new FeatureStore.Writer(storeFile, this.structure);
+      this.writer =
+          new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+              StandardCharsets.UTF_8), BUFFER_SIZE);
+      this.nodules = new LongAdder();
+      this.nonNodules = new LongAdder();
+      writer.write(this.structure.toString());
+    }
 
-    // Add all full queries to to the list of iterables
-    Iterable[] iterables = new Iterable[numFullRepeat + 1];
-    for (int i = 0; i < numFullRepeat; i++) {
-      iterables[i] = noduleQuery.cloneQuery();
+    /**
+     * @param rows complete rows, each terminated with a new line.
+     * @throws IOException
+     */
+    synchronized void write(CharSequence rows) throws IOException {
+      writer.append(rows);
     }
 
-    // Add a bounded iterable that contains the remainder required to balance the sets
-    numRequired = numRequired - (numFullRepeat * numNodule);
-    iterables[numFullRepeat] = IterableUtils.boundedIterable(noduleQuery.cloneQuery(), numRequired);
+    @Override
+    public synchronized void close() throws IOException {
+      try {
+        writer.close();
+      } finally {
+        store.close();
+      }
+    }
 
-    return IterableUtils.chainedIterable(iterables);
   }
 
   public static void main(String[] args) throws Exception {
@@ -1,18 +1,27 @@
 package ml;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.bson.types.ObjectId;
 import org.mongodb.morphia.Datastore;
-import org.mongodb.morphia.query.Query;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import config.Misc;
 import ml.feature.AllHists;
 import ml.feature.Area;
 import ml.feature.BoundingBox;
@@ -28,13 +37,21 @@ import ml.feature.Perimeter;
 import model.CTSlice;
 import model.ROI;
 import model.ROIAreaStats;
+import model.ROIQueries;
+import util.ConfigHelper;
 import util.FutureMonitor;
 import util.LungsException;
 import util.MatUtils;
+import util.Metrics;
 import util.MongoHelper;
 
 /**
  * Used to compute {@link Feature}s for {@link ROI}s.
+ *
+ * The order that the {@link Feature}s are computed in is resolved from the inputs and outputs that
+ * they declare see {@link FeatureGraph}. Each {@link ROI} records the version of every
+ * {@link Feature} computed for it, so {@link FeatureEngine#run(ExecutorService)} only computes the
+ * {@link Feature}s that are missing or stale, along with any that depend on them.
  */
 public class FeatureEngine {
 
@@ -42,10 +59,22 @@ public class FeatureEngine {
   private static final int LOG_INTERVAL = 1000;
   private static final String IMAGE_SOP_UID = "imageSopUID";
 
-  private List<Feature> primary;
-  private List<Feature> secondary;
+  /**
+   * The number of points an {@link ROI} must have before the independent {@link Feature}s for it
+   * are computed at the same time. The cost of most {@link Feature}s grows with the size of the
+   * region so it is only worth splitting up the largest {@link ROI}s, the rest are already computed
+   * in parallel with each other.
+   */
+  private static final int PARALLEL_REGION_SIZE = 2000;
+
+  private static final Metrics.Timer FEATURE_TIMER = Metrics.timer("features.compute");
+  private static final Metrics.Counter FEATURE_ERRORS = Metrics.counter("features.errors");
+
+  private final FeatureGraph primary;
+  private final FeatureGraph secondary;
+  private final FeatureProfiler profiler;
   private Datastore ds;
-  private ROIAreaStats areaStats;
+  private IncrementalTrainer trainer;
 
   public FeatureEngine() {
     this(primaryFeatures(), secondaryFeatures());
@@ -55,17 +84,24 @@ public class FeatureEngine {
    * @param primary a list of primary {@link Feature}s.
    * @param secondary a list of secondary features. These features require information obtained from
    *        the aggregation of primary feature values in order to be computed.
+   * @throws IllegalArgumentException if the dependencies between the features can't be resolved
+   *         see {@link FeatureGraph#FeatureGraph(List, Collection)}.
    */
   public FeatureEngine(List<Feature> primary, List<Feature> secondary) {
-    this.primary = primary;
-    this.secondary = secondary;
+    this.primary = new FeatureGraph(primary, Collections.singleton(Feature.AREA_STATS));
+    Set<String> available = new HashSet<>(this.primary.getOutputs());
+    available.add(Feature.AREA_STATS);
+    this.secondary = new FeatureGraph(secondary, available);
+    this.profiler = new FeatureProfiler(ConfigHelper.getBoolean(Misc.PROFILE_ALLOCATION));
     this.ds = MongoHelper.getDataStore();
   }
 
   /**
-   * Compute features for each of the {@link ROI}s in the database.
+   * Compute the missing or stale features for each of the {@link ROI}s in the database.
    * 
    * @param es
+   * @throws IllegalStateException if any of the {@link ROI}s could not be saved, before the
+   *         secondary features are computed from them.
    */
   public void run(ExecutorService es) {
     LOGGER.info("Computing Features this may take some time...");
@@ -74,24 +110,55 @@ public class FeatureEngine {
     List sopUIDs = ds.getCollection(ROI.class).distinct(IMAGE_SOP_UID);
 
     // Monitor the progress of computing the primary features
-    FutureMonitor monitor = new FutureMonitor(createFutures(es, sopUIDs, primary));
+    profiler.reset();
+    Set<String> recomputed = ConcurrentHashMap.newKeySet();
+    FutureMonitor monitor = new FutureMonitor(es);
+    submit(monitor, sopUIDs, primary, Collections.emptySet(), recomputed);
     monitor.setLogString("ROI's primary features have been computed");
     monitor.monitor();
+    MongoHelper.awaitAsync();
+    logProfile("primary");
 
-    // Perform required aggregations for secondary features
-    ROIAreaStats.compute();
+    // Perform required aggregations for secondary features, if the areas have changed
+    Set<String> changed = Collections.emptySet();
+    if (recomputed.contains(ROIQueries.AREA) || !hasAreaStats()) {
+      ROIAreaStats.compute();
+      changed = Collections.singleton(Feature.AREA_STATS);
+    }
 
     // Monitor the progress of computing the secondary features
-    monitor = new FutureMonitor(createFutures(es, sopUIDs, secondary));
+    monitor = new FutureMonitor(es);
+    submit(monitor, sopUIDs, secondary, changed, recomputed);
     monitor.setLogString("ROI's secondary features have been computed");
     monitor.monitor();
+    MongoHelper.awaitAsync();
+    logProfile("secondary");
 
     LOGGER.info("Finished computing features");
   }
 
-  private List<Future> createFutures(ExecutorService es, List sopUIDs, List<Feature> features) {
-    List<Future> futures = new ArrayList<>();
+  /**
+   * @param trainer the trainer that each {@link ROI} is published to once all of its features have
+   *        been computed by {@link FeatureEngine#run(ExecutorService)}.
+   */
+  public void setTrainer(IncrementalTrainer trainer) {
+    this.trainer = trainer;
+  }
+
+  /**
+   * Submit a task to the {@code monitor} for each of the {@link ROI}s that have missing or stale
+   * features.
+   *
+   * @param monitor
+   * @param sopUIDs
+   * @param graph the features to compute.
+   * @param changed the inputs produced outside of the {@code graph} that have changed.
+   * @param recomputed the outputs of the features that are computed are added to this.
+   */
+  private void submit(FutureMonitor monitor, List sopUIDs, FeatureGraph graph,
+      Set<String> changed, Set<String> recomputed) {
     int counter = 0;
+    int upToDate = 0;
     long numROI = ds.createQuery(ROI.class).count();
 
     // For each of the SOP UIDs
@@ -99,32 +166,52 @@ public class FeatureEngine {
     for (Object obj : sopUIDs) {
       String sopUID = (String) obj;
 
-      // Load the Mat
-      CTSlice slice = ds.createQuery(CTSlice.class).field(IMAGE_SOP_UID).equal(sopUID).get();
-      Mat mat = MatUtils.getSliceMat(slice);
+      // Find the stale features for each of the ROIs for the sopUID from their versions alone
+      Map<ObjectId, Set<Feature>> staleIds = new LinkedHashMap<>();
+      for (ROI versions : ROIQueries.featureVersions(ds, sopUID)) {
+        Set<Feature> stale = graph.stale(versions, changed);
+        if (stale.isEmpty()) {
+          upToDate++;
+        } else {
+          staleIds.put(versions.getId(), stale);
+        }
 
-      // Get all the ROIs for the sopUID
-      Query<ROI> rois = ds.createQuery(ROI.class).field(IMAGE_SOP_UID).equal(sopUID);
+        if (++counter % LOG_INTERVAL == 0) {
+          LOGGER.info(counter + "/" + numROI + " ROIs checked");
+        }
+      }
 
-      // Create a future for each of the ROIs and add it to the list
-      for (ROI roi : rois) {
-        futures.add(es.submit(() -> {
+      // Only load the whole ROIs and the Mat if there is something to compute
+      if (staleIds.isEmpty()) {
+        continue;
+      }
+      Map<ROI, Set<Feature>> staleROIs = new LinkedHashMap<>();
+      for (ROI roi : ds.createQuery(ROI.class).field("_id").in(staleIds.keySet())) {
+        staleROIs.put(roi, staleIds.get(roi.getId()));
+      }
+      CTSlice slice = ds.createQuery(CTSlice.class).field(IMAGE_SOP_UID).equal(sopUID).get();
+      Mat mat = MatUtils.getSliceMat(slice);
 
-          // Compute all the features for the ROI
-            computeFeatures(roi, mat, features);
+      // Submit a task for each of the ROIs
+      staleROIs.forEach((roi, stale) -> monitor.submit(() -> {
 
-            // Update the ROI
-            ds.save(roi);
-          }));
+        // Compute the stale features for the ROI
+          for (Feature feature : computeFeatures(roi, mat, graph, stale)) {
+            recomputed.addAll(feature.outputs());
+          }
 
-        if (++counter % LOG_INTERVAL == 0) {
-          LOGGER.info(counter + "/" + numROI + " futures created");
-        }
-      }
+          // Update the ROI while the next ROI is processed
+          MongoHelper.runAsync(() -> ds.save(roi, MongoHelper.bulkInsertOptions()));
 
+          // Once the secondary features are computed the ROI is finished
+          if (trainer != null && graph == secondary) {
+            trainer.publish(roi);
+          }
+          return null;
+        }));
     }
 
-    return futures;
+    LOGGER.info(upToDate + "/" + numROI + " ROIs are already up to date");
   }
 
   /**
@@ -134,40 +221,94 @@ public class FeatureEngine {
    * @param mat the {@link Mat} where the {@code roi} is found.
    */
   public void computeAllFeatures(ROI roi, Mat mat) {
+    computeFeatures(roi, mat, primary, primary.getFeatures());
+    computeFeatures(roi, mat, secondary, secondary.getFeatures());
+  }
 
-    // Compute primary features
-    for (Feature feature : primary) {
-      try {
-        feature.compute(roi, mat);
-      } catch (LungsException e) {
-        LOGGER.error("Failed to compute feature for mat with id: " + roi.getId(), e);
-      }
-    }
-
-    // Compute secondary features
-    for (Feature feature : secondary) {
-      try {
-        feature.compute(roi, mat);
-      } catch (LungsException e) {
-        LOGGER.error("Failed to compute feature for mat with id: " + roi.getId(), e);
+  /**
+   * Compute the {@code features} for the {@code roi} a level of the {@code graph} at a time and
+   * record the version of each of them that is computed successfully.
+   * 
+   * @param roi
+   * @param mat the {@link Mat} where the {@code roi} is found.
+   * @param graph
+   * @param features the features in the {@code graph} to compute.
+   * @return the features that were computed successfully.
+   */
+  private List<Feature> computeFeatures(ROI roi, Mat mat, FeatureGraph graph,
+      Set<Feature> features) {
+    boolean parallel = roi.getRegion().size() >= PARALLEL_REGION_SIZE;
+    List<Feature> computed = new ArrayList<>();
+    for (List<Feature> level : graph.getLevels()) {
+      Stream<Feature> toCompute = level.stream().filter(features::contains);
+      List<Feature> succeeded =
+          (parallel ? toCompute.parallel() : toCompute).filter(f -> compute(f, roi, mat)).collect(
+              Collectors.toList());
+      for (Feature feature : succeeded) {
+        roi.setFeatureVersion(feature.name(), feature.version());
       }
+      computed.addAll(succeeded);
     }
+    return computed;
   }
 
   /**
-   * Compute all {@code features} for the {@code roi}.
-   * 
+   * @param feature
    * @param roi
    * @param mat the {@link Mat} where the {@code roi} is found.
-   * @param features
+   * @return true if the {@code feature} was computed successfully, false otherwise.
    */
-  private void computeFeatures(ROI roi, Mat mat, List<Feature> features) {
-    for (Feature feature : features) {
-      try {
-        feature.compute(roi, mat);
-      } catch (LungsException e) {
-        LOGGER.error("Failed to compute feature for mat with id: " + roi.getId(), e);
-      }
+  private boolean compute(Feature feature, ROI roi, Mat mat) {
+    long allocated = profiler.allocatedBytes();
+    long start = FEATURE_TIMER.start();
+    try {
+      feature.compute(roi, mat);
+      profiler.record(feature, start, allocated, false);
+      FEATURE_TIMER.stop(start);
+      return true;
+    } catch (LungsException e) {
+      profiler.record(feature, start, allocated, true);
+      FEATURE_TIMER.stop(start);
+      FEATURE_ERRORS.increment();
+      LOGGER.error("Failed to compute feature for mat with id: " + roi.getId(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Log the profile of the {@link Feature}s computed in a phase, write it to a csv file in
+   * {@link Misc#CSV_DIR} and then reset it for the next phase.
+   *
+   * @param phase
+   */
+  private void logProfile(String phase) {
+    LOGGER.info("Profile of the " + phase + " features:\n" + profiler.summary());
+    String path = ConfigHelper.getString(Misc.CSV_DIR) + "/feature-profile-" + phase + ".csv";
+    try {
+      profiler.writeCsv(path);
+    } catch (LungsException e) {
+      LOGGER.warn("Failed to write the profile of the " + phase + " features", e);
+    }
+    profiler.reset();
+  }
+
+  /**
+   * @return the profile of the {@link Feature}s computed by this engine, reset at the end of each
+   *         phase of {@link FeatureEngine#run(ExecutorService)}.
+   */
+  public FeatureProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * @return true if there are {@link ROIAreaStats} in the database, false otherwise.
+   */
+  private boolean hasAreaStats() {
+    try {
+      ROIAreaStats.get();
+      return true;
+    } catch (IllegalStateException e) {
+      return false;
     }
   }
 
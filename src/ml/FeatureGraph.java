@@ -0,0 +1,163 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import ml.feature.Feature;
+import model.ROI;
+
+/**
+ * The dependencies between a set of {@link Feature}s, resolved from the inputs and outputs that
+ * they declare. A {@link Feature} depends on the {@link Feature}s that produce its inputs, so it
+ * must be computed after them and recomputed whenever they are.
+ *
+ * @author Stuart Clark
+ */
+public class FeatureGraph {
+
+  /**
+   * The {@link Feature}s split into levels, every {@link Feature} only depends on {@link Feature}s
+   * in earlier levels so the {@link Feature}s in a level can be computed at the same time.
+   */
+  private final List<List<Feature>> levels;
+
+  /**
+   * The {@link Feature}s in the graph that each {@link Feature} depends on.
+   */
+  private final Map<Feature, List<Feature>> dependencies;
+
+  private final Set<String> outputs;
+
+  /**
+   * @param features
+   * @param available inputs that are produced outside of the graph e.g.
+   *        {@link Feature#AREA_STATS}.
+   * @throws IllegalArgumentException if two {@link Feature}s have the same name or output, if an
+   *         input is not produced by any of the {@code features} and is not {@code available} or if
+   *         the {@code features} depend on each other in a cycle.
+   */
+  public FeatureGraph(List<Feature> features, Collection<String> available) {
+    // Find the feature that produces each output
+    Map<String, Feature> producers = new HashMap<>();
+    Set<String> names = new HashSet<>();
+    for (Feature feature : features) {
+      if (!names.add(feature.name())) {
+        throw new IllegalArgumentException("There is more than one feature named "
+            + feature.name());
+      }
+      for (String output : feature.outputs()) {
+        if (producers.put(output, feature) != null) {
+          throw new IllegalArgumentException(output + " is output by more than one feature");
+        }
+      }
+    }
+    this.outputs = Collections.unmodifiableSet(producers.keySet());
+
+    // Find the features that each feature depends on
+    this.dependencies = new HashMap<>();
+    for (Feature feature : features) {
+      List<Feature> dependsOn = new ArrayList<>();
+      for (String input : feature.inputs()) {
+        Feature producer = producers.get(input);
+        if (producer != null) {
+          dependsOn.add(producer);
+        } else if (!available.contains(input)) {
+          throw new IllegalArgumentException(feature.name() + " requires " + input
+              + " which is not output by any feature");
+        }
+      }
+      dependencies.put(feature, dependsOn);
+    }
+
+    // Peel off the features whose dependencies have all been placed in earlier levels
+    this.levels = new ArrayList<>();
+    Set<Feature> placed = new HashSet<>();
+    List<Feature> remaining = new ArrayList<>(features);
+    while (!remaining.isEmpty()) {
+      List<Feature> level = new ArrayList<>();
+      for (Feature feature : remaining) {
+        if (placed.containsAll(dependencies.get(feature))) {
+          level.add(feature);
+        }
+      }
+      if (level.isEmpty()) {
+        throw new IllegalArgumentException("There is a cycle between the features "
+            + names(remaining));
+      }
+      placed.addAll(level);
+      remaining.removeAll(level);
+      levels.add(Collections.unmodifiableList(level));
+    }
+  }
+
+  /**
+   * @return the {@link Feature}s split into levels that must be computed in order, the
+   *         {@link Feature}s within a level are independent of each other.
+   */
+  public List<List<Feature>> getLevels() {
+    return Collections.unmodifiableList(levels);
+  }
+
+  /**
+   * @return all of the {@link Feature}s in the order of {@link #getLevels()}.
+   */
+  public Set<Feature> getFeatures() {
+    Set<Feature> features = new LinkedHashSet<>();
+    levels.forEach(features::addAll);
+    return features;
+  }
+
+  /**
+   * @return the fields of an {@link ROI} that are output by the {@link Feature}s.
+   */
+  public Set<String> getOutputs() {
+    return outputs;
+  }
+
+  /**
+   * @param roi
+   * @param changed inputs produced outside of the graph that have changed since the {@link Feature}
+   *        s were last computed, the {@link Feature}s that require them are always stale.
+   * @return the {@link Feature}s that need to be computed for the {@code roi} because they have
+   *         never been computed, were computed with a different version or depend on a
+   *         {@link Feature} that needs to be computed. In the order of {@link #getLevels()}.
+   */
+  public Set<Feature> stale(ROI roi, Collection<String> changed) {
+    Set<Feature> stale = new LinkedHashSet<>();
+    for (List<Feature> level : levels) {
+      for (Feature feature : level) {
+        boolean isStale =
+            !Objects.equals(roi.getFeatureVersion(feature.name()), feature.version())
+                || !Collections.disjoint(feature.inputs(), changed);
+        for (Feature dependency : dependencies.get(feature)) {
+          isStale |= stale.contains(dependency);
+        }
+        if (isStale) {
+          stale.add(feature);
+        }
+      }
+    }
+    return stale;
+  }
+
+  /**
+   * @param features
+   * @return the names of the {@code features}.
+   */
+  private static List<String> names(List<Feature> features) {
+    List<String> names = new ArrayList<>();
+    for (Feature feature : features) {
+      names.add(feature.name());
+    }
+    return names;
+  }
+
+}
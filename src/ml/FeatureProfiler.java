@@ -0,0 +1,173 @@
+package ml;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import ml.feature.Feature;
+import util.LatencyHistogram;
+import util.LungsException;
+
+/**
+ * Records how long each {@link Feature} takes to compute, how often it fails and, if enabled, how
+ * many bytes it allocates so that the {@link Feature}s that dominate {@link FeatureEngine} can be
+ * found. Allocations are measured using {@link com.sun.management.ThreadMXBean} which is only
+ * available on HotSpot based JVMs, they are not recorded on other JVMs.
+ *
+ * @author Stuart Clark
+ */
+public class FeatureProfiler {
+
+  private static final String CSV_HEADER =
+      "feature,count,errors,totalMs,meanMs,p50Ms,p90Ms,p99Ms,maxMs,meanBytes";
+
+  private final Map<String, Stats> stats;
+  private final com.sun.management.ThreadMXBean threads;
+
+  /**
+   * @param allocation true if the bytes allocated by each {@link Feature} should be recorded.
+   */
+  public FeatureProfiler(boolean allocation) {
+    this.stats = new ConcurrentHashMap<>();
+    this.threads = allocation ? allocationBean() : null;
+  }
+
+  /**
+   * @return the bytes allocated by the calling thread so far, 0 if allocations are not being
+   *         recorded. Should be called immediately before computing a {@link Feature}.
+   */
+  public long allocatedBytes() {
+    return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Record a single computation of the {@code feature}, should be called on the same thread as
+   * {@link #allocatedBytes()}.
+   *
+   * @param feature
+   * @param start the value of {@link System#nanoTime()} when the computation was started.
+   * @param allocatedAtStart the value of {@link #allocatedBytes()} when the computation was
+   *        started.
+   * @param failed true if the computation threw a {@link LungsException}.
+   */
+  public void record(Feature feature, long start, long allocatedAtStart, boolean failed) {
+    long nanos = System.nanoTime() - start;
+    long allocated = threads == null ? 0 : allocatedBytes() - allocatedAtStart;
+
+    Stats s = stats.computeIfAbsent(feature.name(), name -> new Stats());
+    s.latency.record(nanos);
+    s.allocated.add(allocated);
+    if (failed) {
+      s.errors.increment();
+    }
+  }
+
+  /**
+   * Forget everything that has been recorded e.g. at the start of a new phase.
+   */
+  public void reset() {
+    stats.clear();
+  }
+
+  /**
+   * @return a table with a row for each {@link Feature}, the slowest in total first.
+   */
+  public String summary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-16s %10s %8s %12s %10s %10s %10s %10s %10s %12s\n", "Feature",
+        "Count", "Errors", "Total ms", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms",
+        "Mean bytes"));
+    for (Map.Entry<String, Stats> entry : sorted()) {
+      Stats s = entry.getValue();
+      LatencyHistogram l = s.latency;
+      sb.append(String.format("%-16s %10d %8d %12.1f %10.3f %10.3f %10.3f %10.3f %10.3f %12d\n",
+          entry.getKey(), l.count(), s.errors.sum(), totalMillis(s), millis(l.mean()),
+          LatencyHistogram.millis(l.percentile(50)), LatencyHistogram.millis(l.percentile(90)),
+          LatencyHistogram.millis(l.percentile(99)), LatencyHistogram.millis(l.max()),
+          s.meanBytes()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Write the same rows as {@link #summary()} to a csv file.
+   *
+   * @param path
+   * @throws LungsException if the file could not be written.
+   */
+  public void writeCsv(String path) throws LungsException {
+    try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
+      writer.println(CSV_HEADER);
+      for (Map.Entry<String, Stats> entry : sorted()) {
+        Stats s = entry.getValue();
+        LatencyHistogram l = s.latency;
+        writer.println(entry.getKey() + "," + l.count() + "," + s.errors.sum() + ","
+            + totalMillis(s) + "," + millis(l.mean()) + ","
+            + LatencyHistogram.millis(l.percentile(50)) + ","
+            + LatencyHistogram.millis(l.percentile(90)) + ","
+            + LatencyHistogram.millis(l.percentile(99)) + "," + LatencyHistogram.millis(l.max())
+            + "," + s.meanBytes());
+      }
+    } catch (FileNotFoundException | UnsupportedEncodingException e) {
+      throw new LungsException("Failed to write feature profile to " + path, e);
+    }
+  }
+
+  /**
+   * @return the stats for each {@link Feature}, the slowest in total first.
+   */
+  private List<Map.Entry<String, Stats>> sorted() {
+    List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+    entries.sort(Comparator.comparingDouble(
+        (Map.Entry<String, Stats> e) -> totalMillis(e.getValue())).reversed());
+    return entries;
+  }
+
+  private static double totalMillis(Stats s) {
+    return millis(s.latency.mean() * s.latency.count());
+  }
+
+  private static double millis(double nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * @return the bean used to measure allocations, {@code null} if it is not supported.
+   */
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+    if (!sunBean.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    sunBean.setThreadAllocatedMemoryEnabled(true);
+    return sunBean;
+  }
+
+  /**
+   * The measurements for a single {@link Feature}.
+   */
+  private static class Stats {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    long meanBytes() {
+      long count = latency.count();
+      return count == 0 ? 0 : allocated.sum() / count;
+    }
+
+  }
+
+}
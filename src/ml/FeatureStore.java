@@ -0,0 +1,452 @@
+package ml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A compact binary store for the features of a set of instances, used instead of parsing arff text
+ * when training. Each feature is stored as a contiguous column of floats followed by a column of
+ * class indexes, so the whole store can be memory mapped and read at disk bandwidth. Missing values
+ * are stored as {@link Float#NaN}.
+ *
+ * Stores are read only once written and can be shared between threads. Rather than duplicating
+ * rows, classes can be oversampled by repeating row indexes see {@link FeatureStore#balanced()}.
+ *
+ * @author Stuart Clark
+ */
+public class FeatureStore {
+
+  private static final int MAGIC = 0x4c465331;
+  private static final int VERSION = 1;
+  private static final int FLOAT_BYTES = Float.BYTES;
+  private static final byte MISSING_CLASS = -1;
+
+  private final int numRows;
+  private final List<String> featureNames;
+  private final String className;
+  private final List<String> classValues;
+
+  /**
+   * A memory mapped column for each feature.
+   */
+  private final FloatBuffer[] columns;
+
+  /**
+   * The index of the class value for each row.
+   */
+  private final ByteBuffer classes;
+
+  private FeatureStore(int numRows, List<String> featureNames, String className,
+      List<String> classValues, FloatBuffer[] columns, ByteBuffer classes) {
+    this.numRows = numRows;
+    this.featureNames = featureNames;
+    this.className = className;
+    this.classValues = classValues;
+    this.columns = columns;
+    this.classes = classes;
+  }
+
+  /**
+   * @param file a file written by a {@link Writer}.
+   * @return the store held in {@code file}, memory mapped.
+   * @throws IOException if {@code file} could not be read or is not a feature store.
+   */
+  public static FeatureStore open(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // Read the header
+      ByteBuffer prefix = ByteBuffer.allocate(2 * Integer.BYTES);
+      if (!read(channel, prefix, 0) || prefix.getInt() != MAGIC) {
+        throw new IOException(file + " is not a feature store");
+      }
+      ByteBuffer header = ByteBuffer.allocate(prefix.getInt());
+      if (!read(channel, header, prefix.capacity())) {
+        throw new IOException(file + " has a truncated header");
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has unsupported version " + version);
+      }
+      int numRows = in.readInt();
+      List<String> featureNames = readStrings(in);
+      String className = in.readUTF();
+      List<String> classValues = readStrings(in);
+
+      // Map the columns
+      long position = prefix.capacity() + header.capacity();
+      long columnBytes = (long) numRows * FLOAT_BYTES;
+      FloatBuffer[] columns = new FloatBuffer[featureNames.size()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] =
+            channel.map(FileChannel.MapMode.READ_ONLY, position, columnBytes).asFloatBuffer();
+        position += columnBytes;
+      }
+      ByteBuffer classes = channel.map(FileChannel.MapMode.READ_ONLY, position, numRows);
+
+      return new FeatureStore(numRows, featureNames, className, classValues, columns, classes);
+    }
+  }
+
+  public int numRows() {
+    return numRows;
+  }
+
+  public int numFeatures() {
+    return featureNames.size();
+  }
+
+  public List<String> getFeatureNames() {
+    return featureNames;
+  }
+
+  public List<String> getClassValues() {
+    return classValues;
+  }
+
+  /**
+   * @param row
+   * @param feature
+   * @return the value of the {@code feature} for the {@code row}, {@link Float#NaN} if missing.
+   */
+  public float get(int row, int feature) {
+    return columns[feature].get(row);
+  }
+
+  /**
+   * @param row
+   * @return the index of the class value for the {@code row} in {@link FeatureStore#classValues},
+   *         -1 if missing.
+   */
+  public int classIndex(int row) {
+    return classes.get(row);
+  }
+
+  /**
+   * @return the indexes of all of the rows.
+   */
+  public int[] all() {
+    int[] rows = new int[numRows];
+    for (int i = 0; i < numRows; i++) {
+      rows[i] = i;
+    }
+    return rows;
+  }
+
+  /**
+   * @return the indexes of all of the rows followed by the indexes of the rows of each of the
+   *         smaller classes repeated in turn until every class has as many rows as the largest one.
+   */
+  public int[] balanced() {
+    return balanced(all());
+  }
+
+  /**
+   * @param rows the indexes of a subset of the rows e.g. a cross validation fold.
+   * @return {@code rows} followed by the indexes in {@code rows} of each of the smaller classes
+   *         repeated in turn until every class has as many rows as the largest one.
+   */
+  public int[] balanced(int[] rows) {
+    // Find the rows for each class
+    List<List<Integer>> byClass = new ArrayList<>();
+    for (int i = 0; i < classValues.size(); i++) {
+      byClass.add(new ArrayList<>());
+    }
+    for (int row : rows) {
+      int index = classIndex(row);
+      if (index != MISSING_CLASS) {
+        byClass.get(index).add(row);
+      }
+    }
+    int largest = byClass.stream().mapToInt(List::size).max().orElse(0);
+
+    // Repeat the rows of the smaller classes, classes without any rows can't be oversampled
+    int extra = 0;
+    for (List<Integer> c : byClass) {
+      if (!c.isEmpty()) {
+        extra += largest - c.size();
+      }
+    }
+    int[] balanced = Arrays.copyOf(rows, rows.length + extra);
+    int next = rows.length;
+    for (List<Integer> c : byClass) {
+      for (int i = 0; !c.isEmpty() && i < largest - c.size(); i++) {
+        balanced[next++] = c.get(i % c.size());
+      }
+    }
+    return balanced;
+  }
+
+  /**
+   * @param name the name of the {@link Instances}.
+   * @return empty {@link Instances} with a numeric attribute for each feature and the class as the
+   *         last attribute.
+   */
+  public Instances structure(String name) {
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    for (String feature : featureNames) {
+      attributes.add(new Attribute(feature));
+    }
+    attributes.add(new Attribute(className, classValues));
+    Instances instances = new Instances(name, attributes, 0);
+    instances.setClassIndex(attributes.size() - 1);
+    return instances;
+  }
+
+  /**
+   * @param row
+   * @param dataset the {@link Instances} the {@link Instance} should belong to see
+   *        {@link FeatureStore#structure(String)}.
+   * @return an {@link Instance} for the {@code row}.
+   */
+  public Instance instance(int row, Instances dataset) {
+    double[] values = new double[featureNames.size() + 1];
+    for (int i = 0; i < featureNames.size(); i++) {
+      float value = columns[i].get(row);
+      values[i] = Float.isNaN(value) ? Utils.missingValue() : value;
+    }
+    int index = classIndex(row);
+    values[featureNames.size()] = index == MISSING_CLASS ? Utils.missingValue() : index;
+
+    Instance instance = new DenseInstance(1, values);
+    instance.setDataset(dataset);
+    return instance;
+  }
+
+  /**
+   * @param dataset the {@link Instances} the {@link Instance}s should belong to.
+   * @param rows the indexes of the rows, indexes may be repeated.
+   * @return the {@link Instance}s for the {@code rows}, created as they are iterated over so that
+   *         repeated rows are never held in memory more than once.
+   */
+  public Iterable<Instance> instances(Instances dataset, int[] rows) {
+    return () -> new Iterator<Instance>() {
+
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < rows.length;
+      }
+
+      @Override
+      public Instance next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return instance(rows[next++], dataset);
+      }
+    };
+  }
+
+  /**
+   * @param name the name of the {@link Instances}.
+   * @param rows the indexes of the rows to include, indexes may be repeated.
+   * @return {@link Instances} containing the {@code rows}.
+   */
+  public Instances toInstances(String name, int[] rows) {
+    Instances instances = new Instances(structure(name), rows.length);
+    for (Instance instance : instances(instances, rows)) {
+      instances.add(instance);
+    }
+    return instances;
+  }
+
+  /**
+   * Fill {@code buffer} from {@code channel} starting at {@code position} and flip it.
+   *
+   * @return false if the end of the channel was reached before {@code buffer} was filled.
+   * @throws IOException
+   */
+  private static boolean read(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        return false;
+      }
+    }
+    buffer.flip();
+    return true;
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(in.readUTF());
+    }
+    return Collections.unmodifiableList(strings);
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+  }
+
+  /**
+   * Used to write a {@link FeatureStore}. Rows can be written from many threads at once, they are
+   * appended to a temporary file which is transposed into columns when the writer is closed.
+   */
+  public static class Writer implements Closeable {
+
+    /**
+     * The number of rows transposed at a time when the writer is closed.
+     */
+    private static final int BLOCK_ROWS = 1 << 16;
+
+    private final File file;
+    private final File tmp;
+    private final List<String> featureNames;
+    private final String className;
+    private final List<String> classValues;
+    private final DataOutputStream out;
+    private int numRows;
+
+    /**
+     * @param file the file to write the store to.
+     * @param structure the {@link Instances} that the rows belong to, the class must be the last
+     *        attribute and be nominal.
+     * @throws IOException
+     */
+    public Writer(File file, Instances structure) throws IOException {
+      if (structure.classIndex() != structure.numAttributes() - 1
+          || !structure.classAttribute().isNominal()) {
+        throw new IllegalArgumentException("The class must be the last attribute and nominal");
+      }
+
+      this.file = file.getAbsoluteFile();
+      this.tmp = File.createTempFile(file.getName(), ".rows", this.file.getParentFile());
+      this.featureNames = new ArrayList<>();
+      for (int i = 0; i < structure.classIndex(); i++) {
+        featureNames.add(structure.attribute(i).name());
+      }
+      this.className = structure.classAttribute().name();
+      this.classValues = new ArrayList<>();
+      for (int i = 0; i < structure.classAttribute().numValues(); i++) {
+        classValues.add(structure.classAttribute().value(i));
+      }
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    }
+
+    /**
+     * @param instances {@link Instance}s with the same attributes as the structure given to the
+     *        constructor.
+     * @throws IOException
+     */
+    public synchronized void write(List<Instance> instances) throws IOException {
+      for (Instance instance : instances) {
+        for (int i = 0; i < featureNames.size(); i++) {
+          out.writeFloat(instance.isMissing(i) ? Float.NaN : (float) instance.value(i));
+        }
+        int classIndex = featureNames.size();
+        out.writeFloat(instance.isMissing(classIndex) ? MISSING_CLASS : (float) instance
+            .value(classIndex));
+        numRows++;
+      }
+    }
+
+    /**
+     * Transpose the rows that have been written into columns and write the store.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      out.close();
+      try {
+        // Create the header
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(VERSION);
+        header.writeInt(numRows);
+        writeStrings(header, featureNames);
+        header.writeUTF(className);
+        writeStrings(header, classValues);
+        header.flush();
+
+        try (FileChannel rows = FileChannel.open(tmp.toPath(), StandardOpenOption.READ);
+            FileChannel store =
+                FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          ByteBuffer prefix = ByteBuffer.allocate(2 * Integer.BYTES);
+          prefix.putInt(MAGIC).putInt(bytes.size()).flip();
+          store.write(prefix, 0);
+          store.write(ByteBuffer.wrap(bytes.toByteArray()), prefix.capacity());
+          transpose(rows, store, prefix.capacity() + bytes.size());
+        }
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    }
+
+    /**
+     * @param rows the channel for the temporary file of rows.
+     * @param store the channel for the store.
+     * @param start the position in {@code store} where the first column starts.
+     * @throws IOException
+     */
+    private void transpose(FileChannel rows, FileChannel store, long start) throws IOException {
+      int width = featureNames.size() + 1;
+      long rowBytes = (long) width * FLOAT_BYTES;
+      long classStart = start + (long) featureNames.size() * numRows * FLOAT_BYTES;
+
+      for (int first = 0; first < numRows; first += BLOCK_ROWS) {
+        int blockRows = Math.min(BLOCK_ROWS, numRows - first);
+        FloatBuffer block =
+            rows.map(FileChannel.MapMode.READ_ONLY, first * rowBytes, blockRows * rowBytes)
+                .asFloatBuffer();
+
+        // Write the part of each column in the block
+        ByteBuffer column = ByteBuffer.allocate(blockRows * FLOAT_BYTES);
+        for (int feature = 0; feature < featureNames.size(); feature++) {
+          column.clear();
+          for (int row = 0; row < blockRows; row++) {
+            column.putFloat(block.get(row * width + feature));
+          }
+          column.flip();
+          long position = start + ((long) feature * numRows + first) * FLOAT_BYTES;
+          while (column.hasRemaining()) {
+            position += store.write(column, position);
+          }
+        }
+
+        // Write the part of the class column in the block
+        ByteBuffer classes = ByteBuffer.allocate(blockRows);
+        for (int row = 0; row < blockRows; row++) {
+          classes.put((byte) block.get(row * width + featureNames.size()));
+        }
+        classes.flip();
+        long position = classStart + first;
+        while (classes.hasRemaining()) {
+          position += store.write(classes, position);
+        }
+      }
+    }
+
+  }
+
+}
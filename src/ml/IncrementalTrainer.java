@@ -0,0 +1,349 @@
+package ml;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Query;
+import org.opencv.core.Core;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Training;
+import core.Lungs;
+import model.CTStack;
+import model.ROI;
+import model.ROIQueries;
+import util.ConfigHelper;
+import util.LungsException;
+import util.Metrics;
+import util.MongoHelper;
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ * Used to update an {@link UpdateableClassifier} as new labelled {@link ROI}s are produced, rather
+ * than rebuilding it from the arff files. {@link ROI}s are published to a queue by
+ * {@link ROIGenerator} or {@link FeatureEngine} and added to the classifier by a single updater
+ * thread. A snapshot of the classifier is written to the model file every {@code snapshotInterval}
+ * updates, and whenever the queue is idle, using {@link ModelRegistry#write(Classifier, File)} so
+ * that a {@link ModelRegistry} can pick it up without ever seeing a partially written model.
+ *
+ * Only {@link ROI}s in the {@link ROI.Set#TRAIN} set with a classification are used. As the
+ * nodules can't be oversampled in advance, as {@link ArffGenerator} does, each nodule is weighted
+ * by the ratio of non-nodules to nodules seen so far instead, including those the classifier was
+ * trained on before the trainer was created.
+ *
+ * @author Stuart Clark
+ */
+public class IncrementalTrainer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalTrainer.class);
+
+  /**
+   * The time in milliseconds the queue must be empty for before a snapshot is taken.
+   */
+  private static final long IDLE_TIME = 1000;
+
+  /**
+   * The name of the gauge for the number of ROIs waiting in the queue see {@link Metrics}.
+   */
+  private static final String QUEUE_GAUGE = "training.queue";
+
+  private final Classifier classifier;
+  private final Instances structure;
+  private final Function<ROI, Instance> toInstance;
+  private final File modelFile;
+  private final int snapshotInterval;
+  private final BlockingQueue<ROI> queue;
+  private final Thread updater;
+  private volatile boolean closed;
+
+  /**
+   * The number of each class the classifier has been trained on. Only accessed by the updater
+   * thread, or by the closing thread once the updater has stopped.
+   */
+  private long nodules;
+  private long nonNodules;
+  private long pending;
+
+  private final LongAdder updates;
+  private final LongAdder snapshots;
+  private final LongAdder failures;
+
+  /**
+   * @param classifier an {@link UpdateableClassifier} that has been built on {@code structure}.
+   * @param structure the structure of the {@link Instance}s used to update the {@code classifier}.
+   * @param toInstance used to create an {@link Instance} for an {@link ROI}.
+   * @param modelFile the file that snapshots of the {@code classifier} are written to.
+   * @param queueSize the number of {@link ROI}s that can wait before publishers are blocked.
+   * @param snapshotInterval the number of updates between snapshots.
+   */
+  public IncrementalTrainer(Classifier classifier, Instances structure,
+      Function<ROI, Instance> toInstance, File modelFile, int queueSize, int snapshotInterval) {
+    this(classifier, structure, toInstance, modelFile, queueSize, snapshotInterval, 0, 0);
+  }
+
+  /**
+   * @param nodules the number of nodules the {@code classifier} has already been trained on.
+   * @param nonNodules the number of non-nodules the {@code classifier} has already been trained on.
+   */
+  public IncrementalTrainer(Classifier classifier, Instances structure,
+      Function<ROI, Instance> toInstance, File modelFile, int queueSize, int snapshotInterval,
+      long nodules, long nonNodules) {
+    if (!(classifier instanceof UpdateableClassifier)) {
+      throw new IllegalArgumentException(classifier.getClass().getName()
+          + " is not an UpdateableClassifier");
+    }
+    this.classifier = classifier;
+    this.structure = structure;
+    this.toInstance = toInstance;
+    this.modelFile = modelFile;
+    this.snapshotInterval = snapshotInterval;
+    this.nodules = nodules;
+    this.nonNodules = nonNodules;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.updates = new LongAdder();
+    this.snapshots = new LongAdder();
+    this.failures = new LongAdder();
+    Metrics.gauge(QUEUE_GAUGE, queue::size);
+    this.updater = new Thread(this::update, "incremental-trainer");
+    this.updater.setDaemon(true);
+    this.updater.start();
+  }
+
+  /**
+   * @return a trainer that continues from the model in {@link Lungs#getModelFile()}, or from a new
+   *         classifier if there isn't one yet, configured using {@link Training}.
+   * @throws LungsException if the existing model could not be read.
+   */
+  public static IncrementalTrainer create() throws LungsException {
+    return create(Collections.emptyList());
+  }
+
+  /**
+   * When continuing from an existing model, the {@link ROI}s in the database are assumed to be the
+   * ones it was trained on and are counted so that nodules are weighted against all of the training
+   * data rather than just the new {@link ROI}s.
+   *
+   * @param regenerated the seriesInstanceUIDs of the stacks whose {@link ROI}s are about to be
+   *        regenerated, their existing {@link ROI}s are not counted.
+   * @return a trainer that continues from the model in {@link Lungs#getModelFile()}, or from a new
+   *         classifier if there isn't one yet, configured using {@link Training}.
+   * @throws LungsException if the existing model could not be read.
+   */
+  public static IncrementalTrainer create(Collection<String> regenerated) throws LungsException {
+    InstancesBuilder builder = new InstancesBuilder(true);
+    Instances structure = builder.createSet("Incremental Training Set", 0);
+    File modelFile = Lungs.getModelFile();
+
+    Classifier classifier;
+    long nodules = 0;
+    long nonNodules = 0;
+    try {
+      if (modelFile.exists()) {
+        classifier = (Classifier) SerializationHelper.read(modelFile.getPath());
+        nodules = countTraining(ROI.Class.NODULE, regenerated);
+        nonNodules = countTraining(ROI.Class.NON_NODULE, regenerated);
+        LOGGER.info("Continuing training from " + modelFile + " trained on " + nodules
+            + " NODULES and " + nonNodules + " NON_NODULES");
+      } else {
+        classifier = Lungs.newClassifier();
+        classifier.buildClassifier(structure);
+      }
+    } catch (Exception e) {
+      throw new LungsException("Failed to create classifier to train", e);
+    }
+
+    return new IncrementalTrainer(classifier, structure, builder::createInstance, modelFile,
+        ConfigHelper.getInt(Training.QUEUE_SIZE), ConfigHelper.getInt(Training.SNAPSHOT_INTERVAL),
+        nodules, nonNodules);
+  }
+
+  /**
+   * @param classification
+   * @param excluded the seriesInstanceUIDs of the stacks not to count.
+   * @return the number of {@link ROI}s in the {@link ROI.Set#TRAIN} set with the
+   *         {@code classification}.
+   */
+  private static long countTraining(ROI.Class classification, Collection<String> excluded) {
+    Query<ROI> query =
+        MongoHelper.getDataStore().createQuery(ROI.class).field(ROIQueries.SET)
+            .equal(ROI.Set.TRAIN).field(ROIQueries.CLASS).equal(classification);
+    if (!excluded.isEmpty()) {
+      query.field("seriesInstanceUID").notIn(excluded);
+    }
+    return query.count();
+  }
+
+  /**
+   * Queue the {@code roi} to be added to the classifier, blocking if the queue is full.
+   * {@link ROI}s that are not labelled members of the training set are ignored.
+   *
+   * @param roi an {@link ROI} with all of its features computed.
+   * @throws LungsException if the trainer has been closed or the thread is interrupted.
+   */
+  public void publish(ROI roi) throws LungsException {
+    if (closed) {
+      throw new LungsException("IncrementalTrainer has been closed");
+    }
+    if (roi.getSet() != ROI.Set.TRAIN || roi.getClassification() == null) {
+      return;
+    }
+
+    try {
+      queue.put(roi);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LungsException("Interrupted while publishing ROI", e);
+    }
+  }
+
+  /**
+   * Add all of the published {@link ROI}s to the classifier, write a final snapshot and stop the
+   * updater thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      updater.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted while waiting for updater to finish", e);
+      return;
+    }
+
+    Metrics.removeGauge(QUEUE_GAUGE);
+
+    // Any ROIs published while the updater was stopping
+    ROI roi;
+    while ((roi = queue.poll()) != null) {
+      add(roi);
+    }
+    if (pending > 0) {
+      snapshot();
+    }
+
+    LOGGER.info("IncrementalTrainer finished with " + updates.sum() + " updates (" + nodules
+        + " NODULES, " + nonNodules + " NON_NODULES), " + snapshots.sum() + " snapshots and "
+        + failures.sum() + " failures");
+  }
+
+  /**
+   * Run by the updater thread until the trainer is closed and the queue is empty.
+   */
+  private void update() {
+    try {
+      while (true) {
+        ROI roi = queue.poll(IDLE_TIME, TimeUnit.MILLISECONDS);
+        if (roi == null) {
+          if (pending > 0) {
+            snapshot();
+          }
+          if (closed) {
+            return;
+          }
+        } else {
+          add(roi);
+          if (pending >= snapshotInterval) {
+            snapshot();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.error("IncrementalTrainer interrupted", e);
+    }
+  }
+
+  /**
+   * @param roi the {@link ROI} to add to the classifier.
+   */
+  private void add(ROI roi) {
+    try {
+      Instance instance = toInstance.apply(roi);
+      instance.setDataset(structure);
+      if (roi.getClassification() == ROI.Class.NODULE) {
+        nodules++;
+        instance.setWeight(Math.max(1.0, (double) nonNodules / nodules));
+      } else {
+        nonNodules++;
+      }
+      ((UpdateableClassifier) classifier).updateClassifier(instance);
+      updates.increment();
+      pending++;
+    } catch (Exception e) {
+      failures.increment();
+      LOGGER.error("Failed to update classifier with ROI with id: " + roi.getId(), e);
+    }
+  }
+
+  /**
+   * Write the classifier to the model file.
+   */
+  private void snapshot() {
+    try {
+      ModelRegistry.write(classifier, modelFile);
+      snapshots.increment();
+      pending = 0;
+      LOGGER.info("Written snapshot of classifier after " + updates.sum() + " updates");
+    } catch (Exception e) {
+      failures.increment();
+      LOGGER.error("Failed to write snapshot to " + modelFile, e);
+    }
+  }
+
+  /**
+   * @return the number of {@link ROI}s that have been added to the classifier.
+   */
+  public long getUpdates() {
+    return updates.sum();
+  }
+
+  /**
+   * @return the number of snapshots that have been written.
+   */
+  public long getSnapshots() {
+    return snapshots.sum();
+  }
+
+  /**
+   * Generates the {@link ROI}s, with their features, for the stacks with the series instance UIDs
+   * given as arguments and adds them to the existing model as they are produced.
+   *
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    Datastore ds = MongoHelper.getDataStore();
+    List<String> uids = Arrays.asList(args);
+    List<CTStack> stacks =
+        ds.createQuery(CTStack.class).field("seriesInstanceUID").in(uids).asList();
+
+    // The existing ROIs of the stacks are replaced so they are not counted as trained on
+    ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try (IncrementalTrainer trainer = create(uids)) {
+      ROIGenerator generator = new ROIGenerator(es);
+      generator.setTrainer(trainer);
+      generator.generate(stacks);
+    } finally {
+      es.shutdown();
+    }
+  }
+
+}
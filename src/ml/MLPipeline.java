@@ -10,6 +10,8 @@ import org.opencv.core.Core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import util.Metrics;
+
 /**
  * Used to run all the code required to produce arff files that can be used by
  * {@link weka.classifiers.Classifier}s.
@@ -26,6 +28,7 @@ public class MLPipeline {
 
   public static void main(String[] args) throws Exception {
     System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    Metrics.start();
 
     LOGGER.info("Running MLPipeLine");
     long start = System.currentTimeMillis();
@@ -44,6 +47,7 @@ public class MLPipeline {
     LOGGER.info("ArffGenerator finished, Time elapsed: " + elapsedTime(start));
 
     LOGGER.info("MLPipeLine complete, Time elapsed: " + elapsedTime(start));
+    LOGGER.info("Metrics:\n" + Metrics.report());
   }
 
 }
@@ -0,0 +1,317 @@
+package ml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import model.ROI;
+import util.FileUtils;
+import util.LungsException;
+import util.Metrics;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.BatchPredictor;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+/**
+ * Holds the classifier model stored in a file so that it is only deserialised once, rather than
+ * every time it is used. Weka classifiers are not guaranteed to be thread safe so each thread is
+ * given its own copy of the model see {@link ModelRegistry#classifier()}.
+ *
+ * The file is checked for changes at most once every {@code checkInterval} milliseconds and the
+ * model is reloaded if it has changed. Threads that are using the old model carry on using it and
+ * pick up the new model the next time they ask for one.
+ *
+ * @author Stuart Clark
+ */
+public class ModelRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ModelRegistry.class);
+  private static final long CHECK_INTERVAL = 1000;
+
+  /**
+   * The time taken to classify each batch of instances and the number of instances classified.
+   */
+  private static final Metrics.Timer CLASSIFY_TIMER = Metrics.timer("classify.batch");
+  private static final Metrics.Counter CLASSIFIED = Metrics.counter("classify.instances");
+
+  /**
+   * The registries for each of the model files, keyed by their absolute paths.
+   */
+  private static final Map<String, ModelRegistry> REGISTRIES = new ConcurrentHashMap<>();
+
+  private final File file;
+  private final long checkInterval;
+
+  /**
+   * Used to create instances for the {@link ROI}s that are scored, created when it is first needed.
+   */
+  private volatile InstancesBuilder iBuilder;
+
+  /**
+   * The model currently in use, replaced whenever the file changes.
+   */
+  private volatile Model model;
+
+  /**
+   * The last time in milliseconds that the file was checked for changes.
+   */
+  private volatile long lastCheck;
+
+  /**
+   * @param file the file containing the serialised model.
+   * @param checkInterval the minimum time in milliseconds between checks for changes to the file.
+   */
+  ModelRegistry(File file, long checkInterval) {
+    this.file = file;
+    this.checkInterval = checkInterval;
+  }
+
+  /**
+   * @param path the path of the file containing the serialised model.
+   * @return the registry for the model stored at {@code path}.
+   */
+  public static ModelRegistry get(String path) {
+    File file = new File(path).getAbsoluteFile();
+    return REGISTRIES.computeIfAbsent(file.getPath(), p -> new ModelRegistry(file, CHECK_INTERVAL));
+  }
+
+  /**
+   * @return the copy of the current model for the calling thread. The same copy is returned on each
+   *         call from the same thread until the model is reloaded.
+   * @throws LungsException if the model could not be loaded or copied.
+   */
+  public Classifier classifier() throws LungsException {
+    return current().copy();
+  }
+
+  /**
+   * @return the version of the current model, incremented every time the model is reloaded.
+   * @throws LungsException if the model could not be loaded.
+   */
+  public long version() throws LungsException {
+    return current().version;
+  }
+
+  /**
+   * @param rois {@link ROI}s that have had all of their features computed.
+   * @return the probability that each of the {@code rois} is a {@link ROI.Class#NODULE}, along with
+   *         the version of the model that scored them.
+   * @throws LungsException if the {@code rois} could not be scored.
+   */
+  public Scores score(List<ROI> rois) throws LungsException {
+    Instances instances = instances(rois);
+    int nodule = instances.classAttribute().indexOfValue(ROI.Class.NODULE.name());
+    Model model = current();
+    double[][] distributions = distributions(model, instances);
+
+    double[] scores = new double[distributions.length];
+    for (int i = 0; i < distributions.length; i++) {
+      scores[i] = distributions[i][nodule];
+    }
+    return new Scores(scores, model.version);
+  }
+
+  /**
+   * @param rois {@link ROI}s that have had all of their features computed.
+   * @return the most likely {@link ROI.Class} for each of the {@code rois}.
+   * @throws LungsException if the {@code rois} could not be classified.
+   */
+  public List<ROI.Class> classify(List<ROI> rois) throws LungsException {
+    Instances instances = instances(rois);
+    double[][] distributions = distributions(current(), instances);
+
+    List<ROI.Class> classes = new ArrayList<>(distributions.length);
+    for (double[] distribution : distributions) {
+      String value = instances.classAttribute().value(Utils.maxIndex(distribution));
+      classes.add(ROI.Class.valueOf(value));
+    }
+    return classes;
+  }
+
+  private Instances instances(List<ROI> rois) {
+    if (iBuilder == null) {
+      synchronized (this) {
+        if (iBuilder == null) {
+          iBuilder = new InstancesBuilder(false);
+        }
+      }
+    }
+
+    Instances instances = iBuilder.createSet("Scored Instances", rois.size());
+    for (ROI roi : rois) {
+      instances.add(iBuilder.createInstance(roi));
+    }
+    return instances;
+  }
+
+  private static double[][] distributions(Model model, Instances instances)
+      throws LungsException {
+    try {
+      return distributions(model.copy(), instances);
+    } catch (LungsException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new LungsException("Failed to classify instances", e);
+    }
+  }
+
+  /**
+   * @param classifier
+   * @param instances
+   * @return the class distribution for each of the {@code instances}. Uses
+   *         {@link BatchPredictor#distributionsForInstances(Instances)} if the {@code classifier}
+   *         implements it more efficiently than classifying one instance at a time.
+   * @throws Exception
+   */
+  public static double[][] distributions(Classifier classifier, Instances instances)
+      throws Exception {
+    long start = CLASSIFY_TIMER.start();
+    CLASSIFIED.add(instances.size());
+    try {
+      if (classifier instanceof BatchPredictor
+          && ((BatchPredictor) classifier).implementsMoreEfficientBatchPrediction()) {
+        return ((BatchPredictor) classifier).distributionsForInstances(instances);
+      }
+
+      double[][] distributions = new double[instances.size()][];
+      for (int i = 0; i < instances.size(); i++) {
+        distributions[i] = classifier.distributionForInstance(instances.get(i));
+      }
+      return distributions;
+    } finally {
+      CLASSIFY_TIMER.stop(start);
+    }
+  }
+
+  /**
+   * Write the {@code classifier} to {@code file}. The model is written to a temporary file which
+   * then replaces {@code file}, so a registry can never load a partially written model.
+   *
+   * @param classifier
+   * @param file
+   * @throws Exception
+   */
+  public static void write(Classifier classifier, File file) throws Exception {
+    FileUtils.writeAtomically(file.toPath(),
+        tmp -> SerializationHelper.write(tmp.toString(), classifier));
+  }
+
+  /**
+   * @return the current model, loading it first if it has never been loaded or if the file has
+   *         changed since it was.
+   * @throws LungsException if the model has never been loaded and could not be.
+   */
+  private Model current() throws LungsException {
+    Model current = model;
+    long now = System.currentTimeMillis();
+    if (current != null && now - lastCheck < checkInterval) {
+      return current;
+    }
+
+    synchronized (this) {
+      current = model;
+      if (current != null && now - lastCheck < checkInterval) {
+        return current;
+      }
+      lastCheck = now;
+
+      long lastModified = file.lastModified();
+      long length = file.length();
+      if (current != null && current.lastModified == lastModified && current.length == length) {
+        return current;
+      }
+
+      try {
+        LOGGER.info("Loading model from " + file);
+        Classifier classifier = (Classifier) SerializationHelper.read(file.getPath());
+        long version = current == null ? 1 : current.version + 1;
+        model = new Model(classifier, version, lastModified, length);
+        return model;
+      } catch (Exception e) {
+        // Carry on with the old model e.g. if the file is still being written
+        if (current != null) {
+          LOGGER.error("Failed to reload model from " + file + " using version " + current.version,
+              e);
+          return current;
+        }
+        throw new LungsException("Failed to load model from " + file, e);
+      }
+    }
+  }
+
+  /**
+   * The scores given to a list of {@link ROI}s by {@link ModelRegistry#score(List)}.
+   */
+  public static class Scores {
+
+    private final double[] scores;
+    private final long version;
+
+    Scores(double[] scores, long version) {
+      this.scores = scores;
+      this.version = version;
+    }
+
+    /**
+     * @return the probability that each of the {@link ROI}s is a {@link ROI.Class#NODULE}.
+     */
+    public double[] getScores() {
+      return scores;
+    }
+
+    /**
+     * @return the version of the model that gave the scores.
+     */
+    public long getVersion() {
+      return version;
+    }
+
+  }
+
+  /**
+   * A single version of the model and the copies of it held by each thread.
+   */
+  private static class Model {
+
+    private final Classifier classifier;
+    private final long version;
+    private final long lastModified;
+    private final long length;
+    private final ThreadLocal<Classifier> copies;
+
+    Model(Classifier classifier, long version, long lastModified, long length) {
+      this.classifier = classifier;
+      this.version = version;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.copies = new ThreadLocal<>();
+    }
+
+    /**
+     * @return the copy of the model for the calling thread.
+     * @throws LungsException if the model could not be copied.
+     */
+    Classifier copy() throws LungsException {
+      Classifier copy = copies.get();
+      if (copy == null) {
+        try {
+          copy = AbstractClassifier.makeCopy(classifier);
+        } catch (Exception e) {
+          throw new LungsException("Failed to copy model version " + version, e);
+        }
+        copies.set(copy);
+      }
+      return copy;
+    }
+
+  }
+
+}
@@ -1,18 +1,17 @@
 package ml;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.query.Query;
+import org.mongodb.morphia.query.UpdateOperations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import config.Misc;
 import model.ROI;
+import model.ROIQueries;
 import util.ConfigHelper;
 import util.FutureMonitor;
 import util.MongoHelper;
@@ -26,6 +25,8 @@ public class ROIClassifier {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ROIClassifier.class);
   private static final int LOG_INTERVAL = 1000;
+  private static final String ID = "_id";
+  private static final String MATCH_THRESHOLD = "matchThreshold";
 
   private final double matchThreshold;
 
@@ -42,16 +43,21 @@ public class ROIClassifier {
     ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
     Datastore ds = MongoHelper.getDataStore();
 
-    // Create futures that classify ROIs
-    Query<ROI> query = ds.createQuery(ROI.class);
+    // Create futures that classify ROIs, only the match scores are needed so the ROIs are updated
+    // rather than saved
+    Query<ROI> query = ROIQueries.project(ds.createQuery(ROI.class), ROIQueries.MATCH_SCORE);
     int numROI = (int) query.count();
-    List<Future> futures = new ArrayList<>(numROI);
+    FutureMonitor monitor = new FutureMonitor(es);
     int counter = 0;
-    for (ROI roi : query) {
-      futures.add(es.submit(() -> {
+    for (ROI roi : query.fetch(MongoHelper.findOptions())) {
+      monitor.submit(() -> {
         classify(roi);
-        ds.save(roi);
-      }));
+        UpdateOperations<ROI> update =
+            ds.createUpdateOperations(ROI.class).set(ROIQueries.CLASS, roi.getClassification())
+                .set(MATCH_THRESHOLD, roi.getMatchThreshold());
+        ds.update(ds.createQuery(ROI.class).field(ID).equal(roi.getId()), update, false,
+            MongoHelper.getBulkWriteConcern());
+      });
 
       if(++counter % LOG_INTERVAL == 0){
         LOGGER.info(counter + "/" + numROI + " futures created");
@@ -59,7 +65,6 @@ public class ROIClassifier {
     }
 
     // Monitor futures
-    FutureMonitor monitor = new FutureMonitor(futures);
     monitor.setLogString("ROIs classified");
     monitor.monitor();
 
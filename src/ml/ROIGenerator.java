@@ -4,12 +4,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import org.bson.types.ObjectId;
 import org.mongodb.morphia.query.Query;
 import org.mongodb.morphia.query.UpdateOperations;
 import org.opencv.core.Core;
+import org.opencv.core.Mat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +20,7 @@ import data.Importer;
 import model.CTSlice;
 import model.CTStack;
 import model.GroundTruth;
+import model.GroundTruthRepository;
 import model.ROI;
 import util.ConfigHelper;
 import util.DataFilter;
@@ -41,13 +43,17 @@ public class ROIGenerator extends Importer<ROI> {
   private ExecutorService es;
   private final Lungs lungs;
   private final DataFilter filter;
+  private final GroundTruthRepository repository;
   private final ROIClassifier classifier;
+  private IncrementalTrainer trainer;
+  private FeatureEngine engine;
 
   public ROIGenerator(ExecutorService es) {
     super(ROI.class);
     this.es = es;
     this.lungs = Lungs.getInstance();
     this.filter = DataFilter.get();
+    this.repository = GroundTruthRepository.get();
     this.classifier = new ROIClassifier(MATCH_THRESHOLD);
   }
 
@@ -66,10 +72,28 @@ public class ROIGenerator extends Importer<ROI> {
     LOGGER.info("Generating ROIs this may take some time...");
 
     clearGtRois();
+    generate(filter.all(MongoHelper.getDataStore().createQuery(CTStack.class)));
+
+    LOGGER.info("Finished generating ROIs");
+  }
+
+  /**
+   * Extract, match and save the {@link ROI}s for each of the slices in the {@code stacks},
+   * replacing any existing {@link ROI}s for the {@code stacks}. If a trainer has been set the
+   * features for each {@link ROI} are also computed and the {@link ROI}s are published to it see
+   * {@link ROIGenerator#setTrainer(IncrementalTrainer)}.
+   *
+   * @param stacks
+   * @throws IllegalStateException if any of the {@link ROI}s could not be saved.
+   */
+  public void generate(Iterable<CTStack> stacks) {
+    List<CTStack> all = new ArrayList<>();
+    stacks.forEach(all::add);
+    clearRois(all.stream().map(CTStack::getSeriesInstanceUID).collect(Collectors.toList()));
 
     // Submit a runnable for slice that is used to extract the ROIs
-    List<Future> futures = new ArrayList<>();
-    for (CTStack stack : filter.all(MongoHelper.getDataStore().createQuery(CTStack.class))) {
+    FutureMonitor monitor = new FutureMonitor(es);
+    for (CTStack stack : all) {
 
       // Determine the set that the stack belongs too
       ROI.Set set;
@@ -80,17 +104,16 @@ public class ROIGenerator extends Importer<ROI> {
       }
 
       for (CTSlice slice : stack.getSlices()) {
-        futures.add(es.submit(() -> {
+        monitor.submit(() -> {
 
           // Get ground truths for slice
             List<GroundTruth> groundTruths =
-                filter.singleReading(
-                    ds.createQuery(GroundTruth.class).field("type")
-                        .equal(GroundTruth.Type.BIG_NODULE).field("imageSopUID")
-                        .equal(slice.getImageSopUID())).asList();
+                repository.get(slice.getSeriesInstanceUID(), slice.getImageSopUID(),
+                    GroundTruth.Type.BIG_NODULE, filter.getReadingNumber());
 
             // Create ROIs and save them
-            List<ROI> rois = lungs.extractRois(MatUtils.getSliceMat(slice));
+            Mat mat = MatUtils.getSliceMat(slice);
+            List<ROI> rois = lungs.extractRois(mat);
 
             // Set ROI fields
             for (ROI roi : rois) {
@@ -98,23 +121,43 @@ public class ROIGenerator extends Importer<ROI> {
               roi.setSeriesInstanceUID(slice.getSeriesInstanceUID());
               roi.setSet(set);
               match(roi, groundTruths);
+              if (trainer != null) {
+                engine.computeAllFeatures(roi, mat);
+              }
             }
 
-            // Save updated rois and ground truths
-            ds.save(rois);
-            ds.save(groundTruths);
-          }));
+            // Save updated rois and ground truths while the next slice is processed
+            MongoHelper.runAsync(() -> {
+              ds.save(rois, MongoHelper.bulkInsertOptions());
+              ds.save(groundTruths, MongoHelper.bulkInsertOptions());
+            });
+
+            // Add the labelled ROIs to the classifier
+            if (trainer != null) {
+              for (ROI roi : rois) {
+                trainer.publish(roi);
+              }
+            }
+            return null;
+          });
       }
     }
 
     // Monitor the progress of the Futures
-    FutureMonitor monitor = new FutureMonitor(futures);
     monitor.setLogString("slices have had ROIs extracted");
     monitor.monitor();
+    MongoHelper.awaitAsync();
 
     lungs.logStats();
+  }
 
-    LOGGER.info("Finished generating ROIs");
+  /**
+   * @param trainer the trainer that the {@link ROI}s are published to once they have been
+   *        generated, their features are computed when they are generated so that they can be.
+   */
+  public void setTrainer(IncrementalTrainer trainer) {
+    this.trainer = trainer;
+    this.engine = new FeatureEngine();
   }
 
   /**
@@ -126,6 +169,28 @@ public class ROIGenerator extends Importer<ROI> {
         ds.createUpdateOperations(GroundTruth.class).set("rois", new ArrayList<>());
     Query<GroundTruth> query = ds.createQuery(GroundTruth.class);
     ds.update(query, updateOperation);
+    repository.clear();
+  }
+
+  /**
+   * Remove the existing {@link ROI}s for the stacks and unmatch their {@link GroundTruth}s, so that
+   * generating the {@link ROI}s again does not duplicate them.
+   *
+   * @param seriesUIDs the seriesInstanceUIDs of the stacks.
+   */
+  private void clearRois(List<String> seriesUIDs) {
+    if (seriesUIDs.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Removing existing ROIs for " + seriesUIDs.size() + " stacks...");
+    ds.delete(ds.createQuery(ROI.class).field("seriesInstanceUID").in(seriesUIDs));
+    UpdateOperations<GroundTruth> updateOperation =
+        ds.createUpdateOperations(GroundTruth.class).set("rois", new ArrayList<>())
+            .set("matchedToRoi", false);
+    ds.update(ds.createQuery(GroundTruth.class).field("seriesInstanceUID").in(seriesUIDs),
+        updateOperation);
+    // The cached ground truths still refer to the removed ROIs
+    repository.clear();
   }
 
   /**
@@ -0,0 +1,197 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.LatencyHistogram;
+import util.LungsException;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.AggregateableEvaluation;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Used to evaluate a {@link Classifier} on a stream of {@link Instance}s in a single pass. The
+ * {@link Instance}s are scored in batches on a pool of threads, each with its own copy of the
+ * {@link Classifier}, and the {@link Evaluation} of each batch is merged into the result. The
+ * predictions are kept so that the ROC curves can be computed.
+ *
+ * @author Stuart Clark
+ */
+public class StreamingEvaluator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamingEvaluator.class);
+
+  private static final int LOG_INTERVAL = 50000;
+
+  private final Classifier classifier;
+  private final int threads;
+  private final int batchSize;
+
+  /**
+   * @param classifier the trained classifier to evaluate, it is copied for each thread.
+   * @param threads the number of threads to score batches on, 0 to use one per processor.
+   * @param batchSize the number of {@link Instance}s scored at a time.
+   */
+  public StreamingEvaluator(Classifier classifier, int threads, int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be at least 1");
+    }
+    this.classifier = classifier;
+    this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param header the structure of the {@code instances} with the class index set.
+   * @param instances the {@link Instance}s to evaluate, only iterated over once.
+   * @return the evaluation of the {@code instances}.
+   * @throws LungsException if the {@code instances} could not be evaluated.
+   */
+  public Result evaluate(Instances header, Iterable<Instance> instances) throws LungsException {
+    long start = System.nanoTime();
+    LatencyHistogram latency = new LatencyHistogram();
+
+    // Each thread scores with its own copy of the classifier
+    ThreadLocal<Classifier> copies = ThreadLocal.withInitial(() -> {
+      try {
+        return AbstractClassifier.makeCopy(classifier);
+      } catch (Exception e) {
+        throw new IllegalStateException("Failed to copy classifier", e);
+      }
+    });
+
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    try {
+      // Only allow a few batches to wait for a thread so that they are not all held in memory
+      Semaphore waiting = new Semaphore(threads * 2);
+      List<Future<Evaluation>> futures = new ArrayList<>();
+      long counter = 0;
+      Instances batch = new Instances(header, batchSize);
+      for (Instance instance : instances) {
+        batch.add(instance);
+        if (batch.size() == batchSize) {
+          futures.add(submit(es, waiting, copies, batch, latency));
+          batch = new Instances(header, batchSize);
+        }
+
+        if (++counter % LOG_INTERVAL == 0) {
+          LOGGER.info(counter + " instances have been read");
+        }
+      }
+      if (!batch.isEmpty()) {
+        futures.add(submit(es, waiting, copies, batch, latency));
+      }
+
+      // Merge the evaluations of the batches
+      AggregateableEvaluation eval = new AggregateableEvaluation(header);
+      for (Future<Evaluation> future : futures) {
+        eval.aggregate(future.get());
+      }
+
+      return new Result(eval, latency, System.nanoTime() - start);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LungsException("Interrupted while evaluating classifier", e);
+    } catch (ExecutionException e) {
+      throw new LungsException("Failed to evaluate batch", e.getCause());
+    } catch (Exception e) {
+      throw new LungsException("Failed to evaluate classifier", e);
+    } finally {
+      es.shutdownNow();
+    }
+  }
+
+  /**
+   * Submit a task that scores the {@code batch} and records the time taken in {@code latency}.
+   *
+   * @return the future for the evaluation of the {@code batch}.
+   * @throws InterruptedException if interrupted while waiting for a thread.
+   */
+  private Future<Evaluation> submit(ExecutorService es, Semaphore waiting,
+      ThreadLocal<Classifier> copies, Instances batch, LatencyHistogram latency)
+      throws InterruptedException {
+    waiting.acquire();
+    return es.submit(() -> {
+      try {
+        long start = System.nanoTime();
+        double[][] distributions = ModelRegistry.distributions(copies.get(), batch);
+        Evaluation eval = new Evaluation(batch);
+        for (int i = 0; i < batch.size(); i++) {
+          eval.evaluationForSingleInstance(distributions[i], batch.get(i), true);
+        }
+        latency.recordSince(start);
+        return eval;
+      } finally {
+        waiting.release();
+      }
+    });
+  }
+
+  /**
+   * The evaluation of a stream of {@link Instance}s and the time taken to produce it.
+   */
+  public static class Result {
+
+    private final Evaluation eval;
+    private final LatencyHistogram latency;
+    private final long wallTime;
+
+    Result(Evaluation eval, LatencyHistogram latency, long wallTime) {
+      this.eval = eval;
+      this.latency = latency;
+      this.wallTime = wallTime;
+    }
+
+    /**
+     * @return the evaluation merged from all of the batches.
+     */
+    public Evaluation getEvaluation() {
+      return eval;
+    }
+
+    /**
+     * @return the time taken to score each batch.
+     */
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    /**
+     * @return the time taken to evaluate all of the instances in nanoseconds.
+     */
+    public long getWallTime() {
+      return wallTime;
+    }
+
+    /**
+     * @return the precision, recall and area under the ROC curve for each class and the timings.
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      Instances header = eval.getHeader();
+      for (int i = 0; i < header.numClasses(); i++) {
+        sb.append(String.format("%s: precision %.4f, recall %.4f, AUC %.4f\n",
+            header.classAttribute().value(i), eval.precision(i), eval.recall(i),
+            eval.areaUnderROC(i)));
+      }
+      double seconds = LatencyHistogram.millis(wallTime) / 1000;
+      sb.append(String.format("%.0f instances in %.2fs (%.0f/s), batches: %s", eval.numInstances(),
+          seconds, seconds == 0 ? 0 : eval.numInstances() / seconds, latency.summary()));
+      return sb.toString();
+    }
+
+  }
+
+}
@@ -0,0 +1,440 @@
+package ml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Training;
+import model.ROI;
+import util.ConfigHelper;
+import util.LatencyHistogram;
+import util.LungsException;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.AggregateableEvaluation;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Used to compare candidate classifiers using k-fold cross validation on a {@link FeatureStore}.
+ * Every fold of every candidate is trained and evaluated on a pool of threads, all reading from the
+ * same memory mapped {@link FeatureStore}. The nodules in each training fold are oversampled in the
+ * same way as {@link ArffGenerator} does for the training set.
+ *
+ * {@link UpdateableClassifier}s are trained by streaming the rows of the training fold from the
+ * store, so the fold is never held in memory. Other classifiers need the whole fold as
+ * {@link Instances}, with every oversampled row copied, so the number of those trained at once is
+ * limited so that their folds fit in the given amount of memory.
+ *
+ * Candidates are given as specs, the class name of the classifier followed by its options e.g.
+ * {@code "weka.classifiers.trees.J48 -C 0.25"}.
+ *
+ * @author Stuart Clark
+ */
+public class TrainingHarness {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TrainingHarness.class);
+
+  /**
+   * The specs evaluated when none are given to {@link TrainingHarness#main(String[])}.
+   */
+  private static final String[] DEFAULT_SPECS = {"weka.classifiers.bayes.NaiveBayesUpdateable",
+      "weka.classifiers.trees.J48", "weka.classifiers.trees.RandomForest",
+      "weka.classifiers.functions.Logistic"};
+
+  /**
+   * The approximate number of bytes used by an {@link Instance} in addition to its values.
+   */
+  private static final long INSTANCE_OVERHEAD = 64;
+
+  private static final long BYTES_PER_MB = 1 << 20;
+
+  private final FeatureStore store;
+  private final int folds;
+  private final int threads;
+  private final long seed;
+  private final long memory;
+
+  /**
+   * Creates a harness that allows the training folds to use the fraction of the maximum heap size
+   * given by {@link Training#MEMORY_FRACTION}.
+   *
+   * @param store the rows to cross validate with.
+   * @param folds the number of cross validation folds.
+   * @param threads the number of folds trained and evaluated at the same time.
+   * @param seed the seed used to assign the rows to folds.
+   */
+  public TrainingHarness(FeatureStore store, int folds, int threads, long seed) {
+    this(store, folds, threads, seed, (long) (Runtime.getRuntime().maxMemory() * ConfigHelper
+        .getDouble(Training.MEMORY_FRACTION)));
+  }
+
+  /**
+   * @param memory the number of bytes that the training folds of classifiers that are not
+   *        {@link UpdateableClassifier}s may use at once, at least one is always trained at a time.
+   */
+  public TrainingHarness(FeatureStore store, int folds, int threads, long seed, long memory) {
+    if (folds < 2) {
+      throw new IllegalArgumentException("There must be at least 2 folds");
+    }
+    this.store = store;
+    this.folds = folds;
+    this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.seed = seed;
+    this.memory = memory;
+  }
+
+  /**
+   * Cross validate each of the {@code specs}.
+   *
+   * @param specs the classifiers to evaluate.
+   * @return the results for each of the {@code specs}, in the same order.
+   * @throws LungsException if a spec is invalid or a fold could not be evaluated.
+   */
+  public List<Result> run(List<String> specs) throws LungsException {
+    // Check the specs before doing any work
+    for (String spec : specs) {
+      create(spec);
+    }
+
+    // Limit the number of training folds held in memory at once
+    int[][] testFolds = folds();
+    long foldBytes = foldBytes(testFolds);
+    int inMemory = (int) Math.max(1, Math.min(threads, memory / Math.max(foldBytes, 1)));
+    if (inMemory < threads) {
+      LOGGER.info("Training at most " + inMemory + " non updateable classifiers at once as each "
+          + "training fold needs about " + foldBytes / BYTES_PER_MB + "MB");
+    }
+    Semaphore permits = new Semaphore(inMemory);
+
+    // Evaluate every fold of every spec on the pool
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    List<List<Future<Fold>>> futures = new ArrayList<>();
+    for (String spec : specs) {
+      List<Future<Fold>> specFutures = new ArrayList<>();
+      for (int fold = 0; fold < folds; fold++) {
+        int index = fold;
+        specFutures.add(es.submit(() -> evaluate(spec, testFolds, index, permits)));
+      }
+      futures.add(specFutures);
+    }
+    es.shutdown();
+
+    // Aggregate the folds for each spec
+    List<Result> results = new ArrayList<>();
+    try {
+      for (int i = 0; i < specs.size(); i++) {
+        Result result = new Result(specs.get(i));
+        for (Future<Fold> future : futures.get(i)) {
+          result.add(future.get());
+        }
+        results.add(result);
+        LOGGER.info(result.toString());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LungsException("Interrupted while cross validating", e);
+    } catch (ExecutionException e) {
+      throw new LungsException("Failed to evaluate fold", e.getCause());
+    } catch (Exception e) {
+      throw new LungsException("Failed to aggregate folds", e);
+    } finally {
+      es.shutdownNow();
+    }
+
+    return results;
+  }
+
+  /**
+   * Train a classifier for the {@code spec} on all but one of the folds and evaluate it on the
+   * other. The training time of an {@link UpdateableClassifier} includes reading the rows from the
+   * store as they are streamed into it.
+   *
+   * @param spec
+   * @param testFolds the rows in each of the folds.
+   * @param fold the index of the fold to evaluate on.
+   * @param permits held while a training fold is in memory.
+   * @return the evaluation of the fold.
+   * @throws Exception
+   */
+  private Fold evaluate(String spec, int[][] testFolds, int fold, Semaphore permits)
+      throws Exception {
+    int[] trainRows = store.balanced(trainRows(testFolds, fold));
+    Instances structure = store.structure("Train " + fold);
+    Classifier classifier = create(spec);
+    Evaluation eval = new Evaluation(structure);
+
+    // Train
+    long trainTime;
+    if (classifier instanceof UpdateableClassifier) {
+      long start = System.nanoTime();
+      classifier.buildClassifier(structure);
+      for (Instance instance : store.instances(structure, trainRows)) {
+        ((UpdateableClassifier) classifier).updateClassifier(instance);
+        eval.updatePriors(instance);
+      }
+      trainTime = System.nanoTime() - start;
+    } else {
+      permits.acquire();
+      try {
+        Instances train = store.toInstances("Train " + fold, trainRows);
+        eval.setPriors(train);
+        long start = System.nanoTime();
+        classifier.buildClassifier(train);
+        trainTime = System.nanoTime() - start;
+      } finally {
+        permits.release();
+      }
+    }
+
+    // Score
+    Instances test = store.toInstances("Test " + fold, testFolds[fold]);
+    long start = System.nanoTime();
+    eval.evaluateModel(classifier, test);
+    long scoreTime = System.nanoTime() - start;
+
+    LOGGER.info("Fold " + (fold + 1) + "/" + folds + " of " + spec + " evaluated");
+    return new Fold(eval, trainTime, scoreTime, size(classifier));
+  }
+
+  /**
+   * @param testFolds the rows in each of the folds.
+   * @return the approximate number of bytes needed to hold the largest oversampled training fold as
+   *         {@link Instances}.
+   */
+  private long foldBytes(int[][] testFolds) {
+    long rows = 0;
+    for (int fold = 0; fold < testFolds.length; fold++) {
+      rows = Math.max(rows, store.balanced(trainRows(testFolds, fold)).length);
+    }
+    return rows * (INSTANCE_OVERHEAD + Double.BYTES * (store.numFeatures() + 1L));
+  }
+
+  /**
+   * @return the rows in each fold, the rows of each class are spread evenly between the folds.
+   */
+  int[][] folds() {
+    // Shuffle the rows of each class
+    Random random = new Random(seed);
+    List<List<Integer>> byClass = new ArrayList<>();
+    for (int i = 0; i <= store.getClassValues().size(); i++) {
+      byClass.add(new ArrayList<>());
+    }
+    for (int row = 0; row < store.numRows(); row++) {
+      // Rows with a missing class go in the last list
+      int index = store.classIndex(row);
+      byClass.get(index < 0 ? byClass.size() - 1 : index).add(row);
+    }
+
+    // Deal the rows out to the folds
+    List<List<Integer>> rows = new ArrayList<>();
+    for (int i = 0; i < folds; i++) {
+      rows.add(new ArrayList<>());
+    }
+    int next = 0;
+    for (List<Integer> c : byClass) {
+      Collections.shuffle(c, random);
+      for (int row : c) {
+        rows.get(next).add(row);
+        next = (next + 1) % folds;
+      }
+    }
+
+    int[][] testFolds = new int[folds][];
+    for (int i = 0; i < folds; i++) {
+      testFolds[i] = rows.get(i).stream().mapToInt(Integer::intValue).toArray();
+      Arrays.sort(testFolds[i]);
+    }
+    return testFolds;
+  }
+
+  /**
+   * @param testFolds
+   * @param fold
+   * @return the rows in all of the {@code testFolds} apart from {@code fold}.
+   */
+  private static int[] trainRows(int[][] testFolds, int fold) {
+    int size = 0;
+    for (int i = 0; i < testFolds.length; i++) {
+      size += i == fold ? 0 : testFolds[i].length;
+    }
+    int[] rows = new int[size];
+    int next = 0;
+    for (int i = 0; i < testFolds.length; i++) {
+      if (i != fold) {
+        System.arraycopy(testFolds[i], 0, rows, next, testFolds[i].length);
+        next += testFolds[i].length;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @param spec the class name of the classifier followed by its options.
+   * @return a new classifier for the {@code spec}.
+   * @throws LungsException if the {@code spec} is invalid.
+   */
+  static Classifier create(String spec) throws LungsException {
+    try {
+      String[] options = Utils.splitOptions(spec);
+      if (options.length == 0) {
+        throw new LungsException("Empty classifier spec");
+      }
+      String name = options[0];
+      options[0] = "";
+      return AbstractClassifier.forName(name, options);
+    } catch (LungsException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new LungsException("Invalid classifier spec: " + spec, e);
+    }
+  }
+
+  /**
+   * @param classifier
+   * @return the size of the {@code classifier} in bytes once serialised.
+   * @throws IOException
+   */
+  private static long size(Classifier classifier) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(classifier);
+    }
+    return bytes.size();
+  }
+
+  /**
+   * The evaluation of a single fold.
+   */
+  private static class Fold {
+
+    private final Evaluation eval;
+    private final long trainTime;
+    private final long scoreTime;
+    private final long modelSize;
+
+    Fold(Evaluation eval, long trainTime, long scoreTime, long modelSize) {
+      this.eval = eval;
+      this.trainTime = trainTime;
+      this.scoreTime = scoreTime;
+      this.modelSize = modelSize;
+    }
+
+  }
+
+  /**
+   * The results of cross validating a spec.
+   */
+  public static class Result {
+
+    private final String spec;
+    private AggregateableEvaluation eval;
+    private long trainTime;
+    private long scoreTime;
+    private long modelSize;
+    private int folds;
+
+    Result(String spec) {
+      this.spec = spec;
+    }
+
+    void add(Fold fold) throws Exception {
+      if (eval == null) {
+        eval = new AggregateableEvaluation(fold.eval);
+      }
+      eval.aggregate(fold.eval);
+      trainTime += fold.trainTime;
+      scoreTime += fold.scoreTime;
+      modelSize += fold.modelSize;
+      folds++;
+    }
+
+    public String getSpec() {
+      return spec;
+    }
+
+    /**
+     * @return the evaluation aggregated over all of the folds.
+     */
+    public Evaluation getEvaluation() {
+      return eval;
+    }
+
+    /**
+     * @return the percentage of instances correctly classified.
+     */
+    public double getAccuracy() {
+      return eval.pctCorrect();
+    }
+
+    /**
+     * @return the mean time taken to train on a fold in milliseconds.
+     */
+    public double getTrainMillis() {
+      return LatencyHistogram.millis(trainTime) / folds;
+    }
+
+    /**
+     * @return the mean time taken to score a fold in milliseconds.
+     */
+    public double getScoreMillis() {
+      return LatencyHistogram.millis(scoreTime) / folds;
+    }
+
+    /**
+     * @return the mean size of the model trained on a fold in bytes.
+     */
+    public long getModelSize() {
+      return modelSize / folds;
+    }
+
+    @Override
+    public String toString() {
+      int nodule = eval.getHeader().classAttribute().indexOfValue(ROI.Class.NODULE.name());
+      return String.format(
+          "%s: accuracy %.2f%%, NODULE AUC %.4f, precision %.4f, recall %.4f, "
+              + "train %.0fms, score %.0fms, model %d bytes", spec, getAccuracy(),
+          eval.areaUnderROC(nodule), eval.precision(nodule), eval.recall(nodule),
+          getTrainMillis(), getScoreMillis(), getModelSize());
+    }
+
+  }
+
+  /**
+   * Cross validates the classifier specs given as arguments on {@link ArffGenerator#TRAIN_STORE},
+   * or a default set of classifiers if there are none.
+   *
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    FeatureStore store = FeatureStore.open(new File(ArffGenerator.TRAIN_STORE));
+    List<String> specs = Arrays.asList(args.length > 0 ? args : DEFAULT_SPECS);
+
+    TrainingHarness harness =
+        new TrainingHarness(store, ConfigHelper.getInt(Training.FOLDS),
+            ConfigHelper.getInt(Training.THREADS), ConfigHelper.getInt(Training.SEED));
+    for (Result result : harness.run(specs)) {
+      LOGGER.info(result.getEvaluation().toSummaryString("\n" + result.getSpec() + "\n======\n",
+          false));
+    }
+  }
+
+}
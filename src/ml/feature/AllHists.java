@@ -3,6 +3,10 @@ package ml.feature;
 import static model.Histogram.POS_VALS_8BIT;
 import static model.Histogram.sturges;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 
 import model.Histogram;
@@ -50,4 +54,14 @@ public class AllHists implements Feature {
     return sturges(POS_VALS_8BIT, stats.getMax());
   }
 
+  @Override
+  public List<String> inputs() {
+    return Collections.singletonList(AREA_STATS);
+  }
+
+  @Override
+  public List<String> outputs() {
+    return Arrays.asList("fineHist", "coarseHist");
+  }
+
 }
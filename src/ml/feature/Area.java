@@ -1,5 +1,8 @@
 package ml.feature;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 
 import model.ROI;
@@ -16,4 +19,9 @@ public class Area implements Feature {
     roi.setArea(roi.getRegion().size());
   }
 
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("area");
+  }
+
 }
@@ -1,5 +1,8 @@
 package ml.feature;
 
+import java.util.Arrays;
+import java.util.List;
+
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.RotatedRect;
@@ -30,4 +33,9 @@ public class BoundingBox implements Feature {
     roi.setElongation(1 - (Math.min(width, height) / (double) Math.max(width, height)));
   }
 
+  @Override
+  public List<String> outputs() {
+    return Arrays.asList("boundingBox", "elongation");
+  }
+
 }
@@ -1,5 +1,9 @@
 package ml.feature;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 
 import model.ROI;
@@ -21,4 +25,14 @@ public class Circularity implements Feature {
     roi.setCircularity(Math.min(area, minCircleArea) / Math.max(area, minCircleArea));
   }
 
+  @Override
+  public List<String> inputs() {
+    return Arrays.asList("area", "minCircle");
+  }
+
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("circularity");
+  }
+
 }
@@ -61,4 +61,9 @@ public class Convexity implements Feature {
     roi.setConvexity(region.size() / (double) hullROI.getRegion().size());
   }
 
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("convexity");
+  }
+
 }
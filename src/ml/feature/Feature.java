@@ -1,5 +1,8 @@
 package ml.feature;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 
 import model.ROI;
@@ -8,15 +11,54 @@ import util.LungsException;
 /**
  * Should be implemented by all features.
  *
+ * Features declare the fields of the {@link ROI} that they read and write so that
+ * {@link ml.FeatureEngine} can work out the order to compute them in, which of them can be computed
+ * at the same time and which of them need recomputing when another changes. The region, contour and
+ * the {@link Mat} are always available and do not need to be declared.
+ *
  * @author Stuart Clark
  */
 public interface Feature {
 
+  /**
+   * An input for features that need the {@link model.ROIAreaStats}, which are aggregated from the
+   * areas of all of the {@link ROI}s.
+   */
+  String AREA_STATS = "areaStats";
+
   /**
    * Compute the feature and set the result as a field on {@code roi}.
-   * 
+   *
    * @param roi
    */
   void compute(ROI roi, Mat mat) throws LungsException;
 
+  /**
+   * @return the name used to record the version of the feature on each {@link ROI}.
+   */
+  default String name() {
+    return getClass().getSimpleName();
+  }
+
+  /**
+   * @return the version of the feature, should be incremented whenever the way the feature is
+   *         computed changes so that it is recomputed for every {@link ROI}.
+   */
+  default int version() {
+    return 1;
+  }
+
+  /**
+   * @return the fields of the {@link ROI} that must be computed before the feature, or
+   *         {@link Feature#AREA_STATS}.
+   */
+  default List<String> inputs() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return the fields of the {@link ROI} that the feature sets.
+   */
+  List<String> outputs();
+
 }
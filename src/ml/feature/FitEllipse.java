@@ -8,6 +8,7 @@ import org.opencv.imgproc.Imgproc;
 import model.ROI;
 import util.LungsException;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -31,4 +32,9 @@ public class FitEllipse implements Feature {
     roi.setFitEllipse(Imgproc.fitEllipse(matOfPoint));
   }
 
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("fitEllipse");
+  }
+
 }
@@ -3,6 +3,7 @@ package ml.feature;
 import static java.lang.Math.PI;
 import static java.lang.Math.pow;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.core.Mat;
@@ -30,4 +31,10 @@ public class HuCircularity implements Feature {
         1 / (2 * PI) * (pow(moments.get_m00(), 2) / (moments.get_m20() + moments.get_m02()));
     roi.setHuCircularity(circularity);
   }
+
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("huCircularity");
+  }
+
 }
@@ -4,6 +4,8 @@ import static java.lang.Math.pow;
 import static model.Histogram.sturges;
 import static util.MatUtils.get;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -143,4 +145,14 @@ public class LTP implements Feature {
     return sturges(NUM_POS_VAL, stats.getMax());
   }
 
+  @Override
+  public List<String> inputs() {
+    return Collections.singletonList(AREA_STATS);
+  }
+
+  @Override
+  public List<String> outputs() {
+    return Arrays.asList("ltpFine", "ltpCoarse");
+  }
+
 }
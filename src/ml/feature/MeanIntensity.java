@@ -1,5 +1,8 @@
 package ml.feature;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 
 import model.ROI;
@@ -17,4 +20,9 @@ public class MeanIntensity implements Feature {
     roi.setMeanIntensity(MatUtils.mean(mat, roi.getRegion()));
   }
 
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("meanIntensity");
+  }
+
 }
@@ -1,5 +1,8 @@
 package ml.feature;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
@@ -30,4 +33,9 @@ public class MinCircle implements Feature {
     roi.setMinCircle(new Circle(center, radius));
   }
 
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("minCircle");
+  }
+
 }
@@ -1,5 +1,8 @@
 package ml.feature;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.opencv.core.Mat;
 
 import model.ROI;
@@ -17,4 +20,9 @@ public class Perimeter implements Feature {
     roi.setPerimLength(roi.getContour().size());
   }
 
+  @Override
+  public List<String> outputs() {
+    return Collections.singletonList("perimLength");
+  }
+
 }
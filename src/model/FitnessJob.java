@@ -0,0 +1,150 @@
+package model;
+
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Indexed;
+
+/**
+ * A request for the fitness of a single genotype to be evaluated by a worker process. Used by
+ * {@link optimise.JobQueue} and {@link optimise.Worker} to distribute fitness evaluation for an
+ * {@link optimise.Optimiser}.
+ *
+ * @author Stuart Clark
+ */
+@Entity
+public class FitnessJob {
+
+  public enum Status {
+    /**
+     * Waiting to be claimed by a worker.
+     */
+    PENDING,
+    /**
+     * Claimed by a worker which should be updating {@link FitnessJob#heartbeat}.
+     */
+    RUNNING,
+    /**
+     * The fitness has been evaluated.
+     */
+    DONE,
+    /**
+     * The job has been retried too many times.
+     */
+    FAILED
+  }
+
+  @Id
+  private ObjectId id;
+
+  /**
+   * The name of the optimiser that the job belongs to see {@link optimise.Optimiser#name()}.
+   */
+  @Indexed
+  private String optimiser;
+
+  @Indexed
+  private Status status;
+
+  /**
+   * The serialised genotype to evaluate.
+   */
+  private byte[] genotype;
+
+  /**
+   * The serialised fitness of {@code genotype}, {@code null} until the job is {@link Status#DONE}.
+   */
+  private byte[] fitness;
+
+  /**
+   * True if the {@code fitness} is partial see {@link optimise.Optimiser#markPartial()}.
+   */
+  private boolean partial;
+
+  /**
+   * The id of the worker that last claimed the job.
+   */
+  private String worker;
+
+  /**
+   * The last time in milliseconds that the worker running the job reported that it was alive.
+   */
+  @Indexed
+  private long heartbeat;
+
+  /**
+   * The number of times the job has been claimed by a worker.
+   */
+  private int attempts;
+
+  public FitnessJob() {
+    // For morphia
+  }
+
+  public FitnessJob(String optimiser, byte[] genotype) {
+    this.optimiser = optimiser;
+    this.genotype = genotype;
+    this.status = Status.PENDING;
+  }
+
+  public ObjectId getId() {
+    return id;
+  }
+
+  public String getOptimiser() {
+    return optimiser;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public void setStatus(Status status) {
+    this.status = status;
+  }
+
+  public byte[] getGenotype() {
+    return genotype;
+  }
+
+  public byte[] getFitness() {
+    return fitness;
+  }
+
+  public void setFitness(byte[] fitness) {
+    this.fitness = fitness;
+  }
+
+  public boolean isPartial() {
+    return partial;
+  }
+
+  public void setPartial(boolean partial) {
+    this.partial = partial;
+  }
+
+  public String getWorker() {
+    return worker;
+  }
+
+  public void setWorker(String worker) {
+    this.worker = worker;
+  }
+
+  public long getHeartbeat() {
+    return heartbeat;
+  }
+
+  public void setHeartbeat(long heartbeat) {
+    this.heartbeat = heartbeat;
+  }
+
+  public int getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+
+}
@@ -0,0 +1,224 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.Datastore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Misc;
+import util.ConfigHelper;
+import util.LruCache;
+import util.Metrics;
+import util.MongoHelper;
+
+/**
+ * A read through cache of {@link GroundTruth}s. The first lookup for a series fetches all of the
+ * {@link GroundTruth}s for the series in a single query and indexes them by id and by
+ * {@link GroundTruth#imageSopUID}, {@link GroundTruth#type} and {@link GroundTruth#readingNumber},
+ * so that the lookups for each of its slices do not need a round trip to the database. The
+ * least recently used series are evicted once more than {@link Misc#GT_CACHE} are held.
+ *
+ * N.B. the {@link GroundTruth}s returned are shared between callers, any changes made to them
+ * should be saved and {@link GroundTruthRepository#clear()} should be called if they are updated
+ * in the database directly.
+ *
+ * @author Stuart Clark
+ */
+public class GroundTruthRepository {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroundTruthRepository.class);
+
+  /**
+   * The singleton instance
+   */
+  private static GroundTruthRepository REPOSITORY = null;
+
+  private final Datastore ds;
+
+  /**
+   * The {@link GroundTruth}s for each seriesInstanceUID, a future is used so that a series is only
+   * fetched once when it is looked up by several threads at the same time.
+   */
+  private final Map<String, CompletableFuture<Series>> cache;
+
+  private final Metrics.Counter hits;
+  private final Metrics.Counter misses;
+
+  /**
+   * This constructor should not be used (other than testing) use
+   * {@link GroundTruthRepository#get()} instead.
+   *
+   * @param capacity the maximum number of series to hold.
+   */
+  GroundTruthRepository(int capacity) {
+    this.ds = MongoHelper.getDataStore();
+    this.cache = new LruCache<>(capacity);
+    this.hits = Metrics.counter("groundtruths.hits");
+    this.misses = Metrics.counter("groundtruths.misses");
+  }
+
+  /**
+   * @return the singleton instance of {@link GroundTruthRepository}.
+   */
+  public static synchronized GroundTruthRepository get() {
+    if (REPOSITORY == null) {
+      REPOSITORY = new GroundTruthRepository(ConfigHelper.getInt(Misc.GT_CACHE));
+    }
+    return REPOSITORY;
+  }
+
+  /**
+   * @param seriesUID the seriesInstanceUID of the slice.
+   * @param sopUID the imageSopUID of the slice.
+   * @return all of the {@link GroundTruth}s for the slice.
+   */
+  public List<GroundTruth> get(String seriesUID, String sopUID) {
+    return Collections.unmodifiableList(series(seriesUID).bySop.getOrDefault(sopUID,
+        Collections.emptyList()));
+  }
+
+  /**
+   * @param seriesUID the seriesInstanceUID of the slice.
+   * @param sopUID the imageSopUID of the slice.
+   * @param type
+   * @param readingNumber
+   * @return the {@link GroundTruth}s for the slice with the given {@code type} and
+   *         {@code readingNumber}.
+   */
+  public List<GroundTruth> get(String seriesUID, String sopUID, GroundTruth.Type type,
+      int readingNumber) {
+    return Collections.unmodifiableList(series(seriesUID).byKey.getOrDefault(
+        new Key(sopUID, type, readingNumber), Collections.emptyList()));
+  }
+
+  /**
+   * @param seriesUID the seriesInstanceUID of the {@link GroundTruth}.
+   * @param id
+   * @return the {@link GroundTruth} with the {@code id} or null if there is not one in the series.
+   */
+  public GroundTruth get(String seriesUID, ObjectId id) {
+    return series(seriesUID).byId.get(id);
+  }
+
+  /**
+   * Fetch the {@link GroundTruth}s for the series if they are not already held.
+   *
+   * @param seriesUID
+   */
+  public void prefetch(String seriesUID) {
+    series(seriesUID);
+  }
+
+  /**
+   * Remove all of the series that are held, they will be fetched again when they are next used.
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * @param seriesUID
+   * @return the {@link Series} for the {@code seriesUID}, fetched if it is not already held.
+   */
+  private Series series(String seriesUID) {
+    CompletableFuture<Series> future;
+    boolean fetch = false;
+    synchronized (cache) {
+      future = cache.get(seriesUID);
+      if (future == null) {
+        future = new CompletableFuture<>();
+        cache.put(seriesUID, future);
+        fetch = true;
+      }
+    }
+
+    if (!fetch) {
+      hits.increment();
+      return future.join();
+    }
+
+    misses.increment();
+    try {
+      List<GroundTruth> groundTruths =
+          ds.createQuery(GroundTruth.class).field("seriesInstanceUID").equal(seriesUID).asList();
+      LOGGER.debug(groundTruths.size() + " GroundTruths fetched for series " + seriesUID);
+      future.complete(new Series(groundTruths));
+    } catch (RuntimeException e) {
+      // Don't cache the failure so that the series is fetched again next time
+      synchronized (cache) {
+        cache.remove(seriesUID);
+      }
+      future.completeExceptionally(e);
+      throw e;
+    }
+    return future.join();
+  }
+
+  /**
+   * The {@link GroundTruth}s for a series indexed for each type of lookup.
+   */
+  private static class Series {
+
+    private final Map<ObjectId, GroundTruth> byId = new HashMap<>();
+    private final Map<String, List<GroundTruth>> bySop = new HashMap<>();
+    private final Map<Key, List<GroundTruth>> byKey = new HashMap<>();
+
+    private Series(List<GroundTruth> groundTruths) {
+      for (GroundTruth gt : groundTruths) {
+        byId.put(gt.getId(), gt);
+        bySop.computeIfAbsent(gt.getImageSopUID(), k -> new ArrayList<>()).add(gt);
+        if (gt.getReadingNumber() != null) {
+          Key key = new Key(gt.getImageSopUID(), gt.getType(), gt.getReadingNumber());
+          byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(gt);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * The imageSopUID, type and reading number of a {@link GroundTruth}.
+   */
+  private static class Key {
+
+    private final String sopUID;
+    private final GroundTruth.Type type;
+    private final int readingNumber;
+
+    private Key(String sopUID, GroundTruth.Type type, int readingNumber) {
+      this.sopUID = sopUID;
+      this.type = type;
+      this.readingNumber = readingNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return readingNumber == key.readingNumber && type == key.type
+          && Objects.equals(sopUID, key.sopUID);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sopUID, type, readingNumber);
+    }
+
+  }
+
+}
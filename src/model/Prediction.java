@@ -0,0 +1,133 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Indexed;
+import org.opencv.core.Point;
+
+/**
+ * The nodules predicted for a single {@link CTSlice} by {@link core.BatchInference}.
+ *
+ * @author Stuart Clark
+ */
+@Entity
+public class Prediction {
+
+  @Id
+  private ObjectId id;
+
+  @Indexed
+  private String seriesInstanceUID;
+
+  @Indexed
+  private String imageSopUID;
+
+  private Integer imageNumber;
+
+  /**
+   * The number of {@link ROI}s that were classified for the slice.
+   */
+  private int numROIs;
+
+  /**
+   * The number of {@link ROI}s that were classified as {@link ROI.Class#NODULE}.
+   */
+  @Indexed
+  private int numNodules;
+
+  private List<Nodule> nodules;
+
+  private Prediction() {
+    // For morphia
+  }
+
+  public Prediction(CTSlice slice, int numROIs) {
+    this.seriesInstanceUID = slice.getSeriesInstanceUID();
+    this.imageSopUID = slice.getImageSopUID();
+    this.imageNumber = slice.getImageNumber();
+    this.numROIs = numROIs;
+    this.nodules = new ArrayList<>();
+  }
+
+  /**
+   * Add an {@link ROI} that was classified as a nodule.
+   *
+   * @param roi
+   * @param probability the probability that the {@code roi} is a nodule.
+   */
+  public void addNodule(ROI roi, double probability) {
+    nodules.add(new Nodule(roi, probability));
+    numNodules = nodules.size();
+  }
+
+  public ObjectId getId() {
+    return id;
+  }
+
+  public String getSeriesInstanceUID() {
+    return seriesInstanceUID;
+  }
+
+  public String getImageSopUID() {
+    return imageSopUID;
+  }
+
+  public Integer getImageNumber() {
+    return imageNumber;
+  }
+
+  public int getNumROIs() {
+    return numROIs;
+  }
+
+  public int getNumNodules() {
+    return numNodules;
+  }
+
+  public List<Nodule> getNodules() {
+    return nodules;
+  }
+
+  /**
+   * A single {@link ROI} that was classified as a nodule.
+   */
+  public static class Nodule {
+
+    private List<Point> contour;
+
+    private Circle minCircle;
+
+    /**
+     * The probability that the {@link ROI} is a nodule given by the classifier.
+     */
+    private double probability;
+
+    private Nodule() {
+      // For morphia
+    }
+
+    Nodule(ROI roi, double probability) {
+      this.contour = roi.getContour();
+      this.minCircle = roi.getMinCircle();
+      this.probability = probability;
+    }
+
+    public List<Point> getContour() {
+      return contour;
+    }
+
+    public Circle getMinCircle() {
+      return minCircle;
+    }
+
+    public double getProbability() {
+      return probability;
+    }
+
+  }
+
+}
@@ -1,7 +1,9 @@
 package model;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bson.types.ObjectId;
 import org.mongodb.morphia.Datastore;
@@ -156,8 +158,16 @@ public class ROI {
    */
   private Histogram ltpCoarse;
 
+  /**
+   * The version of each {@link ml.feature.Feature} that was used to compute the features above,
+   * keyed by {@link ml.feature.Feature#name()}. Used to find the features that are missing or
+   * stale see {@link ml.FeatureEngine}.
+   */
+  private Map<String, Integer> featureVersions;
+
   public ROI() {
     region = new ArrayList<>();
+    featureVersions = new HashMap<>();
   }
 
   public ObjectId getId() {
@@ -309,7 +319,15 @@ public class ROI {
   }
 
   public GroundTruth getGroundTruth() {
-    return DS.get(GroundTruth.class, groundTruth);
+    if (groundTruth == null) {
+      return null;
+    }
+
+    // The series is not known if it was not retrieved by the query
+    if (seriesInstanceUID == null) {
+      return DS.get(GroundTruth.class, groundTruth);
+    }
+    return GroundTruthRepository.get().get(seriesInstanceUID, groundTruth);
   }
 
   public void setGroundTruth(GroundTruth groundTruth) {
@@ -364,4 +382,22 @@ public class ROI {
   public void setLtpCoarse(Histogram ltpCoarse) {
     this.ltpCoarse = ltpCoarse;
   }
+
+  /**
+   * @param name the name of a {@link ml.feature.Feature}.
+   * @return the version of the feature used to compute its values for this {@link ROI},
+   *         {@code null} if they have never been computed.
+   */
+  public Integer getFeatureVersion(String name) {
+    return featureVersions.get(name);
+  }
+
+  /**
+   * @param name the name of a {@link ml.feature.Feature}.
+   * @param version the version of the feature used to compute its values for this {@link ROI}.
+   */
+  public void setFeatureVersion(String name, int version) {
+    featureVersions.put(name, version);
+  }
+
 }
@@ -69,7 +69,7 @@ public class ROIAreaStats {
     singleton.mean = 0;
     singleton.min = Integer.MAX_VALUE;
     singleton.max = Integer.MIN_VALUE;
-    for (ROI roi : DS.createQuery(ROI.class)) {
+    for (ROI roi : ROIQueries.areas(DS)) {
       Integer area = roi.getArea();
 
       singleton.mean += area;
@@ -0,0 +1,90 @@
+package model;
+
+import java.util.Arrays;
+
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Query;
+
+/**
+ * Queries for {@link ROI}s that only retrieve the fields needed for a particular use. The
+ * {@link ROI#region} and {@link ROI#contour} hold a point for every pixel in or around the
+ * {@link ROI} and are by far the largest fields, so stages that only need features or a single
+ * value should use these rather than loading whole {@link ROI}s.
+ *
+ * N.B. the fields that are not retrieved are left as their defaults, so the {@link ROI}s returned
+ * must never be saved as that would wipe the fields in the database. Use
+ * {@link org.mongodb.morphia.query.UpdateOperations} to update them instead.
+ *
+ * @author Stuart Clark
+ */
+public class ROIQueries {
+
+  public static final String CLASS = "classification";
+  public static final String SET = "set";
+  public static final String AREA = "area";
+  public static final String MATCH_SCORE = "matchScore";
+  public static final String FEATURE_VERSIONS = "featureVersions";
+
+  /**
+   * The fields of an {@link ROI} used by {@link ml.InstancesBuilder#createInstance(ROI)}.
+   */
+  public static final String[] FEATURE_FIELDS = {"juxtapleural", "meanIntensity", AREA,
+      "perimLength", "minCircle", "circularity", "huCircularity", "convexity", "fitEllipse",
+      "elongation", "coarseHist", "fineHist", "ltpCoarse", "ltpFine", CLASS, SET};
+
+  private ROIQueries() {
+    // Hide constructor
+  }
+
+  /**
+   * @param ds
+   * @return a query for the {@link ROI}s that belong to a set and have been classified, retrieving
+   *         only the fields needed to create instances see {@link ROIQueries#FEATURE_FIELDS}.
+   */
+  public static Query<ROI> features(Datastore ds) {
+    Query<ROI> query =
+        ds.createQuery(ROI.class).field(SET).in(Arrays.asList(ROI.Set.values())).field(CLASS)
+            .in(Arrays.asList(ROI.Class.values()));
+    return project(query, FEATURE_FIELDS);
+  }
+
+  /**
+   * @param ds
+   * @return a query for the {@link ROI}s that have a match score, retrieving only the match score.
+   */
+  public static Query<ROI> matchScores(Datastore ds) {
+    return project(ds.createQuery(ROI.class).field(MATCH_SCORE).notEqual(null), MATCH_SCORE);
+  }
+
+  /**
+   * @param ds
+   * @return a query for all of the {@link ROI}s, retrieving only their areas.
+   */
+  public static Query<ROI> areas(Datastore ds) {
+    return project(ds.createQuery(ROI.class), AREA);
+  }
+
+  /**
+   * @param ds
+   * @param sopUID
+   * @return a query for the {@link ROI}s in the slice with the image SOP UID {@code sopUID},
+   *         retrieving only the versions of their features.
+   */
+  public static Query<ROI> featureVersions(Datastore ds, String sopUID) {
+    return project(ds.createQuery(ROI.class).field("imageSopUID").equal(sopUID),
+        FEATURE_VERSIONS);
+  }
+
+  /**
+   * @param query
+   * @param fields
+   * @return {@code query} modified so that only the {@code fields} (and the id) are retrieved.
+   */
+  public static <T> Query<T> project(Query<T> query, String... fields) {
+    for (String field : fields) {
+      query.project(field, true);
+    }
+    return query;
+  }
+
+}
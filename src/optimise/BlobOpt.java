@@ -153,10 +153,7 @@ public class BlobOpt {
     BlobDetector detector = new BlobDetector(dogThresh, gradientThresh);
 
     // Segment the Mats
-    Lungs lungs = new Lungs(filter, extractor, detector);
-    lungs.setSolitary(false);
-
-    return lungs;
+    return new Lungs(filter, extractor, detector, true, false, null);
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,176 @@
+package optimise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.jenetics.Gene;
+import org.jenetics.Genotype;
+import org.jenetics.Phenotype;
+import org.jenetics.Population;
+
+import util.FileUtils;
+
+/**
+ * A binary snapshot of the state of an {@link Optimiser} that can be used to resume it. Holds the
+ * population, the fitness of each individual and the contents of the {@link FitnessCache} so that
+ * nothing needs to be re-evaluated when the optimiser is resumed.
+ *
+ * The phenotypes themselves are not serialised as they hold a reference to the fitness function of
+ * the optimiser that created them.
+ *
+ * @param <G> the type of gene being used i.e {@link org.jenetics.DoubleGene}.
+ * @param <E> the type used as the result for the evaluation function i.e. {@link Double}.
+ * @author Stuart Clark
+ */
+public class Checkpoint<G extends Gene<?, G>, E extends Comparable<? super E>> implements
+    Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The name of the optimiser that took the checkpoint see {@link Optimiser#name()}, the fitnesses
+   * are only valid for an optimiser with the same fitness function.
+   */
+  private final String optimiser;
+
+  /**
+   * The generation that the checkpoint was taken at.
+   */
+  private final long generation;
+
+  private final List<Genotype<G>> genotypes;
+
+  /**
+   * The generation that each of the {@code genotypes} was created in.
+   */
+  private final long[] births;
+
+  /**
+   * The fitness of each of the {@code genotypes}, {@code null} if it was partial.
+   */
+  private final List<E> fitnesses;
+
+  /**
+   * A snapshot of the {@link FitnessCache}.
+   */
+  private final HashMap<Genotype<G>, E> cache;
+
+  /**
+   * @param population the population to checkpoint, all of the phenotypes must have been evaluated.
+   * @param generation the generation that the checkpoint is being taken at.
+   * @param cache a snapshot of the {@link FitnessCache}.
+   */
+  public Checkpoint(Population<G, E> population, long generation, Map<Genotype<G>, E> cache) {
+    this(population, generation, cache, Collections.emptySet(), null);
+  }
+
+  /**
+   * @param population the population to checkpoint, all of the phenotypes must have been evaluated.
+   * @param generation the generation that the checkpoint is being taken at.
+   * @param cache a snapshot of the {@link FitnessCache}.
+   * @param partial the genotypes whose fitness is partial see {@link Optimiser#markPartial()},
+   *        their fitnesses are not stored so they are re-evaluated when the checkpoint is loaded.
+   * @param optimiser the name of the optimiser taking the checkpoint see {@link Optimiser#name()}.
+   */
+  public Checkpoint(Population<G, E> population, long generation, Map<Genotype<G>, E> cache,
+      Set<Genotype<G>> partial, String optimiser) {
+    this.optimiser = optimiser;
+    this.generation = generation;
+    this.genotypes = new ArrayList<>(population.size());
+    this.births = new long[population.size()];
+    this.fitnesses = new ArrayList<>(population.size());
+    for (int i = 0; i < population.size(); i++) {
+      Phenotype<G, E> phenotype = population.get(i);
+      genotypes.add(phenotype.getGenotype());
+      births[i] = phenotype.getGeneration();
+      fitnesses.add(partial.contains(phenotype.getGenotype()) ? null : phenotype.getFitness());
+    }
+    this.cache = new HashMap<>(cache);
+  }
+
+  /**
+   * @return the name of the optimiser that took the checkpoint, {@code null} if it is not known.
+   */
+  public String getOptimiser() {
+    return optimiser;
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @return the fitnesses in the checkpoint, including those of the population.
+   */
+  public Map<Genotype<G>, E> getFitnesses() {
+    Map<Genotype<G>, E> all = new HashMap<>(cache);
+    for (int i = 0; i < genotypes.size(); i++) {
+      if (fitnesses.get(i) != null) {
+        all.put(genotypes.get(i), fitnesses.get(i));
+      }
+    }
+    return all;
+  }
+
+  /**
+   * @param function the fitness function that the phenotypes should use. N.B. the phenotypes are
+   *        evaluated lazily so {@code function} should serve the fitnesses in the checkpoint without
+   *        re-evaluating them see {@link Checkpoint#getFitnesses()}.
+   * @return the population in the checkpoint.
+   */
+  public Population<G, E> getPopulation(Function<? super Genotype<G>, E> function) {
+    Population<G, E> population = new Population<>(genotypes.size());
+    for (int i = 0; i < genotypes.size(); i++) {
+      population.add(Phenotype.of(genotypes.get(i), births[i], function));
+    }
+    return population;
+  }
+
+  /**
+   * Write the checkpoint to {@code file}. The checkpoint is written to a temporary file which then
+   * replaces {@code file} so that a crash can never leave a partially written checkpoint behind.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+    FileUtils.writeAtomically(file.toPath(), tmp -> {
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp));
+          ObjectOutputStream oos = new ObjectOutputStream(out)) {
+        oos.writeObject(this);
+      }
+    });
+  }
+
+  /**
+   * @param file
+   * @return the checkpoint stored in {@code file}.
+   * @throws IOException if the file could not be read or does not contain a checkpoint.
+   */
+  @SuppressWarnings("unchecked")
+  public static <G extends Gene<?, G>, E extends Comparable<? super E>> Checkpoint<G, E> read(
+      File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()));
+        ObjectInputStream ois = new ObjectInputStream(in)) {
+      return (Checkpoint<G, E>) ois.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException(file + " does not contain a checkpoint", e);
+    }
+  }
+
+}
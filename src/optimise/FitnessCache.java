@@ -0,0 +1,118 @@
+package optimise;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.jenetics.Gene;
+import org.jenetics.Genotype;
+
+import util.LruCache;
+
+/**
+ * Caches the fitness of {@link Genotype}s so that duplicate individuals are not re-evaluated. Safe
+ * to use from the threads of the executor that the {@link org.jenetics.engine.Engine} evaluates
+ * phenotypes on.
+ *
+ * @param <G> the type of gene being used i.e {@link org.jenetics.DoubleGene}.
+ * @param <E> the type used as the result for the evaluation function i.e. {@link Double}.
+ * @author Stuart Clark
+ */
+public class FitnessCache<G extends Gene<?, G>, E> {
+
+  private final Map<Genotype<G>, E> cache;
+
+  /**
+   * The number of times a fitness has been served from the cache.
+   */
+  private final LongAdder hits;
+
+  /**
+   * The number of times a fitness has had to be computed.
+   */
+  private final LongAdder misses;
+
+  /**
+   * @param capacity the maximum number of fitnesses to hold, the least recently used are evicted
+   *        first.
+   */
+  public FitnessCache(int capacity) {
+    this.cache = Collections.synchronizedMap(new LruCache<>(capacity));
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+  }
+
+  /**
+   * @param gt
+   * @param eval the function used to compute the fitness of {@code gt} if it is not cached.
+   * @return the fitness for {@code gt}.
+   */
+  public E get(Genotype<G> gt, Function<Genotype<G>, E> eval) {
+    return get(gt, eval, fitness -> true);
+  }
+
+  /**
+   * @param gt
+   * @param eval the function used to compute the fitness of {@code gt} if it is not cached.
+   * @param cacheable tested once {@code eval} has been called, the fitness is only cached if it
+   *        returns true.
+   * @return the fitness for {@code gt}.
+   */
+  public E get(Genotype<G> gt, Function<Genotype<G>, E> eval, Predicate<E> cacheable) {
+    E fitness = cache.get(gt);
+    if (fitness != null) {
+      hits.increment();
+      return fitness;
+    }
+
+    // The lock is not held during evaluation as it may take a long time. At worst two threads
+    // evaluate the same genotype at the same time.
+    fitness = eval.apply(gt);
+    misses.increment();
+    if (cacheable.test(fitness)) {
+      cache.put(gt, fitness);
+    }
+
+    return fitness;
+  }
+
+  /**
+   * Add fitnesses that have already been computed e.g. those loaded from a {@link Checkpoint}.
+   *
+   * @param fitnesses
+   */
+  public void putAll(Map<Genotype<G>, E> fitnesses) {
+    cache.putAll(fitnesses);
+  }
+
+  /**
+   * @return a copy of the cached fitnesses.
+   */
+  public Map<Genotype<G>, E> snapshot() {
+    synchronized (cache) {
+      return new LinkedHashMap<>(cache);
+    }
+  }
+
+  /**
+   * @return the number of times a fitness has been served from the cache.
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of times a fitness has had to be computed.
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+}
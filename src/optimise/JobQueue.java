@@ -0,0 +1,272 @@
+package optimise;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.bson.types.ObjectId;
+import org.jenetics.Gene;
+import org.jenetics.Genotype;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Query;
+import org.mongodb.morphia.query.UpdateOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import model.FitnessJob;
+import util.LungsException;
+import util.MongoHelper;
+
+/**
+ * Used by an {@link Optimiser} to distribute fitness evaluation to {@link Worker}s running in other
+ * processes (possibly on other machines). Each evaluation is written to the database as a
+ * {@link FitnessJob} which is claimed and evaluated by a {@link Worker}.
+ *
+ * Jobs whose worker stops sending heartbeats are returned to the queue so that another worker can
+ * claim them. Once a job has been claimed {@code maxAttempts} times it is marked as failed.
+ *
+ * N.B. heartbeats are compared using the system clocks of the different machines, so they should
+ * be kept in sync.
+ *
+ * @param <G> the type of gene being used i.e {@link org.jenetics.DoubleGene}.
+ * @param <E> the type used as the result for the evaluation function i.e. {@link Double}.
+ * @author Stuart Clark
+ */
+public class JobQueue<G extends Gene<?, G>, E extends Comparable<? super E>> implements
+    AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JobQueue.class);
+
+  /**
+   * The interval in milliseconds between polls for the completion of the jobs.
+   */
+  private static final long POLL_INTERVAL = 100;
+
+  private final Datastore ds;
+
+  /**
+   * The name of the optimiser that the jobs belong to.
+   */
+  private final String optimiser;
+
+  /**
+   * The time in milliseconds after which a job without a heartbeat is considered dead.
+   */
+  private final long heartbeatTimeout;
+
+  /**
+   * The number of times a job can be claimed before it is marked as failed.
+   */
+  private final int maxAttempts;
+
+  /**
+   * Used to periodically poll for finished jobs and return dead jobs to the queue.
+   */
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * The futures for the jobs being waited on by {@link JobQueue#evaluate(Genotype, Runnable)},
+   * completed by a single poller rather than each thread polling for its own job.
+   */
+  private final ConcurrentMap<ObjectId, CompletableFuture<FitnessJob>> waiting;
+
+  /**
+   * @param optimiser the name of the optimiser that the jobs belong to see
+   *        {@link Optimiser#name()}.
+   * @param heartbeatTimeout the time in milliseconds after which a job without a heartbeat is
+   *        considered dead.
+   * @param maxAttempts the number of times a job can be claimed before it is marked as failed.
+   */
+  public JobQueue(String optimiser, long heartbeatTimeout, int maxAttempts) {
+    this.ds = MongoHelper.getDataStore();
+    this.optimiser = optimiser;
+    this.heartbeatTimeout = heartbeatTimeout;
+    this.maxAttempts = maxAttempts;
+
+    // Remove any jobs left over from a previous run
+    ds.delete(jobs());
+
+    this.waiting = new ConcurrentHashMap<>();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    scheduler.scheduleWithFixedDelay(this::poll, POLL_INTERVAL, POLL_INTERVAL,
+        TimeUnit.MILLISECONDS);
+    long interval = Math.max(1, heartbeatTimeout / 2);
+    scheduler.scheduleWithFixedDelay(this::reap, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Submit {@code gt} to the queue and block until a {@link Worker} has evaluated it.
+   *
+   * @param gt
+   * @return the fitness of {@code gt}.
+   * @throws LungsException if the job failed or the thread was interrupted while waiting.
+   */
+  public E evaluate(Genotype<G> gt) throws LungsException {
+    return evaluate(gt, () -> {
+    });
+  }
+
+  /**
+   * Submit {@code gt} to the queue and block until a {@link Worker} has evaluated it.
+   *
+   * @param gt
+   * @param onPartial run if the fitness is partial see {@link Optimiser#markPartial()}.
+   * @return the fitness of {@code gt}.
+   * @throws LungsException if the job failed or the thread was interrupted while waiting.
+   */
+  @SuppressWarnings("unchecked")
+  public E evaluate(Genotype<G> gt, Runnable onPartial) throws LungsException {
+    FitnessJob job = new FitnessJob(optimiser, SerializationUtils.serialize(gt));
+    ds.save(job);
+    CompletableFuture<FitnessJob> future = new CompletableFuture<>();
+    waiting.put(job.getId(), future);
+
+    FitnessJob polled;
+    try {
+      polled = future.get();
+    } catch (InterruptedException e) {
+      waiting.remove(job.getId());
+      ds.delete(job);
+      Thread.currentThread().interrupt();
+      throw new LungsException("Interrupted while waiting for job " + job.getId(), e);
+    } catch (ExecutionException e) {
+      throw new LungsException("Failed to wait for job " + job.getId(), e.getCause());
+    }
+
+    ds.delete(polled);
+    if (polled.getStatus() == FitnessJob.Status.FAILED) {
+      throw new LungsException("Job " + job.getId() + " failed after " + polled.getAttempts()
+          + " attempts");
+    }
+    if (polled.isPartial()) {
+      onPartial.run();
+    }
+    return (E) SerializationUtils.deserialize(polled.getFitness());
+  }
+
+  /**
+   * Check all of the jobs that are being waited on with a single query and hand those that have
+   * finished to the threads waiting on them.
+   */
+  void poll() {
+    if (waiting.isEmpty()) {
+      return;
+    }
+
+    try {
+      // The genotypes are not needed and are the largest field
+      Set<ObjectId> ids = new HashSet<>(waiting.keySet());
+      Query<FitnessJob> query =
+          ds.createQuery(FitnessJob.class).field("_id").in(ids).project("genotype", false);
+      for (FitnessJob job : query) {
+        ids.remove(job.getId());
+        if (job.getStatus() == FitnessJob.Status.DONE
+            || job.getStatus() == FitnessJob.Status.FAILED) {
+          complete(job.getId(), future -> future.complete(job));
+        }
+      }
+
+      // Any that were not found have been removed
+      for (ObjectId id : ids) {
+        complete(id, future -> future.completeExceptionally(new LungsException("Job " + id
+            + " was removed from the queue")));
+      }
+    } catch (RuntimeException e) {
+      // Don't let an exception cancel the scheduled poller
+      LOGGER.error("Failed to poll for finished jobs", e);
+    }
+  }
+
+  /**
+   * Stop waiting on the job with {@code id}.
+   *
+   * @param id
+   * @param completion used to complete the future that is waiting on the job.
+   */
+  private void complete(ObjectId id, Consumer<CompletableFuture<FitnessJob>> completion) {
+    CompletableFuture<FitnessJob> future = waiting.remove(id);
+    if (future != null) {
+      completion.accept(future);
+    }
+  }
+
+  /**
+   * Return jobs that have stopped receiving heartbeats to the queue, or mark them as failed if they
+   * have already been claimed {@code maxAttempts} times.
+   */
+  void reap() {
+    try {
+      long cutoff = System.currentTimeMillis() - heartbeatTimeout;
+
+      // Fail jobs that have run out of attempts
+      Query<FitnessJob> exhausted =
+          dead(cutoff).field("attempts").greaterThanOrEq(maxAttempts);
+      UpdateOperations<FitnessJob> fail =
+          ds.createUpdateOperations(FitnessJob.class).set("status", FitnessJob.Status.FAILED);
+      int failed = ds.update(exhausted, fail).getUpdatedCount();
+      if (failed > 0) {
+        LOGGER.warn(failed + " jobs failed after " + maxAttempts + " attempts");
+      }
+
+      // Return the remaining dead jobs to the queue
+      UpdateOperations<FitnessJob> retry =
+          ds.createUpdateOperations(FitnessJob.class).set("status", FitnessJob.Status.PENDING)
+              .unset("worker");
+      int retried = ds.update(dead(cutoff), retry).getUpdatedCount();
+      if (retried > 0) {
+        LOGGER.warn(retried + " jobs had no heartbeat and have been returned to the queue");
+      }
+    } catch (RuntimeException e) {
+      // Don't let an exception cancel the scheduled reaper
+      LOGGER.error("Failed to reap dead jobs", e);
+    }
+  }
+
+  /**
+   * @param cutoff
+   * @return a query for the running jobs that have not had a heartbeat since {@code cutoff}.
+   */
+  private Query<FitnessJob> dead(long cutoff) {
+    return jobs().field("status").equal(FitnessJob.Status.RUNNING).field("heartbeat")
+        .lessThan(cutoff);
+  }
+
+  /**
+   * @return a query for all the jobs that belong to {@code optimiser}.
+   */
+  private Query<FitnessJob> jobs() {
+    return ds.createQuery(FitnessJob.class).field("optimiser").equal(optimiser);
+  }
+
+  /**
+   * Stop polling and reaping jobs and remove any that are left in the queue.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    for (ObjectId id : new ArrayList<>(waiting.keySet())) {
+      complete(id, future -> future.completeExceptionally(new LungsException("The queue for "
+          + optimiser + " was closed")));
+    }
+    ds.delete(jobs());
+  }
+
+  /**
+   * @param fitness
+   * @return {@code fitness} serialised so that it can be stored in a {@link FitnessJob}.
+   */
+  static byte[] serialise(Comparable<?> fitness) {
+    return SerializationUtils.serialize((Serializable) fitness);
+  }
+
+}
@@ -1,7 +1,11 @@
 package optimise;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.query.FindOptions;
@@ -12,6 +16,7 @@ import core.Lungs;
 import model.CTSlice;
 import model.CTStack;
 import model.GroundTruth;
+import model.GroundTruthRepository;
 import model.ROI;
 import util.DataFilter;
 import util.MatUtils;
@@ -41,12 +46,18 @@ public class LungsOptHelper {
    */
   private int totalGTs;
 
+  /**
+   * The number of {@link Mat}s that have been segmented by this helper.
+   */
+  private final LongAdder matsSegmented;
+
   /**
    * @param numStacks the number of stacks that should be used.
    */
   public LungsOptHelper(int numStacks) {
     mats = new ArrayList<>();
     groundTruths = new ArrayList<>();
+    matsSegmented = new LongAdder();
     DataFilter filter = DataFilter.get();
 
     // Load some stacks
@@ -62,9 +73,8 @@ public class LungsOptHelper {
         // is used as we need to know exactingly how many nodules there are in the set of Mats we
         // will use
         List<GroundTruth> gtList =
-            filter.singleReading(
-                ds.createQuery(GroundTruth.class).field("type").equal(GroundTruth.Type.BIG_NODULE)
-                    .field("imageSopUID").equal(slice.getImageSopUID())).asList();
+            GroundTruthRepository.get().get(slice.getSeriesInstanceUID(),
+                slice.getImageSopUID(), GroundTruth.Type.BIG_NODULE, filter.getReadingNumber());
 
         // If there are nodules in the slice
         if (!gtList.isEmpty()) {
@@ -82,20 +92,76 @@ public class LungsOptHelper {
   }
 
   /**
-   * Extract the ROIs for the mats using {@code lungs}.
+   * Extract the ROIs for the mats using {@code lungs}. The mats are segmented in parallel.
    *
    * @param lungs
    * @return all the {@link ROI}s extracted using {@code lungs}. Each sublist contains all the ROIs
    *         for the corresponding Mat in {@code mats}
    */
   public List<List<ROI>> extractROIs(Lungs lungs) {
-    List<List<ROI>> allROIs = new ArrayList<>();
-    for (Mat mat : mats) {
-      List<ROI> rois = lungs.extractRois(mat);
-      allROIs.add(rois);
+    matsSegmented.add(mats.size());
+    return lungs.extractRois(mats);
+  }
+
+  /**
+   * Estimate the nodule inclusion for {@code lungs} by racing it against {@code threshold}. The
+   * {@link Mat}s are segmented in a random order in batches that double in size, starting with
+   * {@code initialFraction} of the {@link Mat}s. After each batch a Hoeffding upper confidence bound
+   * is computed for the nodule inclusion, if it falls below {@code threshold} the race is
+   * abandoned, as {@code lungs} is very unlikely to beat the {@code threshold}.
+   *
+   * @param lungs
+   * @param threshold the nodule inclusion that {@code lungs} needs to be able to beat to continue
+   *        the race i.e. the best nodule inclusion found so far.
+   * @param initialFraction the fraction of {@link Mat}s to use in the first batch (0.0-1.0).
+   * @param delta the probability that the race is abandoned wrongly (0.0-1.0). Smaller values mean
+   *        that more {@link Mat}s are required before a race is abandoned.
+   * @return the result of the race.
+   */
+  public Race race(Lungs lungs, double threshold, double initialFraction, double delta) {
+    // Visit the mats in a random order
+    List<Integer> order = new ArrayList<>(mats.size());
+    for (int i = 0; i < mats.size(); i++) {
+      order.add(i);
     }
+    Collections.shuffle(order, ThreadLocalRandom.current());
+
+    double totalScore = 0.0;
+    int numGTs = 0;
+    int numROIs = 0;
+    int evaluated = 0;
+    int batchSize = Math.max(1, (int) Math.round(initialFraction * mats.size()));
+    while (true) {
+      // Segment the next batch of mats
+      List<Integer> batch = order.subList(evaluated, Math.min(evaluated + batchSize, mats.size()));
+      List<List<ROI>> allROIs =
+          lungs.extractRois(batch.stream().map(mats::get).collect(Collectors.toList()));
+      matsSegmented.add(batch.size());
+
+      // Score the batch
+      for (int i = 0; i < batch.size(); i++) {
+        List<GroundTruth> gts = groundTruths.get(batch.get(i));
+        List<ROI> rois = allROIs.get(i);
+        totalScore += bestScores(rois, gts);
+        numGTs += gts.size();
+        numROIs += rois.size();
+      }
+      evaluated += batch.size();
+
+      // Every mat has been used so the nodule inclusion is exact
+      if (evaluated == mats.size()) {
+        return new Race(totalScore / totalGTs, numROIs, evaluated, true);
+      }
+
+      // Abandon the race if the upper confidence bound is below the threshold
+      double mean = totalScore / numGTs;
+      double upperBound = mean + Math.sqrt(Math.log(1 / delta) / (2 * numGTs));
+      if (upperBound < threshold) {
+        return new Race(mean, numROIs, evaluated, false);
+      }
 
-    return allROIs;
+      batchSize *= 2;
+    }
   }
 
   protected double noduleInclusion(Lungs lungs) {
@@ -117,29 +183,95 @@ public class LungsOptHelper {
       // Get ROIs for segmented mat
       List<ROI> rois = allROIs.get(i);
 
-      // Find the bestScore for each of the GroundTruths using Matcher
-      for (GroundTruth segGt : segGts) {
+      // Add to noduleInclusion
+      noduleInclusion += bestScores(rois, segGts);
+    }
 
-        double bestScore = 0.0;
-        for (ROI roi : rois) {
-          double score = Matcher.match(roi, segGt);
-          if (score > bestScore) {
-            bestScore = score;
-          }
-        }
+    // Normalise to value between 0 and 1 inclusive and return
+    return noduleInclusion / totalGTs;
+  }
 
-        // Add to noduleInclusion
-        noduleInclusion += bestScore;
-      }
+  /**
+   * @param rois the {@link ROI}s extracted from a {@link Mat}.
+   * @param gts the {@link GroundTruth}s for the same {@link Mat}.
+   * @return the sum of the best {@link Matcher} scores for each of the {@code gts}.
+   */
+  private double bestScores(List<ROI> rois, List<GroundTruth> gts) {
+    double total = 0.0;
 
+    // Find the bestScore for each of the GroundTruths using Matcher
+    for (GroundTruth gt : gts) {
+      double bestScore = 0.0;
+      for (ROI roi : rois) {
+        double score = Matcher.match(roi, gt);
+        if (score > bestScore) {
+          bestScore = score;
+        }
+      }
+      total += bestScore;
     }
 
-    // Normalise to value between 0 and 1 inclusive and return
-    return noduleInclusion / totalGTs;
+    return total;
   }
 
   public List<Mat> getMats() {
     return mats;
   }
 
+  /**
+   * @return the number of {@link Mat}s that have been segmented by this helper.
+   */
+  public long getMatsSegmented() {
+    return matsSegmented.sum();
+  }
+
+  /**
+   * The result of {@link LungsOptHelper#race(Lungs, double, double, double)}.
+   */
+  public static class Race {
+
+    /**
+     * The nodule inclusion, exact if the race was complete otherwise an estimate.
+     */
+    private final double noduleInclusion;
+
+    /**
+     * The number of {@link ROI}s extracted from the {@link Mat}s that were used.
+     */
+    private final int numROIs;
+
+    /**
+     * The number of {@link Mat}s that were used.
+     */
+    private final int numMats;
+
+    /**
+     * True if all the {@link Mat}s were used, false if the race was abandoned.
+     */
+    private final boolean complete;
+
+    Race(double noduleInclusion, int numROIs, int numMats, boolean complete) {
+      this.noduleInclusion = noduleInclusion;
+      this.numROIs = numROIs;
+      this.numMats = numMats;
+      this.complete = complete;
+    }
+
+    public double getNoduleInclusion() {
+      return noduleInclusion;
+    }
+
+    public int getNumROIs() {
+      return numROIs;
+    }
+
+    public int getNumMats() {
+      return numMats;
+    }
+
+    public boolean isComplete() {
+      return complete;
+    }
+  }
+
 }
@@ -4,17 +4,23 @@ import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 import org.jenetics.Gene;
 import org.jenetics.Genotype;
+import org.jenetics.Phenotype;
 import org.jenetics.Population;
 import org.jenetics.engine.Engine;
 import org.jenetics.engine.EvolutionResult;
 import org.jenetics.util.Factory;
-import org.jenetics.util.IO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import util.LungsException;
+
 /**
  * Should be extended by all optimisers.
  *
@@ -26,12 +32,51 @@ public abstract class Optimiser<G extends Gene<?, G>, E extends Comparable<? sup
     Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Optimiser.class);
+
+  /**
+   * The number of generations worth of fitnesses that should be held in the {@code fitnessCache}.
+   */
+  private static final int CACHED_GENERATIONS = 100;
+
   private final Engine<G, E> engine;
 
+  /**
+   * Used so that duplicate individuals are not re-evaluated.
+   */
+  private final FitnessCache<G, E> fitnessCache;
+
+  /**
+   * True if the last fitness evaluated on the thread is partial see
+   * {@link Optimiser#markPartial()}.
+   */
+  private final ThreadLocal<Boolean> partial;
+
+  /**
+   * The genotypes in the {@code population} whose fitness is partial, their fitnesses are not
+   * persisted.
+   */
+  private final Set<Genotype<G>> partials;
+
+  /**
+   * Used to distribute fitness evaluation to {@link Worker}s, {@code null} if fitnesses should be
+   * evaluated in this process.
+   */
+  private JobQueue<G, E> jobQueue;
+
   /**
    * The current population.
    */
-  private Population<G, E> population;
+  private volatile Population<G, E> population;
+
+  /**
+   * The generation that {@code population} belongs to.
+   */
+  private volatile long generation;
+
+  /**
+   * The number of generations between checkpoints see {@link Optimiser#savePopulation()}.
+   */
+  private int checkpointInterval;
 
   /**
    * The maximum number of generations that should be used.
@@ -46,36 +91,99 @@ public abstract class Optimiser<G extends Gene<?, G>, E extends Comparable<? sup
   /**
    * @param popSize The initial population size.
    * @param generations The maximum number of generations that should be used.
-   *        stopped.
+   * @param executor the executor that phenotypes will be evaluated on concurrently.
    */
-  public Optimiser(int popSize, int generations) {
+  public Optimiser(int popSize, int generations, Executor executor) {
     this.generations = generations;
     this.stagnationLimit = Integer.MAX_VALUE;
+    this.checkpointInterval = 1;
+    this.fitnessCache = new FitnessCache<>(popSize * CACHED_GENERATIONS);
+    this.partial = ThreadLocal.withInitial(() -> false);
+    this.partials = ConcurrentHashMap.newKeySet();
 
     // Create the execution environment
-    this.engine = Engine.builder(this::eval, factory()).populationSize(popSize).build();
+    this.engine =
+        Engine.builder(this::fitness, factory()).populationSize(popSize).executor(executor)
+            .build();
     LOGGER.info("Population size of: " + this.engine.getPopulationSize());
   }
 
+  /**
+   * Evaluate fitnesses using {@link Worker}s that claim jobs from the {@code jobQueue} rather than in
+   * this process. The executor given in the constructor should have enough threads to wait on all
+   * the jobs that the workers can evaluate at once.
+   *
+   * @param jobQueue
+   */
+  public void setJobQueue(JobQueue<G, E> jobQueue) {
+    this.jobQueue = jobQueue;
+  }
+
   public void setStagnationLimit(int stagnationLimit) {
     this.stagnationLimit = stagnationLimit;
   }
 
-  public void savePopulation() {
+  /**
+   * @param checkpointInterval the number of generations between checkpoints. A checkpoint is always
+   *        saved once the GA finishes or is interrupted.
+   */
+  public void setCheckpointInterval(int checkpointInterval) {
+    if (checkpointInterval < 1) {
+      throw new IllegalArgumentException("checkpointInterval must be at least 1");
+    }
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  /**
+   * Save a {@link Checkpoint} containing the current population and the fitness cache.
+   */
+  public synchronized void savePopulation() {
+    if (population == null) {
+      return;
+    }
+
     try {
-      IO.jaxb.write(population, new File(populationFile()));
-      LOGGER.info("Saved population to " + populationFile());
+      long start = System.currentTimeMillis();
+      new Checkpoint<>(population, generation, fitnessCache.snapshot(), partials, name())
+          .write(new File(populationFile()));
+      LOGGER.info("Saved population to " + populationFile() + " in "
+          + (System.currentTimeMillis() - start) + "ms");
     } catch (IOException e) {
-      LOGGER.error("Failed to save population to " + populationFile());
+      LOGGER.error("Failed to save population to " + populationFile(), e);
     }
   }
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Load the population saved by {@link Optimiser#savePopulation()}. If the checkpoint was taken by
+   * this optimiser the fitnesses in it are added to the fitness cache so the loaded individuals are
+   * not re-evaluated.
+   *
+   * @throws IOException
+   */
   public void loadPopulation() throws IOException {
-    final File file = new File(populationFile());
+    loadPopulation(new File(populationFile()));
+  }
+
+  /**
+   * Load the population from a {@link Checkpoint} in {@code file}. The fitnesses in the checkpoint
+   * are only used if it was taken by an optimiser with the same {@link Optimiser#name()}, otherwise
+   * only the genotypes are loaded and they are evaluated with this optimiser's fitness function.
+   *
+   * @param file
+   * @throws IOException
+   */
+  protected void loadPopulation(File file) throws IOException {
     if (file.exists()) {
-      this.population = (Population<G, E>) (IO.jaxb.read(file));
-      LOGGER.info("Loaded population from " + populationFile());
+      Checkpoint<G, E> checkpoint = Checkpoint.read(file);
+      if (name().equals(checkpoint.getOptimiser())) {
+        fitnessCache.putAll(checkpoint.getFitnesses());
+      } else {
+        LOGGER.info(file + " was saved by " + checkpoint.getOptimiser()
+            + " so its fitnesses will not be used");
+      }
+      this.population = checkpoint.getPopulation(this::fitness);
+      this.generation = checkpoint.getGeneration();
+      LOGGER.info("Loaded population from " + file + " at generation " + generation);
     } else {
       LOGGER.info("There is no population to load will generate a new one");
     }
@@ -89,12 +197,13 @@ public abstract class Optimiser<G extends Gene<?, G>, E extends Comparable<? sup
     LOGGER.info("Running " + name() + "...");
 
     // Save population even if optimiser interrupted
-    Runtime.getRuntime().addShutdownHook(new Thread(this::savePopulation));
+    Thread hook = new Thread(this::savePopulation);
+    Runtime.getRuntime().addShutdownHook(hook);
 
     // Load population or create new one
     Iterator<EvolutionResult<G, E>> iterator;
     if (population != null) {
-      iterator = engine.iterator(population);
+      iterator = engine.iterator(population, generation + 1);
     } else {
       iterator = engine.iterator();
     }
@@ -109,8 +218,15 @@ public abstract class Optimiser<G extends Gene<?, G>, E extends Comparable<? sup
     // Run the GA
     while (stagnation < stagnationLimit && ++counter <= generations) {
       // Process generation
+      long start = System.currentTimeMillis();
+      long hits = fitnessCache.getHits();
+      long misses = fitnessCache.getMisses();
       EvolutionResult<G, E> result = iterator.next();
       population = result.getPopulation();
+      generation = result.getGeneration();
+      partials.retainAll(population.stream().map(Phenotype::getGenotype)
+          .collect(Collectors.toSet()));
+      long wallTime = System.currentTimeMillis() - start;
 
       // Check if stagnating
       E fitness = result.getBestFitness();
@@ -130,23 +246,117 @@ public abstract class Optimiser<G extends Gene<?, G>, E extends Comparable<? sup
         lastFitness = fit;
       }
       LOGGER.info(sb.toString());
+      logThroughput(wallTime, fitnessCache.getMisses() - misses, fitnessCache.getHits() - hits);
+      String summary = generationSummary();
+      if (summary != null) {
+        LOGGER.info(summary);
+      }
       Genotype<G> gt = result.getBestPhenotype().getGenotype();
       LOGGER.info("\n" + gtToString(gt));
 
-      savePopulation();
+      if (counter % checkpointInterval == 0) {
+        savePopulation();
+      }
     }
 
+    savePopulation();
+    Runtime.getRuntime().removeShutdownHook(hook);
     LOGGER.info(name() + " Finished");
     Toolkit.getDefaultToolkit().beep();
   }
 
+  /**
+   * @param gt
+   * @return the fitness for {@code gt}, only calling {@link Optimiser#eval(Genotype)} if it has not
+   *         already been computed.
+   */
+  private E fitness(Genotype<G> gt) {
+    E fitness;
+    if (jobQueue == null) {
+      fitness = evalLocally(gt);
+    } else {
+      partial.set(false);
+      fitness = fitnessCache.get(gt, this::evalRemotely, f -> !partial.get());
+    }
+
+    if (partial.get()) {
+      partials.add(gt);
+    } else {
+      partials.remove(gt);
+    }
+    return fitness;
+  }
+
+  /**
+   * @param gt
+   * @return the fitness for {@code gt} evaluated in this process, see
+   *         {@link Optimiser#isPartial()} for whether it is partial.
+   */
+  E evalLocally(Genotype<G> gt) {
+    partial.set(false);
+    return fitnessCache.get(gt, this::eval, f -> !partial.get());
+  }
+
+  /**
+   * Called from {@link Optimiser#eval(Genotype)} when the fitness being returned is partial e.g. it
+   * was estimated on a subset of the data. Partial fitnesses are never cached or persisted, so the
+   * genotype is evaluated again if it is seen again.
+   */
+  protected void markPartial() {
+    partial.set(true);
+  }
+
+  /**
+   * @return true if the last fitness evaluated on this thread is partial.
+   */
+  boolean isPartial() {
+    return partial.get();
+  }
+
+  /**
+   * @param gt
+   * @return the fitness for {@code gt} evaluated by a {@link Worker}. If the job fails then the
+   *         fitness is evaluated in this process instead.
+   */
+  private E evalRemotely(Genotype<G> gt) {
+    try {
+      return jobQueue.evaluate(gt, this::markPartial);
+    } catch (LungsException e) {
+      LOGGER.error("Failed to evaluate remotely, evaluating locally instead", e);
+      return eval(gt);
+    }
+  }
+
+  /**
+   * Log the wall time and evaluation rate for a generation.
+   *
+   * @param wallTime the time taken to process the generation in milliseconds.
+   * @param evaluations the number of times {@link Optimiser#eval(Genotype)} was called.
+   * @param cacheHits the number of fitnesses that were served by the {@code fitnessCache}.
+   */
+  private void logThroughput(long wallTime, long evaluations, long cacheHits) {
+    double rate = wallTime > 0 ? evaluations * 1000.0 / wallTime : 0.0;
+    LOGGER.info("Generation took " + wallTime + "ms, " + evaluations + " evaluations ("
+        + cacheHits + " cache hits) at " + String.format("%.3f", rate) + " evaluations/sec");
+  }
+
+  /**
+   * Override to log additional information at the end of each generation.
+   *
+   * @return a summary of the work done in the last generation, or {@code null} if there is none.
+   */
+  protected String generationSummary() {
+    return null;
+  }
+
   /**
    * @return the name of the optimiser.
    */
   protected abstract String name();
 
   /**
-   * @return the name of the file that should be used to save and load the population.
+   * @return the name of the file that should be used to save and load the population
+   *         {@link Checkpoint}.
    */
   protected abstract String populationFile();
 
@@ -156,6 +366,9 @@ public abstract class Optimiser<G extends Gene<?, G>, E extends Comparable<? sup
   protected abstract Factory<Genotype<G>> factory();
 
   /**
+   * N.B. This method will be called concurrently from the threads of the executor given in the
+   * constructor.
+   *
    * @param gt
    * @return the fitness for {@code gt} and return it.
    */
@@ -2,6 +2,10 @@ package optimise;
 
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAccumulator;
 
 import org.jenetics.DoubleChromosome;
 import org.jenetics.DoubleGene;
@@ -28,6 +32,11 @@ public class SegOpt1 extends Optimiser<DoubleGene, Double> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SegOpt1.class);
 
+  /**
+   * The argument used to start the optimiser as a {@link Worker}.
+   */
+  static final String WORKER_ARG = "--worker";
+
   /*
    * Indexes in genotype for parameters to be optimised
    */
@@ -40,16 +49,70 @@ public class SegOpt1 extends Optimiser<DoubleGene, Double> {
 
   protected final LungsOptHelper helper;
 
+  /**
+   * The best nodule inclusion obtained by a candidate that was evaluated on all of the Mats.
+   */
+  private final DoubleAccumulator bestInclusion;
+
+  /**
+   * True if candidates should be raced see {@link LungsOptHelper#race(Lungs, double, double,
+   * double)}.
+   */
+  private boolean racing;
+
+  /**
+   * The fraction of the Mats used in the first batch of a race.
+   */
+  private double racingInitial;
+
+  /**
+   * The probability that a race is abandoned wrongly.
+   */
+  private double racingDelta;
+
+  /**
+   * The value of {@link LungsOptHelper#getMatsSegmented()} at the end of the last generation.
+   */
+  private long lastMatsSegmented;
+
   /**
    * @param generations the maximum number of generations that should be used.
    * @param numStacks the number of stacks to use to obtain images for segmentation evaluation.
+   * @param es the executor that phenotypes will be evaluated on.
    */
-  public SegOpt1(int popSize, int generations, int numStacks) {
-    super(popSize, generations);
+  public SegOpt1(int popSize, int generations, int numStacks, ExecutorService es) {
+    super(popSize, generations, es);
     helper = new LungsOptHelper(numStacks);
+    bestInclusion = new DoubleAccumulator(Math::max, 0.0);
     LOGGER.info(helper.getMats().size() + " Mats will be used in eval(..)");
   }
 
+  /**
+   * Race candidates on growing random subsets of the Mats rather than evaluating every candidate on
+   * all of them see {@link LungsOptHelper#race(Lungs, double, double, double)}.
+   *
+   * @param initialFraction the fraction of the Mats used in the first batch of a race.
+   * @param delta the probability that a race is abandoned wrongly.
+   */
+  public void setRacing(double initialFraction, double delta) {
+    this.racing = true;
+    this.racingInitial = initialFraction;
+    this.racingDelta = delta;
+  }
+
+  protected boolean isRacing() {
+    return racing;
+  }
+
+  /**
+   * @param lungs
+   * @param threshold the nodule inclusion that {@code lungs} needs to be able to beat.
+   * @return the result of racing {@code lungs} against the {@code threshold}.
+   */
+  protected LungsOptHelper.Race race(Lungs lungs, double threshold) {
+    return helper.race(lungs, threshold, racingInitial, racingDelta);
+  }
+
 
   /**
    * Determine the fitness of {@code gt} by calculating how accurately is segments the
@@ -71,14 +134,34 @@ public class SegOpt1 extends Optimiser<DoubleGene, Double> {
     BlobDetector detector = new BlobDetector(1, 1);
 
     // Segment the Mats
-    Lungs lungs = new Lungs(filter, extractor, detector);
-    lungs.setJuxtapleural(false);
+    Lungs lungs = new Lungs(filter, extractor, detector, false, true, null);
 
     return calcFitness(lungs);
   }
 
   protected double calcFitness(Lungs lungs) {
-    return helper.noduleInclusion(lungs);
+    if (!racing) {
+      return helper.noduleInclusion(lungs);
+    }
+
+    // Race against the best complete evaluation so far
+    LungsOptHelper.Race race = race(lungs, bestInclusion.get());
+    if (race.isComplete()) {
+      bestInclusion.accumulate(race.getNoduleInclusion());
+    } else {
+      // The inclusion is only an estimate from a subset of the Mats
+      markPartial();
+    }
+
+    return race.getNoduleInclusion();
+  }
+
+  @Override
+  protected String generationSummary() {
+    long matsSegmented = helper.getMatsSegmented();
+    long segmented = matsSegmented - lastMatsSegmented;
+    lastMatsSegmented = matsSegmented;
+    return segmented + " Mats segmented during generation";
   }
 
   @Override
@@ -118,7 +201,7 @@ public class SegOpt1 extends Optimiser<DoubleGene, Double> {
 
   @Override
   protected String populationFile() {
-    return "seg-opt-population.xml";
+    return "seg-opt-population.ckpt";
   }
 
   @Override
@@ -137,25 +220,78 @@ public class SegOpt1 extends Optimiser<DoubleGene, Double> {
   }
 
   /**
-   * @param args
+   * Configure the {@code optimiser} and then either run it as a {@link Worker} or run the GA,
+   * distributing evaluation to workers if configured to.
+   *
+   * @param optimiser
+   * @param worker true if the optimiser should be run as a {@link Worker}.
+   * @param loadPopulation true if the persisted population should be loaded before the GA is run.
+   * @throws IOException
+   */
+  static void start(SegOpt1 optimiser, boolean worker, boolean loadPopulation) throws IOException {
+    optimiser.setCheckpointInterval(ConfigHelper.getInt(SegOptimisation.CHECKPOINT_INTERVAL));
+    if (ConfigHelper.getBoolean(SegOptimisation.RACING)) {
+      optimiser.setRacing(ConfigHelper.getDouble(SegOptimisation.RACING_INITIAL),
+          ConfigHelper.getDouble(SegOptimisation.RACING_DELTA));
+    }
+
+    // Evaluate jobs for another process running the GA
+    int heartbeatTimeout = ConfigHelper.getInt(SegOptimisation.HEARTBEAT_TIMEOUT);
+    if (worker) {
+      new Worker<>(optimiser, heartbeatTimeout / 4).run();
+      return;
+    }
+
+    // Load the persisted population if required to
+    if (loadPopulation) {
+      optimiser.loadPopulation();
+    }
+
+    // Run the GA
+    if (ConfigHelper.getBoolean(SegOptimisation.DISTRIBUTED)) {
+      int maxAttempts = ConfigHelper.getInt(SegOptimisation.MAX_ATTEMPTS);
+      try (JobQueue<DoubleGene, Double> queue =
+          new JobQueue<>(optimiser.name(), heartbeatTimeout, maxAttempts)) {
+        optimiser.setJobQueue(queue);
+        optimiser.run();
+      }
+    } else {
+      optimiser.run();
+    }
+  }
+
+  /**
+   * @param worker true if the optimiser is being run as a {@link Worker}.
+   * @return an executor that phenotypes can be evaluated on. When evaluation is distributed there
+   *         is a thread for each member of the population so that they can all wait on jobs.
+   */
+  static ExecutorService executor(boolean worker) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (!worker && ConfigHelper.getBoolean(SegOptimisation.DISTRIBUTED)) {
+      threads = ConfigHelper.getInt(SegOptimisation.POPULATION);
+    }
+    return Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * @param args pass {@code --worker} to evaluate jobs for a {@link SegOpt1} being run in another
+   *        process with {@code segopt.distributed = true}.
    * @throws IOException
    */
   public static void main(String[] args) throws IOException {
     System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    boolean worker = Arrays.asList(args).contains(WORKER_ARG);
 
     // Create optimiser
     int popSize = ConfigHelper.getInt(SegOptimisation.POPULATION);
     int generations = ConfigHelper.getInt(SegOptimisation.GENERATIONS);
     int numStacks = ConfigHelper.getInt(SegOptimisation.STACKS);
-    SegOpt1 optimiser = new SegOpt1(popSize, generations, numStacks);
-
-    // Load the persisted population if configured to
-    if (ConfigHelper.getBoolean(SegOptimisation.LOAD_POPULATION)) {
-      optimiser.loadPopulation();
-    }
+    ExecutorService es = executor(worker);
+    SegOpt1 optimiser = new SegOpt1(popSize, generations, numStacks, es);
 
     // Run the optimiser
-    optimiser.run();
+    start(optimiser, worker, ConfigHelper.getBoolean(SegOptimisation.LOAD_POPULATION));
+    es.shutdown();
   }
 
 }
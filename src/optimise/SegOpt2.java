@@ -2,7 +2,9 @@ package optimise;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.opencv.core.Core;
 
@@ -19,6 +21,12 @@ import util.ConfigHelper;
  */
 public class SegOpt2 extends SegOpt1 {
 
+  /**
+   * The fitness given to candidates that do not reach the max nodule inclusion, it must be below
+   * any fitness of {@code -numROIs}.
+   */
+  static final double WORST_FITNESS = Double.NEGATIVE_INFINITY;
+
   /**
    * The maximum nodule inclusion obtained using {@link SegOpt1}.
    */
@@ -28,20 +36,36 @@ public class SegOpt2 extends SegOpt1 {
    * @param popSize
    * @param generations the maximum number of generations that should be used.
    * @param numStacks the number of stacks to use to obtain images for segmentation evaluation.
+   * @param es the executor that phenotypes will be evaluated on.
    */
-  public SegOpt2(double maxNoduleInc, int popSize, int generations, int numStacks) {
-    super(popSize, generations, numStacks);
+  public SegOpt2(double maxNoduleInc, int popSize, int generations, int numStacks,
+      ExecutorService es) {
+    super(popSize, generations, numStacks, es);
     this.maxNoduleInc = maxNoduleInc;
   }
 
   @Override
   protected double calcFitness(Lungs lungs) {
+    if (isRacing()) {
+      // Abandon candidates as soon as it is clear they will not reach the max nodule inclusion
+      LungsOptHelper.Race race = race(lungs, maxNoduleInc);
+      if (!race.isComplete()) {
+        // Abandoned on a subset of the Mats so another evaluation could differ
+        markPartial();
+        return WORST_FITNESS;
+      }
+      if (race.getNoduleInclusion() < maxNoduleInc) {
+        return WORST_FITNESS;
+      }
+      return -race.getNumROIs();
+    }
+
     List<List<ROI>> allROIs = helper.extractROIs(lungs);
     double noduleInc = helper.noduleInclusion(allROIs);
 
     // If the nodule inclusion has dropped return worst possible fitness
     if (noduleInc < maxNoduleInc) {
-      return Double.MIN_VALUE;
+      return WORST_FITNESS;
     }
 
     // Fewer ROIs -> greater fitness
@@ -49,8 +73,41 @@ public class SegOpt2 extends SegOpt1 {
     return -numROIs;
   }
 
+  @Override
+  protected String name() {
+    return "False Positive Segmentation Optimiser";
+  }
+
+  @Override
+  protected String populationFile() {
+    return "seg-opt2-population.ckpt";
+  }
+
+  /**
+   * Resume from the population saved by this optimiser if there is one, otherwise start from the
+   * population saved by {@link SegOpt1}.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void loadPopulation() throws IOException {
+    loadPopulation(new File(startingFile()));
+  }
+
+  /**
+   * @return the file that the population should be loaded from.
+   */
+  private String startingFile() {
+    if (new File(populationFile()).exists()) {
+      return populationFile();
+    }
+    return super.populationFile();
+  }
+
   /**
-   * @param args a single argument providing the optimum fitness output by {@link SegOpt1}.
+   * @param args the first argument must provide the optimum fitness output by {@link SegOpt1}. Pass
+   *        {@code --worker} as the second argument to evaluate jobs for a {@link SegOpt2} being run
+   *        in another process with {@code segopt.distributed = true}.
    * @throws IOException
    */
   public static void main(String[] args) throws IOException {
@@ -62,22 +119,24 @@ public class SegOpt2 extends SegOpt1 {
     } catch (NumberFormatException | IndexOutOfBoundsException e) {
       throw new IllegalArgumentException("You must provide the max fitness output by SegOpt1");
     }
+    boolean worker = Arrays.asList(args).contains(WORKER_ARG);
 
     // Create optimiser
     int popSize = ConfigHelper.getInt(SegOptimisation.POPULATION);
     int generations = ConfigHelper.getInt(SegOptimisation.GENERATIONS);
     int numStacks = ConfigHelper.getInt(SegOptimisation.STACKS);
-    SegOpt2 optimiser = new SegOpt2(maxNoduleInc, popSize, generations, numStacks);
+    ExecutorService es = executor(worker);
+    SegOpt2 optimiser = new SegOpt2(maxNoduleInc, popSize, generations, numStacks, es);
 
-    // Load the persisted population if configured to
-    if (!new File(optimiser.populationFile()).exists()) {
-      throw new IllegalArgumentException(optimiser.populationFile()
+    // Check the persisted population exists
+    if (!worker && !new File(optimiser.startingFile()).exists()) {
+      throw new IllegalArgumentException(optimiser.startingFile()
           + " must be in the working directory");
     }
-    optimiser.loadPopulation();
 
     // Run the optimiser
-    optimiser.run();
+    start(optimiser, worker, true);
+    es.shutdown();
   }
 
 }
@@ -0,0 +1,172 @@
+package optimise;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.jenetics.Gene;
+import org.jenetics.Genotype;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Query;
+import org.mongodb.morphia.query.UpdateOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import model.FitnessJob;
+import util.MongoHelper;
+
+/**
+ * Claims {@link FitnessJob}s submitted by a {@link JobQueue} and evaluates them using the
+ * {@link Optimiser#eval(Genotype)} of a local copy of the optimiser. While a job is being evaluated
+ * a heartbeat is sent so that the {@link JobQueue} knows the worker is still alive.
+ *
+ * @param <G> the type of gene being used i.e {@link org.jenetics.DoubleGene}.
+ * @param <E> the type used as the result for the evaluation function i.e. {@link Double}.
+ * @author Stuart Clark
+ */
+public class Worker<G extends Gene<?, G>, E extends Comparable<? super E>> implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Worker.class);
+
+  /**
+   * The interval in milliseconds between checks for new jobs when the queue is empty.
+   */
+  private static final long POLL_INTERVAL = 100;
+
+  private final Datastore ds;
+  private final Optimiser<G, E> optimiser;
+
+  /**
+   * The interval in milliseconds between heartbeats.
+   */
+  private final long heartbeatInterval;
+
+  /**
+   * Used to identify the worker in the {@link FitnessJob}s it claims.
+   */
+  private final String id;
+
+  private final ScheduledExecutorService heart;
+
+  private volatile boolean running;
+
+  /**
+   * @param optimiser the optimiser that should be used to evaluate the jobs.
+   * @param heartbeatInterval the interval in milliseconds between heartbeats. Should be
+   *        comfortably shorter than the heartbeat timeout used by the {@link JobQueue}.
+   */
+  public Worker(Optimiser<G, E> optimiser, long heartbeatInterval) {
+    this.ds = MongoHelper.getDataStore();
+    this.optimiser = optimiser;
+    this.heartbeatInterval = heartbeatInterval;
+    this.id = ManagementFactory.getRuntimeMXBean().getName() + "-" + System.nanoTime();
+    this.heart = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Evaluate jobs until {@link Worker#stop()} is called. N.B. This method is blocking.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void run() {
+    LOGGER.info("Worker " + id + " waiting for " + optimiser.name() + " jobs...");
+    running = true;
+
+    while (running) {
+      FitnessJob job = claim();
+      if (job == null) {
+        sleep();
+        continue;
+      }
+
+      // Send heartbeats until the job is complete
+      ScheduledFuture<?> heartbeat =
+          heart.scheduleAtFixedRate(() -> beat(job), heartbeatInterval, heartbeatInterval,
+              TimeUnit.MILLISECONDS);
+      try {
+        Genotype<G> gt = (Genotype<G>) SerializationUtils.deserialize(job.getGenotype());
+        E fitness = optimiser.evalLocally(gt);
+        complete(job, fitness, optimiser.isPartial());
+      } catch (RuntimeException e) {
+        // Leave the job to be retried once the heartbeat times out
+        LOGGER.error("Failed to evaluate job " + job.getId(), e);
+      } finally {
+        heartbeat.cancel(false);
+      }
+    }
+
+    heart.shutdownNow();
+    LOGGER.info("Worker " + id + " stopped");
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  /**
+   * @return the next pending job for the optimiser which has now been marked as running by this
+   *         worker, or {@code null} if there are no pending jobs.
+   */
+  private FitnessJob claim() {
+    Query<FitnessJob> pending =
+        ds.createQuery(FitnessJob.class).field("optimiser").equal(optimiser.name())
+            .field("status").equal(FitnessJob.Status.PENDING);
+    UpdateOperations<FitnessJob> claim =
+        ds.createUpdateOperations(FitnessJob.class).set("status", FitnessJob.Status.RUNNING)
+            .set("worker", id).set("heartbeat", System.currentTimeMillis()).inc("attempts");
+    return ds.findAndModify(pending, claim);
+  }
+
+  /**
+   * Update the heartbeat for the {@code job}, provided it has not been reclaimed by another worker.
+   *
+   * @param job
+   */
+  private void beat(FitnessJob job) {
+    try {
+      ds.update(owned(job),
+          ds.createUpdateOperations(FitnessJob.class).set("heartbeat", System.currentTimeMillis()));
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to send heartbeat for job " + job.getId(), e);
+    }
+  }
+
+  /**
+   * Store the {@code fitness} for the {@code job} and mark it as done, provided it has not been
+   * reclaimed by another worker.
+   *
+   * @param job
+   * @param fitness
+   * @param partial true if the {@code fitness} is partial see {@link Optimiser#markPartial()}.
+   */
+  private void complete(FitnessJob job, E fitness, boolean partial) {
+    UpdateOperations<FitnessJob> done =
+        ds.createUpdateOperations(FitnessJob.class).set("status", FitnessJob.Status.DONE)
+            .set("fitness", JobQueue.serialise(fitness)).set("partial", partial);
+    if (ds.update(owned(job), done).getUpdatedCount() == 0) {
+      LOGGER.warn("Job " + job.getId() + " was reclaimed before it could be completed");
+    }
+  }
+
+  /**
+   * @param job
+   * @return a query for {@code job} that only matches if it is still running on this worker.
+   */
+  private Query<FitnessJob> owned(FitnessJob job) {
+    return ds.createQuery(FitnessJob.class).field("_id").equal(job.getId()).field("worker")
+        .equal(id).field("status").equal(FitnessJob.Status.RUNNING);
+  }
+
+  private void sleep() {
+    try {
+      Thread.sleep(POLL_INTERVAL);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    }
+  }
+
+}
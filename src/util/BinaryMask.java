@@ -0,0 +1,85 @@
+package util;
+
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * A binary mask copied out of a single channel {@link Mat} into a byte array so that the membership
+ * of a pixel can be tested in constant time without boxing. Any pixel with a non zero value is in
+ * the mask.
+ *
+ * @author Stuart Clark
+ */
+public class BinaryMask {
+
+  private final int rows;
+  private final int cols;
+
+  /**
+   * The pixels of the mask in row major order.
+   */
+  private final byte[] pixels;
+
+  /**
+   * @param mask a {@link CvType#CV_8UC1} {@link Mat}, non zero pixels are in the mask.
+   */
+  public BinaryMask(Mat mask) {
+    if (mask.type() != CvType.CV_8UC1) {
+      throw new IllegalArgumentException("mask must be of type CV_8UC1");
+    }
+
+    this.rows = mask.rows();
+    this.cols = mask.cols();
+    this.pixels = new byte[rows * cols];
+
+    // Mat.get(..) can only copy all the pixels at once from a continuous Mat
+    Mat continuous = mask.isContinuous() ? mask : mask.clone();
+    continuous.get(0, 0, pixels);
+  }
+
+  /**
+   * @param row
+   * @param col
+   * @return true if the pixel at {@code row}, {@code col} is in the mask, false otherwise
+   *         (including if it is out of bounds).
+   */
+  public boolean contains(int row, int col) {
+    return row >= 0 && row < rows && col >= 0 && col < cols && pixels[row * cols + col] != 0;
+  }
+
+  /**
+   * @param point
+   * @return true if {@code point} is in the mask, false otherwise. Points without integer
+   *         co-ordinates are never in the mask.
+   */
+  public boolean contains(Point point) {
+    int col = (int) point.x;
+    int row = (int) point.y;
+    return col == point.x && row == point.y && contains(row, col);
+  }
+
+  /**
+   * @param points
+   * @return true if all of the {@code points} are in the mask, false otherwise.
+   */
+  public boolean containsAll(List<Point> points) {
+    for (Point point : points) {
+      if (!contains(point)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int rows() {
+    return rows;
+  }
+
+  public int cols() {
+    return cols;
+  }
+
+}
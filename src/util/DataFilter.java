@@ -168,6 +168,13 @@ public class DataFilter {
     return all(query).field("readingNumber").equal(READING_NUMBER);
   }
 
+  /**
+   * @return the reading number that is being used to select {@link GroundTruth}s.
+   */
+  public int getReadingNumber() {
+    return READING_NUMBER;
+  }
+
   public Set<String> getTrainInstances() {
     return trainInstances;
   }
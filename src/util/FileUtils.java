@@ -0,0 +1,64 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A suite of utilities relating to files.
+ *
+ * @author Stuart Clark
+ */
+public class FileUtils {
+
+  private FileUtils() {
+    // Hide constructor
+  }
+
+  /**
+   * Replace the contents of {@code path} with those written by {@code writer}. The contents are
+   * written to a temporary file in the same directory which is then moved over {@code path}, so a
+   * reader can never see a partially written file and a failed write leaves {@code path} as it
+   * was. The move is atomic where the file system supports it.
+   *
+   * @param path the file to replace.
+   * @param writer writes the new contents to the temporary file it is given.
+   * @throws IOException if the temporary file could not be created or moved.
+   * @throws X if {@code writer} fails.
+   */
+  public static <X extends Exception> void writeAtomically(Path path, ContentWriter<X> writer)
+      throws IOException, X {
+    Path target = path.toAbsolutePath();
+    Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      writer.write(tmp);
+      try {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Writes the contents of a file see {@link FileUtils#writeAtomically(Path, ContentWriter)}.
+   *
+   * @param <X> the type of exception thrown if the contents can't be written.
+   */
+  @FunctionalInterface
+  public interface ContentWriter<X extends Exception> {
+
+    /**
+     * @param path the file to write the contents to.
+     * @throws X
+     */
+    void write(Path path) throws X;
+
+  }
+
+}
@@ -1,14 +1,27 @@
 package util;
 
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Intended to be used to log the progress of a large number of {@link Future}s
+ * Intended to be used to log the progress of a large number of tasks. Tasks are submitted through
+ * the monitor, which counts them as they complete rather than polling them, so the cost of logging
+ * the progress does not depend on the number of tasks. Failures are logged as soon as they happen.
+ * The progress includes the overall throughput, a moving average of the recent rate and an estimate
+ * of the time remaining.
  *
  * @author Stuart Clark
  */
@@ -17,116 +30,253 @@ public class FutureMonitor {
   private static final Logger LOGGER = LoggerFactory.getLogger(FutureMonitor.class);
 
   /**
-   * The runnable used to log the progress of the futures.
+   * The time in milliseconds over which the moving average of the rate is taken.
    */
-  private final ProgressLogger progress;
+  private static final double RATE_WINDOW = 60000;
+
+  private final Executor executor;
 
   /**
-   * The futures to monitor.
+   * The value of {@link System#nanoTime()} when the monitor was created, tasks may finish before
+   * {@link FutureMonitor#monitor()} is called.
    */
-  private List<Future> futures;
+  private final long created;
 
-  public FutureMonitor(List<Future> futures) {
+  /**
+   * The logging interval in milliseconds.
+   */
+  private final long logInterval;
+
+  /**
+   * The tasks that have been submitted but are not yet done, used to cancel them.
+   */
+  private final Set<Future<?>> pending;
+
+  private final AtomicLong submitted;
+  private final AtomicLong finished;
+  private final LongAdder failed;
+  private final LongAdder cancelled;
+
+  /**
+   * Notified when the last task that has been submitted finishes.
+   */
+  private final Object lock;
+
+  /**
+   * The string that should be used when logging e.g. "futures have completed".
+   */
+  private volatile String logString;
+
+  /**
+   * @param executor used to run the tasks.
+   */
+  public FutureMonitor(Executor executor) {
     // logInterval of 10s
-    this(futures, 10000);
+    this(executor, 10000);
   }
 
   /**
-   * @param futures the futures to monitor
+   * @param executor used to run the tasks.
    * @param logInterval the logging interval in milliseconds.
    */
-  public FutureMonitor(List<Future> futures, long logInterval) {
-    this.futures = futures;
-    this.progress = new ProgressLogger(futures, logInterval);
+  public FutureMonitor(Executor executor, long logInterval) {
+    this.executor = executor;
+    this.created = System.nanoTime();
+    this.logInterval = logInterval;
+    this.pending = ConcurrentHashMap.newKeySet();
+    this.submitted = new AtomicLong();
+    this.finished = new AtomicLong();
+    this.failed = new LongAdder();
+    this.cancelled = new LongAdder();
+    this.lock = new Object();
+    this.logString = "futures have completed";
   }
 
   /**
-   * Commences monitoring of the {@link Future}s. This method will block until all of the
-   * {@link Future}s are done.
+   * @param task the task to run.
+   * @return the future for the {@code task}.
+   * @throws RejectedExecutionException if the executor rejects the {@code task}, it is not counted.
    */
-  public void monitor() {
-    // Create and start logging thread
-    new Thread(progress).start();
-
-    // Wait for all the futures to complete
-    for (Future future : futures) {
-      try {
-        future.get();
-      } catch (InterruptedException | ExecutionException e) {
-        LOGGER.error("Failed to get Future", e);
+  public <T> Future<T> submit(Callable<T> task) {
+    FutureTask<T> future = new FutureTask<T>(task) {
+      @Override
+      protected void done() {
+        finished(this);
       }
-    }
+    };
 
-    // Stop the logging thread
-    progress.stop();
+    // Added before it can run so that it is never removed before it is added
+    pending.add(future);
+    submitted.incrementAndGet();
+    try {
+      executor.execute(future);
+    } catch (RejectedExecutionException e) {
+      // Forget the task so that monitor() does not wait for it
+      pending.remove(future);
+      if (submitted.decrementAndGet() <= finished.get()) {
+        synchronized (lock) {
+          lock.notifyAll();
+        }
+      }
+      throw e;
+    }
+    return future;
   }
 
   /**
-   * Set the string that should be used when logging e.g. "futures have completed".
+   * @param task the task to run.
+   * @return the future for the {@code task}.
    */
-  public void setLogString(String logString) {
-    progress.setLogString(logString);
+  public Future<?> submit(Runnable task) {
+    return submit(() -> {
+      task.run();
+      return null;
+    });
   }
 
   /**
-   * A {@link Runnable} used to log the progress of the {@link Future}s.
+   * Commences monitoring of the tasks. This method will block until all of the tasks that have
+   * been submitted are done, logging the progress every {@code logInterval} milliseconds. If the
+   * calling thread is interrupted the remaining tasks are cancelled.
    */
-  private static class ProgressLogger implements Runnable {
-
-    /**
-     * The futures to monitor.
-     */
-    private List<Future> futures;
+  public void monitor() {
+    long start = created;
+    long lastTime = start;
+    long lastFinished = 0;
+    double rate = -1;
 
-    /**
-     * The logging interval in milliseconds.
-     */
-    private long logInterval;
+    try {
+      while (true) {
+        // Wait for all of the tasks to finish or the next time to log
+        synchronized (lock) {
+          long deadline = System.currentTimeMillis() + logInterval;
+          long wait;
+          while (finished.get() < submitted.get()
+              && (wait = deadline - System.currentTimeMillis()) > 0) {
+            lock.wait(wait);
+          }
+        }
 
-    /**
-     * The string that should be used when logging e.g. "futures have completed".
-     */
-    private String logString;
+        long now = System.nanoTime();
+        long done = finished.get();
+        long total = submitted.get();
+        if (done >= total) {
+          break;
+        }
 
-    private boolean running;
+        // Update the moving average of the rate
+        double elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastTime);
+        double recent = elapsed > 0 ? (done - lastFinished) / elapsed * 1000 : 0;
+        double alpha = 1 - Math.exp(-elapsed / RATE_WINDOW);
+        rate = rate < 0 ? recent : alpha * recent + (1 - alpha) * rate;
+        lastTime = now;
+        lastFinished = done;
 
-    ProgressLogger(List<Future> futures, long logInterval) {
-      this.futures = futures;
-      this.logInterval = logInterval;
-      this.running = true;
+        LOGGER.info(progress(done, total, start, now, rate));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted while monitoring, cancelling remaining tasks", e);
+      cancel();
+      return;
     }
 
-    void setLogString(String logString) {
-      this.logString = logString;
+    LOGGER.info(progress(finished.get(), submitted.get(), start, System.nanoTime(), rate)
+        + ", took " + TimeUtils.milliToString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+            - start)));
+  }
+
+  /**
+   * Cancel all of the tasks that are not yet done, interrupting those that are running.
+   */
+  public void cancel() {
+    for (Future<?> future : pending) {
+      future.cancel(true);
     }
+  }
 
-    @Override
-    public void run() {
-      int counter = 0;
-      while (running && counter < futures.size()) {
-        // Count the number of futures that are complete
-        counter = 0;
-        for (Future future : futures) {
-          if (future.isDone()) {
-            counter++;
-          }
-        }
+  /**
+   * Set the string that should be used when logging e.g. "futures have completed".
+   */
+  public void setLogString(String logString) {
+    this.logString = logString;
+  }
 
-        // Logging
-        LOGGER.info(counter + "/" + futures.size() + " " + logString);
+  /**
+   * @return the number of tasks that have been submitted.
+   */
+  public long getSubmitted() {
+    return submitted.get();
+  }
 
-        // Sleep for logInterval milliseconds
-        try {
-          Thread.sleep(logInterval);
-        } catch (InterruptedException e) {
-          LOGGER.error("Logging thread interrupted", e);
-        }
+  /**
+   * @return the number of tasks that are done, including those that failed or were cancelled.
+   */
+  public long getFinished() {
+    return finished.get();
+  }
+
+  /**
+   * @return the number of tasks that threw an exception.
+   */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /**
+   * @return the number of tasks that were cancelled.
+   */
+  public long getCancelled() {
+    return cancelled.sum();
+  }
+
+  /**
+   * Called when a task is done, counts it and logs it if it failed.
+   *
+   * @param future
+   */
+  private void finished(Future<?> future) {
+    pending.remove(future);
+    try {
+      future.get();
+    } catch (CancellationException e) {
+      cancelled.increment();
+    } catch (ExecutionException e) {
+      failed.increment();
+      LOGGER.error("Task failed (" + failed.sum() + " failures so far)", e.getCause());
+    } catch (InterruptedException e) {
+      // Can't happen as the future is done
+      Thread.currentThread().interrupt();
+    }
+
+    if (finished.incrementAndGet() >= submitted.get()) {
+      synchronized (lock) {
+        lock.notifyAll();
       }
     }
+  }
 
-    void stop() {
-      running = false;
+  /**
+   * @return a description of the progress of the tasks.
+   */
+  private String progress(long done, long total, long start, long now, double rate) {
+    double seconds = (now - start) / (double) TimeUnit.SECONDS.toNanos(1);
+    StringBuilder sb = new StringBuilder();
+    sb.append(done).append("/").append(total).append(" ").append(logString);
+    sb.append(String.format(", %.1f/s overall", seconds > 0 ? done / seconds : 0));
+    if (rate > 0) {
+      long eta = (long) ((total - done) / rate * 1000);
+      sb.append(String.format(", %.1f/s recently, ETA %s", rate, TimeUtils.milliToString(eta)));
+    }
+    long failures = failed.sum();
+    if (failures > 0) {
+      sb.append(", ").append(failures).append(" failed");
+    }
+    long cancels = cancelled.sum();
+    if (cancels > 0) {
+      sb.append(", ").append(cancels).append(" cancelled");
     }
+    return sb.toString();
   }
 
 }
@@ -0,0 +1,56 @@
+package util;
+
+import java.util.List;
+import java.util.function.IntFunction;
+
+import org.opencv.core.Mat;
+
+/**
+ * A source of {@link Mat}s for {@link MatViewer} that can create each {@link Mat} when it is needed
+ * rather than holding them all in memory.
+ *
+ * @author Stuart Clark
+ */
+public interface ImageSource {
+
+  /**
+   * @return the number of {@link Mat}s in the source.
+   */
+  int size();
+
+  /**
+   * N.B. This method may be called from more than one thread at once.
+   *
+   * @param index
+   * @return the {@link Mat} at {@code index}.
+   */
+  Mat get(int index);
+
+  /**
+   * @param mats
+   * @return a source backed by {@code mats}.
+   */
+  static ImageSource of(List<Mat> mats) {
+    return of(mats.size(), mats::get);
+  }
+
+  /**
+   * @param size the number of {@link Mat}s in the source.
+   * @param render used to create the {@link Mat} for an index when it is needed.
+   * @return a source that creates its {@link Mat}s using {@code render}.
+   */
+  static ImageSource of(int size, IntFunction<Mat> render) {
+    return new ImageSource() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Mat get(int index) {
+        return render.apply(index);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,155 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe histogram of latencies that can be used to estimate percentiles. Latencies are
+ * counted in logarithmic buckets, each power of 2 is split into {@code SUB_BUCKETS} buckets, so
+ * the percentiles reported are never more than 12.5% larger than the true value. Recording a
+ * latency never allocates or blocks.
+ *
+ * @author Stuart Clark
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int NUM_BUCKETS = Long.SIZE * SUB_BUCKETS;
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private final AtomicLongArray buckets;
+  private final LongAdder count;
+  private final LongAdder total;
+  private final AtomicLong max;
+
+  public LatencyHistogram() {
+    this.buckets = new AtomicLongArray(NUM_BUCKETS);
+    this.count = new LongAdder();
+    this.total = new LongAdder();
+    this.max = new AtomicLong();
+  }
+
+  /**
+   * @param nanos the latency in nanoseconds, negative values are recorded as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    buckets.incrementAndGet(index(value));
+    count.increment();
+    total.add(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * @param start the value of {@link System#nanoTime()} when timing was started.
+   */
+  public void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  /**
+   * @param percentile the percentile to find (0-100).
+   * @return an upper bound on the latency in nanoseconds at {@code percentile}, 0 if nothing has
+   *         been recorded.
+   */
+  public long percentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+
+    // The rank of the latency that we are looking for
+    long recorded = 0;
+    long[] counts = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      recorded += counts[i];
+    }
+    long rank = Math.max((long) Math.ceil(percentile / 100 * recorded), 1);
+
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the number of latencies recorded.
+   */
+  public long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return the mean latency in nanoseconds, 0 if nothing has been recorded.
+   */
+  public double mean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) total.sum() / n;
+  }
+
+  /**
+   * @return the largest latency recorded in nanoseconds.
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * @return a summary of the latencies in milliseconds.
+   */
+  public String summary() {
+    return String.format("count %d, mean %.2fms, p50 %.2fms, p90 %.2fms, p99 %.2fms, max %.2fms",
+        count(), mean() / NANOS_PER_MILLI, millis(percentile(50)), millis(percentile(90)),
+        millis(percentile(99)), millis(max()));
+  }
+
+  /**
+   * @param nanos
+   * @return {@code nanos} converted to milliseconds.
+   */
+  public static double millis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * @param value a non negative latency.
+   * @return the index of the bucket that {@code value} is counted in.
+   */
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @param index
+   * @return the smallest value counted in the bucket at {@code index}.
+   */
+  static long lowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+  }
+
+  /**
+   * @param index
+   * @return the largest value counted in the bucket at {@code index}.
+   */
+  static long upperBound(int index) {
+    return index == NUM_BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(index + 1) - 1;
+  }
+
+}
@@ -0,0 +1,44 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link LinkedHashMap} that evicts the least recently accessed entry once it holds more than
+ * {@code capacity} entries.
+ *
+ * N.B. like {@link LinkedHashMap} this class is not thread safe, wrap it using
+ * {@link java.util.Collections#synchronizedMap(Map)} if it is to be shared between threads.
+ *
+ * @author Stuart Clark
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The maximum number of entries that the cache should hold.
+   */
+  private final int capacity;
+
+  /**
+   * @param capacity the maximum number of entries that the cache should hold.
+   */
+  public LruCache(int capacity) {
+    super(16, 0.75f, true);
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    this.capacity = capacity;
+  }
+
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    return size() > capacity;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+}
@@ -28,6 +28,7 @@ public class MatUtils {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MatUtils.class);
   private static final String IMAGE_DIR;
+  private static final Metrics.Timer DECODE_TIMER = Metrics.timer("dicom.decode");
 
   static {
     if (ConfigHelper.getMode() == Mode.Value.TEST) {
@@ -78,7 +79,7 @@ public class MatUtils {
    * @return {@code mats} converted to an BGR {@link Mat}s.
    */
   public static List<Mat> grey2BGR(List<Mat> mats) {
-    return mats.parallelStream().map(MatUtils::grey2BGR).collect(Collectors.toList());
+    return Renderer.toBGR(mats);
   }
 
   /**
@@ -86,16 +87,7 @@ public class MatUtils {
    * @return mat converted to an BGR mat
    */
   public static Mat grey2BGR(Mat mat) {
-    Mat bgr = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC3);
-
-    for (int i = 0; i < mat.rows(); i++) {
-      for (int j = 0; j < mat.cols(); j++) {
-        double val = mat.get(i, j)[0];
-        bgr.put(i, j, val, val, val);
-      }
-    }
-
-    return bgr;
+    return Renderer.toBGR(mat);
   }
 
   /**
@@ -201,9 +193,15 @@ public class MatUtils {
     int counter = 0;
     while (true) {
       try {
-        DICOM dicom = new DICOM();
-        dicom.open(IMAGE_DIR + slice.getFilePath());
-        return MatUtils.fromDICOM(dicom);
+        long start = DECODE_TIMER.start();
+        try {
+          DICOM dicom = new DICOM();
+          dicom.open(IMAGE_DIR + slice.getFilePath());
+          return MatUtils.fromDICOM(dicom);
+        } finally {
+          // Failed decodes are recorded too, but not the wait before retrying
+          DECODE_TIMER.stop(start);
+        }
       } catch (Exception e) {
         LOGGER.error("Trying again in one second with slice: " + slice.getId(), e);
         try {
@@ -9,7 +9,9 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.*;
 
@@ -18,13 +20,33 @@ import org.opencv.core.Mat;
 /**
  * Debugging utility to enable the viewing of a list of {@link Mat}s in order. Use the left and
  * right arrow keys to change image.
+ *
+ * {@link Mat}s are only converted to {@link BufferedImage}s when they are displayed, the neighbours
+ * of the image being displayed are converted in the background and only the most recently used
+ * images are kept in memory.
  * 
  * @author Stuart Clark
  */
 public class MatViewer {
 
-  private CircularList<BufferedImage> unannotated;
-  private CircularList<BufferedImage> annotated;
+  /**
+   * The maximum number of converted images to keep in memory for each {@link ImageSource}.
+   */
+  private static final int CACHE_SIZE = 16;
+
+  /**
+   * The number of images either side of the image being displayed to convert in the background.
+   */
+  private static final int PREFETCH = 2;
+
+  private final Images unannotated;
+  private final Images annotated;
+
+  /**
+   * Used to convert images in the background.
+   */
+  private final ExecutorService prefetcher;
+
   private List<String> matTitles;
   private Object lock;
   private int currentImage;
@@ -43,14 +65,23 @@ public class MatViewer {
   }
 
   public MatViewer(List<Mat> mats, List<Mat> annotated) {
-    this.unannotated =
-        new CircularList<>(mats.parallelStream().map(MatUtils::toBufferedImage)
-            .collect(Collectors.toList()));
-    this.annotated =
-        new CircularList<>(annotated.parallelStream().map(MatUtils::toBufferedImage)
-            .collect(Collectors.toList()));
+    this(ImageSource.of(mats), ImageSource.of(annotated));
+  }
+
+  /**
+   * @param unannotated
+   * @param annotated should be the same size as {@code unannotated}.
+   */
+  public MatViewer(ImageSource unannotated, ImageSource annotated) {
+    this.unannotated = new Images(unannotated);
+    this.annotated = new Images(annotated);
+    this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "MatViewer prefetch");
+      thread.setDaemon(true);
+      return thread;
+    });
     this.annotationsOn = true;
-    this.matTitles = new CircularList<>(defaultTitles(mats.size()));
+    this.matTitles = new CircularList<>(defaultTitles(unannotated.size()));
     this.lock = new Object();
   }
 
@@ -66,16 +97,14 @@ public class MatViewer {
     final JPanel panel = new JPanel() {
       @Override
       protected void paintComponent(Graphics g) {
-        CircularList<BufferedImage> images = annotationsOn ? annotated : unannotated;
         Graphics g2 = g.create();
-        g2.drawImage(images.get(currentImage), 0, 0, getWidth(), getHeight(), null);
+        g2.drawImage(image(currentImage), 0, 0, getWidth(), getHeight(), null);
         g2.dispose();
       }
 
       @Override
       public Dimension getPreferredSize() {
-        CircularList<BufferedImage> images = annotationsOn ? annotated : unannotated;
-        BufferedImage img = images.get(currentImage);
+        BufferedImage img = image(currentImage);
         return new Dimension(img.getWidth(), img.getHeight());
       }
     };
@@ -88,6 +117,7 @@ public class MatViewer {
     frame.add(panel);
     frame.pack();
     frame.setVisible(true);
+    prefetch();
 
     // Create a new thread that will stop when lock.notify() is called
     Thread t = new Thread(() -> {
@@ -134,6 +164,7 @@ public class MatViewer {
 
         frame.setTitle(getTitle());
         frame.repaint();
+        prefetch();
       }
     });
 
@@ -144,10 +175,37 @@ public class MatViewer {
       // Don't want exception to be thrown by this method as will need to be handled each time this
       // class is used for debugging.
       throw new RuntimeException(e);
+    } finally {
+      prefetcher.shutdownNow();
     }
 
   }
 
+  /**
+   * @param index
+   * @return the image at {@code index} (looping round at either end) from the annotated or
+   *         unannotated images depending on which are being displayed. Converted now if it is not
+   *         already in memory.
+   */
+  BufferedImage image(int index) {
+    return (annotationsOn ? annotated : unannotated).get(index);
+  }
+
+  /**
+   * Convert the neighbours of the current image in the background so they are ready when they are
+   * displayed.
+   */
+  private void prefetch() {
+    Images images = annotationsOn ? annotated : unannotated;
+    int current = currentImage;
+    prefetcher.submit(() -> {
+      for (int i = 1; i <= PREFETCH; i++) {
+        images.get(current + i);
+        images.get(current - i);
+      }
+    });
+  }
+
   private String getTitle() {
     return matTitles.get(currentImage) + " - Annotations " + (annotationsOn ? "on" : "off");
   }
@@ -164,4 +222,35 @@ public class MatViewer {
     return names;
   }
 
+  /**
+   * Converts the {@link Mat}s from an {@link ImageSource} into {@link BufferedImage}s when they are
+   * needed, keeping the most recently used in memory.
+   */
+  private static class Images {
+
+    private final ImageSource source;
+    private final Map<Integer, BufferedImage> cache;
+
+    private Images(ImageSource source) {
+      this.source = source;
+      this.cache = Collections.synchronizedMap(new LruCache<>(CACHE_SIZE));
+    }
+
+    /**
+     * @param index
+     * @return the image at {@code index}, looping round at either end.
+     */
+    private BufferedImage get(int index) {
+      int i = Math.floorMod(index, source.size());
+      BufferedImage image = cache.get(i);
+      if (image == null) {
+        // Images may be converted twice if requested by two threads at once, which is harmless
+        image = MatUtils.toBufferedImage(source.get(i));
+        cache.put(i, image);
+      }
+      return image;
+    }
+
+  }
+
 }
@@ -0,0 +1,336 @@
+package util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Monitoring;
+
+/**
+ * A registry of named metrics shared by the whole process, used to see where the time goes in a
+ * run without attaching a profiler. There are three kinds of metric:
+ * <ul>
+ * <li>{@link Counter}s that count events e.g. failures.</li>
+ * <li>{@link Timer}s that record the latency of each call to a stage and report its percentiles.
+ * </li>
+ * <li>Gauges that report a value when asked e.g. the depth of a queue.</li>
+ * </ul>
+ * Recording a metric never blocks, so they can be left in place in production runs. Once
+ * {@link Metrics#start()} has been called the metrics are periodically written to a file and can
+ * be viewed over JMX as the attributes of {@code lungs:type=Metrics}, depending on the
+ * configuration see {@link Monitoring}.
+ *
+ * @author Stuart Clark
+ */
+public class Metrics {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+  private static final String OBJECT_NAME = "lungs:type=Metrics";
+
+  private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+  private static ScheduledExecutorService reporter;
+
+  private Metrics() {
+    // Hide constructor
+  }
+
+  /**
+   * @param name
+   * @return the {@link Counter} called {@code name}, created if it does not exist.
+   */
+  public static Counter counter(String name) {
+    return COUNTERS.computeIfAbsent(name, n -> new Counter());
+  }
+
+  /**
+   * @param name
+   * @return the {@link Timer} called {@code name}, created if it does not exist.
+   */
+  public static Timer timer(String name) {
+    return TIMERS.computeIfAbsent(name, n -> new Timer());
+  }
+
+  /**
+   * Register a gauge, replacing any existing gauge with the same name.
+   *
+   * @param name
+   * @param gauge supplies the current value of the gauge, must be thread safe.
+   */
+  public static void gauge(String name, LongSupplier gauge) {
+    GAUGES.put(name, gauge);
+  }
+
+  /**
+   * @param name the name of a gauge that should no longer be reported.
+   */
+  public static void removeGauge(String name) {
+    GAUGES.remove(name);
+  }
+
+  /**
+   * @return the current value of every metric, sorted by name. Each metric has several values
+   *         which are suffixed with e.g. {@code .count}, {@code .rate} (per second),
+   *         {@code .p95Ms}.
+   */
+  public static SortedMap<String, Double> snapshot() {
+    SortedMap<String, Double> values = new TreeMap<>();
+    COUNTERS.forEach((name, counter) -> {
+      values.put(name + ".count", (double) counter.count());
+      values.put(name + ".rate", counter.rate());
+    });
+    TIMERS.forEach((name, timer) -> {
+      LatencyHistogram latency = timer.latency;
+      values.put(name + ".count", (double) latency.count());
+      values.put(name + ".rate", timer.rate());
+      values.put(name + ".meanMs", latency.mean() / TimeUnit.MILLISECONDS.toNanos(1));
+      values.put(name + ".p50Ms", LatencyHistogram.millis(latency.percentile(50)));
+      values.put(name + ".p95Ms", LatencyHistogram.millis(latency.percentile(95)));
+      values.put(name + ".p99Ms", LatencyHistogram.millis(latency.percentile(99)));
+      values.put(name + ".maxMs", LatencyHistogram.millis(latency.max()));
+    });
+    GAUGES.forEach((name, gauge) -> {
+      try {
+        values.put(name + ".value", (double) gauge.getAsLong());
+      } catch (RuntimeException e) {
+        LOGGER.error("Failed to read gauge " + name, e);
+      }
+    });
+    return values;
+  }
+
+  /**
+   * @return the {@link Metrics#snapshot()} with one metric value per line.
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Double> entry : snapshot().entrySet()) {
+      sb.append(String.format("%s = %.3f\n", entry.getKey(), entry.getValue()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Start writing the metrics to {@link Monitoring#FILE} and register them with JMX, if they are
+   * enabled in the configuration. Does nothing if already started.
+   */
+  public static synchronized void start() {
+    if (reporter != null) {
+      return;
+    }
+
+    if (ConfigHelper.getBoolean(Monitoring.JMX)) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+            new ObjectName(OBJECT_NAME));
+        LOGGER.info("Metrics registered with JMX as " + OBJECT_NAME);
+      } catch (JMException e) {
+        LOGGER.error("Failed to register metrics with JMX", e);
+      }
+    }
+
+    reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metrics-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    String file = ConfigHelper.getString(Monitoring.FILE);
+    if (!file.isEmpty()) {
+      Path path = Paths.get(file);
+      long interval = ConfigHelper.getInt(Monitoring.INTERVAL);
+      reporter.scheduleAtFixedRate(() -> write(path), interval, interval, TimeUnit.MILLISECONDS);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> write(path)));
+      LOGGER.info("Writing metrics to " + path + " every " + interval + "ms");
+    }
+  }
+
+  /**
+   * Replace the contents of {@code path} with the {@link Metrics#report()}. The report is written
+   * to a temporary file first so that the file can be read at any time.
+   *
+   * @param path
+   */
+  static void write(Path path) {
+    try {
+      FileUtils.writeAtomically(path,
+          tmp -> Files.write(tmp, report().getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException e) {
+      LOGGER.error("Failed to write metrics to " + path, e);
+    }
+  }
+
+  /**
+   * Remove all of the metrics, used in tests.
+   */
+  static void clear() {
+    COUNTERS.clear();
+    TIMERS.clear();
+    GAUGES.clear();
+  }
+
+  /**
+   * @param created the value of {@link System#nanoTime()} when the metric was created.
+   * @param count
+   * @return the mean number of events per second since the metric was created.
+   */
+  private static double rate(long created, long count) {
+    double seconds = (System.nanoTime() - created) / (double) TimeUnit.SECONDS.toNanos(1);
+    return seconds <= 0 ? 0 : count / seconds;
+  }
+
+  /**
+   * Counts events.
+   */
+  public static class Counter {
+
+    private final LongAdder count = new LongAdder();
+    private final long created = System.nanoTime();
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long n) {
+      count.add(n);
+    }
+
+    public long count() {
+      return count.sum();
+    }
+
+    /**
+     * @return the mean number of events per second since the counter was created.
+     */
+    public double rate() {
+      return Metrics.rate(created, count());
+    }
+
+  }
+
+  /**
+   * Records the latency of each call to a stage.
+   */
+  public static class Timer {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long created = System.nanoTime();
+
+    /**
+     * @return the value to pass to {@link Timer#stop(long)} once the stage is finished.
+     */
+    public long start() {
+      return System.nanoTime();
+    }
+
+    /**
+     * @param start the value returned by {@link Timer#start()}.
+     */
+    public void stop(long start) {
+      latency.recordSince(start);
+    }
+
+    /**
+     * @return the latencies recorded so far.
+     */
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    /**
+     * @return the mean number of calls per second since the timer was created.
+     */
+    public double rate() {
+      return Metrics.rate(created, latency.count());
+    }
+
+  }
+
+  /**
+   * Exposes each of the values in {@link Metrics#snapshot()} as a read only attribute.
+   */
+  private static class MetricsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Double value = snapshot().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      SortedMap<String, Double> snapshot = snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Double value = snapshot.get(attribute);
+        if (value != null) {
+          list.add(new Attribute(attribute, value));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+        throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      // Rebuilt each time as metrics are created while running
+      SortedMap<String, Double> snapshot = snapshot();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+      int i = 0;
+      for (String name : snapshot.keySet()) {
+        attributes[i++] =
+            new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false);
+      }
+      return new MBeanInfo(Metrics.class.getName(), "Lungs pipeline metrics", attributes, null,
+          new MBeanOperationInfo[0], null);
+    }
+
+  }
+
+}
@@ -1,18 +1,38 @@
 package util;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.bson.Document;
 import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.InsertOptions;
 import org.mongodb.morphia.Morphia;
+import org.mongodb.morphia.query.FindOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import config.Database;
 
 /**
- * Helper class used to access the morphia {@link Datastore} used by the system.
+ * Helper class used to access the morphia {@link Datastore} used by the system. The size of the
+ * connection pool, the timeouts and the write concerns are configured see {@link Database}.
+ * Database operations can also be performed asynchronously on a pool of I/O threads so that they
+ * overlap with the processing of images see {@link MongoHelper#runAsync(Runnable)}.
  * 
  * @author Stuart Clark
  */
@@ -21,27 +41,223 @@ public class MongoHelper {
   private static final Logger LOGGER = LoggerFactory.getLogger(MongoHelper.class);
 
   private static Datastore DS;
+  private static final WriteConcern BULK_WRITE_CONCERN;
+  private static final int BATCH_SIZE;
+
+  /**
+   * Used to perform asynchronous database operations, when the queue is full the submitting
+   * thread performs the operation itself so that it cannot get too far ahead of the database.
+   */
+  private static final ThreadPoolExecutor IO_EXECUTOR;
+
+  /**
+   * The number of asynchronous operations that have not finished.
+   */
+  private static final AtomicLong PENDING = new AtomicLong();
+
+  /**
+   * The number of asynchronous operations that have failed since {@link MongoHelper#awaitAsync()}
+   * last returned.
+   */
+  private static final AtomicLong FAILED = new AtomicLong();
+  private static final Object PENDING_LOCK = new Object();
+  private static final Metrics.Counter ASYNC_FAILURES = Metrics.counter("mongo.async.failures");
 
   static {
     String dbName = (String) ConfigHelper.getProps().get("db");
-    MongoClient mongo = new MongoClient();
+    int ioThreads = ConfigHelper.getInt(Database.IO_THREADS);
+    int poolSize = ConfigHelper.getInt(Database.POOL_SIZE);
+    if (poolSize <= 0) {
+      poolSize = Runtime.getRuntime().availableProcessors() + ioThreads;
+    }
+    WriteConcern writeConcern = writeConcern(Database.WRITE_CONCERN);
+    BULK_WRITE_CONCERN = writeConcern(Database.BULK_WRITE_CONCERN);
+    BATCH_SIZE = ConfigHelper.getInt(Database.BATCH_SIZE);
+
+    MongoClientOptions options =
+        MongoClientOptions.builder().connectionsPerHost(poolSize)
+            .connectTimeout(ConfigHelper.getInt(Database.CONNECT_TIMEOUT))
+            .socketTimeout(ConfigHelper.getInt(Database.SOCKET_TIMEOUT))
+            .maxWaitTime(ConfigHelper.getInt(Database.POOL_WAIT_TIMEOUT))
+            .writeConcern(writeConcern).addCommandListener(new MetricsListener()).build();
+    MongoClient mongo = new MongoClient(new ServerAddress(), options);
+    LOGGER.info("Connected to the database with a pool of " + poolSize + " connections");
 
-    // Set the cursor timeout to be an hour
-    int timeout = 60 * 60 * 1000;
-    LOGGER.info("Setting cursor timeout to " + TimeUtils.milliToString(timeout));
-    Map<String, Object> documentMap = new HashMap<>();
-    documentMap.put("setParameter", 1);
-    documentMap.put("cursorTimeoutMillis", timeout);
-    Document result = mongo.getDatabase("admin").runCommand(new Document(documentMap));
-    LOGGER.info(result.toJson());
+    setCursorTimeout(mongo, ConfigHelper.getInt(Database.CURSOR_TIMEOUT));
 
     Morphia morphia = new Morphia();
     morphia.getMapper().getOptions().setStoreEmpties(true);
     DS = morphia.createDatastore(mongo, dbName);
+
+    IO_EXECUTOR =
+        new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ConfigHelper.getInt(Database.IO_QUEUE_SIZE)), runnable -> {
+              Thread thread = new Thread(runnable, "mongo-io");
+              thread.setDaemon(true);
+              return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    Metrics.gauge("mongo.async.pending", PENDING::get);
+  }
+
+  private MongoHelper() {
+    // Hide constructor
   }
 
   public static Datastore getDataStore() {
     return DS;
   }
 
+  /**
+   * @return the {@link WriteConcern} that should be used by phases that write a document per
+   *         {@link model.ROI}.
+   */
+  public static WriteConcern getBulkWriteConcern() {
+    return BULK_WRITE_CONCERN;
+  }
+
+  /**
+   * @return {@link InsertOptions} with the {@link WriteConcern} that should be used by phases that
+   *         write a document per {@link model.ROI}.
+   */
+  public static InsertOptions bulkInsertOptions() {
+    return new InsertOptions().writeConcern(BULK_WRITE_CONCERN);
+  }
+
+  /**
+   * @return {@link FindOptions} that fetch the configured number of documents per round trip, for
+   *         queries that are iterated over a large number of documents.
+   */
+  public static FindOptions findOptions() {
+    return new FindOptions().batchSize(BATCH_SIZE);
+  }
+
+  /**
+   * Perform the {@code operation} on one of the I/O threads. Failures are logged, counted in
+   * {@code mongo.async.failures} and reported by {@link MongoHelper#awaitAsync()}.
+   *
+   * @param operation a database operation.
+   * @return a future that is completed once the {@code operation} has been performed.
+   */
+  public static CompletableFuture<Void> runAsync(Runnable operation) {
+    return supplyAsync(() -> {
+      operation.run();
+      return null;
+    });
+  }
+
+  /**
+   * Perform the {@code operation} on one of the I/O threads. Failures are logged, counted in
+   * {@code mongo.async.failures} and reported by {@link MongoHelper#awaitAsync()}.
+   *
+   * @param operation a database operation.
+   * @return a future that is completed with the result of the {@code operation}.
+   */
+  public static <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+    PENDING.incrementAndGet();
+    CompletableFuture<T> future = CompletableFuture.supplyAsync(operation, IO_EXECUTOR);
+    future.whenComplete((result, e) -> {
+      if (e != null) {
+        ASYNC_FAILURES.increment();
+        FAILED.incrementAndGet();
+        LOGGER.error("Asynchronous database operation failed", e);
+      }
+      if (PENDING.decrementAndGet() == 0) {
+        synchronized (PENDING_LOCK) {
+          PENDING_LOCK.notifyAll();
+        }
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Block until all of the asynchronous operations that have been submitted have finished, should
+   * be called before reading what they have written.
+   *
+   * @throws IllegalStateException if any of the operations failed since the last call, so that
+   *         lost writes are not ignored.
+   */
+  public static void awaitAsync() {
+    synchronized (PENDING_LOCK) {
+      while (PENDING.get() > 0) {
+        try {
+          PENDING_LOCK.wait(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted waiting for database operations", e);
+        }
+      }
+    }
+
+    long failed = FAILED.getAndSet(0);
+    if (failed > 0) {
+      throw new IllegalStateException(failed + " asynchronous database operations failed");
+    }
+  }
+
+  /**
+   * @param key a key for a {@link WriteConcern} in the configuration.
+   * @return the {@link WriteConcern} named by the configuration.
+   */
+  private static WriteConcern writeConcern(String key) {
+    String name = ConfigHelper.getString(key);
+    WriteConcern writeConcern = WriteConcern.valueOf(name);
+    if (writeConcern == null) {
+      throw new IllegalStateException("Unknown write concern " + name + " for " + key);
+    }
+    return writeConcern;
+  }
+
+  /**
+   * Set the cursor timeout on the server, only if it is not already {@code timeout} as this
+   * requires admin privileges.
+   *
+   * @param mongo
+   * @param timeout in milliseconds.
+   */
+  private static void setCursorTimeout(MongoClient mongo, int timeout) {
+    MongoDatabase admin = mongo.getDatabase("admin");
+    try {
+      Document current =
+          admin.runCommand(new Document("getParameter", 1).append("cursorTimeoutMillis", 1));
+      Object value = current.get("cursorTimeoutMillis");
+      if (value instanceof Number && ((Number) value).longValue() == timeout) {
+        return;
+      }
+
+      LOGGER.info("Setting cursor timeout to " + TimeUtils.milliToString(timeout));
+      Document result =
+          admin.runCommand(new Document("setParameter", 1).append("cursorTimeoutMillis", timeout));
+      LOGGER.info(result.toJson());
+    } catch (MongoException e) {
+      LOGGER.warn("Failed to set the cursor timeout, long running queries may be closed", e);
+    }
+  }
+
+  /**
+   * Records the time taken by each type of database command e.g. {@code mongo.find},
+   * {@code mongo.insert}, and the number of commands that fail see {@link Metrics}.
+   */
+  private static class MetricsListener implements CommandListener {
+
+    private final Metrics.Counter failures = Metrics.counter("mongo.failures");
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+      // Only completed commands are recorded
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+      Metrics.timer("mongo." + event.getCommandName()).getLatency()
+          .record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+      failures.increment();
+    }
+
+  }
+
 }
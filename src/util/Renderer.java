@@ -0,0 +1,97 @@
+package util;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Used to render annotated BGR {@link Mat}s for {@link MatViewer} and image exports. Works on
+ * whole matrices rather than setting pixels one at a time through JNI.
+ *
+ * @author Stuart Clark
+ */
+public class Renderer {
+
+  private static final byte IN_MASK = (byte) 255;
+
+  private Renderer() {
+    // Hide constructor
+  }
+
+  /**
+   * @param grey a single channel {@link Mat}.
+   * @return {@code grey} converted to a BGR {@link Mat}.
+   */
+  public static Mat toBGR(Mat grey) {
+    Mat bgr = new Mat(grey.rows(), grey.cols(), CvType.CV_8UC3);
+    Imgproc.cvtColor(grey, bgr, Imgproc.COLOR_GRAY2BGR);
+    return bgr;
+  }
+
+  /**
+   * @param greys single channel {@link Mat}s.
+   * @return {@code greys} converted to BGR {@link Mat}s, in the same order.
+   */
+  public static List<Mat> toBGR(List<Mat> greys) {
+    return greys.parallelStream().map(Renderer::toBGR).collect(Collectors.toList());
+  }
+
+  /**
+   * Paint all of the {@code points} on {@code bgr}. A mask is built for the bounding box of the
+   * {@code points} and painted with a single {@link Mat#setTo(Scalar, Mat)}. Points outside of
+   * {@code bgr} are ignored.
+   *
+   * @param bgr the {@link Mat} to paint.
+   * @param points
+   * @param colour the colour to paint the points see {@link ColourBGR}.
+   */
+  public static void paint(Mat bgr, List<Point> points, double[] colour) {
+    // Find the bounding box of the points that are inside bgr
+    int minRow = Integer.MAX_VALUE;
+    int maxRow = Integer.MIN_VALUE;
+    int minCol = Integer.MAX_VALUE;
+    int maxCol = Integer.MIN_VALUE;
+    for (Point point : points) {
+      int row = (int) Math.round(point.y);
+      int col = (int) Math.round(point.x);
+      if (inside(bgr, row, col)) {
+        minRow = Math.min(minRow, row);
+        maxRow = Math.max(maxRow, row);
+        minCol = Math.min(minCol, col);
+        maxCol = Math.max(maxCol, col);
+      }
+    }
+
+    // There is nothing to paint
+    if (minRow > maxRow) {
+      return;
+    }
+
+    // Build the mask for the bounding box
+    int rows = maxRow - minRow + 1;
+    int cols = maxCol - minCol + 1;
+    byte[] pixels = new byte[rows * cols];
+    for (Point point : points) {
+      int row = (int) Math.round(point.y);
+      int col = (int) Math.round(point.x);
+      if (inside(bgr, row, col)) {
+        pixels[(row - minRow) * cols + (col - minCol)] = IN_MASK;
+      }
+    }
+    Mat mask = new Mat(rows, cols, CvType.CV_8UC1);
+    mask.put(0, 0, pixels);
+
+    // Paint the bounding box through the mask
+    bgr.submat(minRow, maxRow + 1, minCol, maxCol + 1).setTo(new Scalar(colour), mask);
+  }
+
+  private static boolean inside(Mat mat, int row, int col) {
+    return row >= 0 && row < mat.rows() && col >= 0 && col < mat.cols();
+  }
+
+}
@@ -51,9 +51,19 @@ public class BilateralFilter {
    *         constructor.
    */
   public Mat filter(Mat original) {
-    Mat filtered = MatUtils.similarMat(original, false);
-    Imgproc.bilateralFilter(original, filtered, kernelSize, sigmaColour, sigmaSpace);
-    return filtered;
+    return filter(original, MatUtils.similarMat(original, false));
+  }
+
+  /**
+   * @param original
+   * @param dst the {@link Mat} that the filtered image should be written to (it is reallocated if
+   *        it does not have the same size and type as {@code original}).
+   * @return {@code dst} containing {@code original} with a bilateral filter applied using the
+   *         parameters given in the constructor.
+   */
+  public Mat filter(Mat original, Mat dst) {
+    Imgproc.bilateralFilter(original, dst, kernelSize, sigmaColour, sigmaSpace);
+    return dst;
   }
 
 }
@@ -7,7 +7,7 @@ import static util.ConfigHelper.getInt;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
@@ -17,6 +17,7 @@ import com.sun.istack.internal.Nullable;
 import model.DOGPyramid;
 import model.KeyPoint;
 import model.SigmaMat;
+import util.BinaryMask;
 import util.MatUtils;
 
 /**
@@ -38,7 +39,10 @@ public class BlobDetector {
    */
   private final int gradientThresh;
 
-  private int blobsDetected;
+  /**
+   * The number of blobs detected by {@link BlobDetector#detect(Mat, BinaryMask)}.
+   */
+  private final LongAdder blobsDetected;
 
   /**
    * @param dogThresh the threshold used when deciding if a point in sigma space could be a key
@@ -49,15 +53,17 @@ public class BlobDetector {
   public BlobDetector(int dogThresh, int gradientThresh) {
     this.dogThresh = dogThresh;
     this.gradientThresh = gradientThresh;
+    this.blobsDetected = new LongAdder();
   }
 
   /**
    * @param mat
-   * @param mask a set of {@link Point}s that could potentially be {@link KeyPoint}s.
+   * @param mask the pixels that could potentially be {@link KeyPoint}s, {@code null} if any pixel
+   *        could be.
    * @return a list of {@link KeyPoint}s that identify the location and size of blobs detected in
    *         {@code mat}.
    */
-  public List<KeyPoint> detect(Mat mat, @Nullable Set<Point> mask) {
+  public List<KeyPoint> detect(Mat mat, @Nullable BinaryMask mask) {
     // Create DOG pyramid
     DOGPyramid pyramid = new DOGPyramid(mat);
 
@@ -78,7 +84,7 @@ public class BlobDetector {
       }
     }
 
-    blobsDetected += keyPoints.size();
+    blobsDetected.add(keyPoints.size());
 
     return keyPoints;
   }
@@ -90,31 +96,33 @@ public class BlobDetector {
    * @param octave the list of {@link SigmaMat}s for the octave being examined.
    * @param gradientMag the gradient magnitudes of the pixels in the original image. Computed using
    *        {@link Sobel#magnitude()}.
-   * @param mask a set of {@link Point}s that could potentially be {@link KeyPoint}s.
+   * @param mask the pixels that could potentially be {@link KeyPoint}s.
    * @return an {@code Optional.of()} the the {@link KeyPoint} if the pixel at {@code row},
    *         {@code col} is a key point in the DOG at {@code dog}. {@link Optional#empty()}
    *         otherwise.
    */
   private Optional<KeyPoint> createKeyPoint(int row, int col, int dogIndex, List<SigmaMat> octave,
-      Mat gradientMag, Set<Point> mask) {
+      Mat gradientMag, BinaryMask mask) {
 
     SigmaMat sigmaMat = octave.get(dogIndex);
     Mat dogMat = sigmaMat.getMat();
 
-    // Get the dog value for the point in scale space
-    double dogVal = dogMat.get(row, col)[0];
-
     // Get the point using the original mats co-ordinate system
     Point scaledPoint = sigmaMat.getScaledPoint(row, col);
 
+    // Check if the scaled point is in the mask (if there is one) before reading any pixels
+    if (mask != null && !mask.contains(scaledPoint)) {
+      return Optional.empty();
+    }
+
+    // Get the dog value for the point in scale space
+    double dogVal = dogMat.get(row, col)[0];
+
     // Get the gradient magnitude for relative pixel of the original mat
     double gradientVal = MatUtils.get(gradientMag, scaledPoint)[0];
 
-    // Check if the scaled point is in the mask (if there is one)
-    boolean inMask = mask == null || mask.contains(scaledPoint);
-
     // Check if point could potentially be a valid key point
-    if (!inMask || dogVal < dogThresh || gradientVal > gradientThresh) {
+    if (dogVal < dogThresh || gradientVal > gradientThresh) {
       return Optional.empty();
     }
 
@@ -134,8 +142,8 @@ public class BlobDetector {
     return Optional.of(new KeyPoint(scaledPoint, sigmaMat.getSigma(), dogVal));
   }
 
-  public int getBlobsDetected() {
-    return blobsDetected;
+  public long getBlobsDetected() {
+    return blobsDetected.sum();
   }
 
   /**
@@ -8,6 +8,7 @@ import static org.opencv.imgproc.Imgproc.THRESH_OTSU;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import org.opencv.core.Mat;
@@ -32,12 +33,20 @@ public class BlobToROI {
   /**
    * The number of times that {@link this#blobToROI(ROI, Mat)} has been called successfully.
    */
-  private double success;
+  private final LongAdder success;
 
   /**
    * The number of times that {@link this#blobToROI(ROI, Mat)} has been called and failed.
    */
-  private double failure;
+  private final LongAdder failure;
+
+  /**
+   * N.B. instances are safe to share between threads.
+   */
+  public BlobToROI() {
+    this.success = new LongAdder();
+    this.failure = new LongAdder();
+  }
 
   /**
    * Used to covert a blob obtained using {@link Lungs#extractJuxtapleural(Mat, List, Mat)} to an
@@ -86,7 +95,7 @@ public class BlobToROI {
     try {
       blobROI = getBlobROI(rois, blobRegion, rounded);
     } catch (LungsException e) {
-      failure++;
+      failure.increment();
       throw e;
     }
 
@@ -128,7 +137,7 @@ public class BlobToROI {
       point.y += rounded.minY;
     }
 
-    success++;
+    success.increment();
 
     return blobROI;
   }
@@ -206,7 +215,8 @@ public class BlobToROI {
    * @return the success rate of {@code this}.
    */
   public double successRate() {
-    return success / (failure + success);
+    double successes = success.sum();
+    return successes / (failure.sum() + successes);
   }
 
 }
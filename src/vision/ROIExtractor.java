@@ -10,10 +10,11 @@ import java.util.Set;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
+import core.LungsContext;
 import model.ROI;
-import util.MatUtils;
 
 /**
  * Used extract ROIs from {@link Mat}s using a combination of the watershed algorithm and the
@@ -48,13 +49,13 @@ public class ROIExtractor {
    * The threshold value that when used returns a thresholded image where the foreground is the
    * pixels of the original image that are known to be in the foreground of the original image
    */
-  private int sureFG;
+  private final int sureFG;
 
   /**
    * The threshold value that when used returns a thresholded image where the background is the
    * pixels of the original image that are known to be in the background of the original image
    */
-  private int sureBG;
+  private final int sureBG;
 
   /**
    * @param sureFG The threshold value that when used returns a thresholded image where the
@@ -82,47 +83,55 @@ public class ROIExtractor {
     this.sureBG = (int) Math.round(sureFG * sureBGFrac);
   }
 
+  /**
+   * N.B. the intermediate {@link Mat}s are reused by the calling thread see {@link LungsContext}.
+   *
+   * @param original
+   * @return the ROIs found in {@code original}.
+   */
   public List<ROI> extractROIs(Mat original) {
+    LungsContext context = LungsContext.get();
+
     // Apply threshold to find the sure foreground
-    Mat foregroundMat = MatUtils.similarMat(original, false);
+    Mat foregroundMat = context.foreground(original);
     Imgproc.threshold(original, foregroundMat, sureFG, FOREGROUND, THRESH_BINARY);
 
     // Apply threshold to find the sure background
-    Mat backgroundMat = MatUtils.similarMat(original, false);
+    Mat backgroundMat = context.background(original);
     Imgproc.threshold(original, backgroundMat, sureBG, FOREGROUND, THRESH_BINARY);
 
     // Subtract the sure foreground from the sure background to find the unknown region
-    Mat unknownMat = MatUtils.similarMat(original, false);
+    Mat unknownMat = context.unknown(original);
     Core.subtract(backgroundMat, foregroundMat, unknownMat);
 
     // Label the connected components found in the sure foreground
-    Mat labels = MatUtils.similarMat(original, false);
+    Mat labels = context.markers(original);
     Imgproc.connectedComponents(foregroundMat, labels);
 
-    // Add one to each of the labels so that we can mark the unknown region with 0's
-    for (int row = 0; row < labels.rows(); row++) {
-      for (int col = 0; col < labels.cols(); col++) {
-        labels.put(row, col, labels.get(row, col)[0] + 1);
-      }
-    }
-
-    // Mark the unknown region with 0's so that labels can be used by Imgproc.watershed(..)
-    for (int row = 0; row < labels.rows(); row++) {
-      for (int col = 0; col < labels.cols(); col++) {
-        if (unknownMat.get(row, col)[0] == FOREGROUND) {
-          labels.put(row, col, 0);
-        }
-      }
-    }
+    // Create the markers used by the watershed algorithm
+    markers(labels, unknownMat);
 
     // Run the watershed algorithm (this will update labels)
-    Mat bgr = MatUtils.grey2BGR(original);
+    Mat bgr = context.watershedInput(original);
+    Imgproc.cvtColor(original, bgr, Imgproc.COLOR_GRAY2BGR);
     Imgproc.watershed(bgr, labels);
 
-
     return labelsToROIs(labels);
   }
 
+  /**
+   * Convert connected component labels into markers that can be used by
+   * {@link Imgproc#watershed(Mat, Mat)}. One is added to each of the labels so that the unknown
+   * region can be marked with 0's.
+   *
+   * @param labels the labels for the sure foreground, updated in place.
+   * @param unknownMat a mask of the unknown region.
+   */
+  static void markers(Mat labels, Mat unknownMat) {
+    Core.add(labels, new Scalar(1), labels);
+    labels.setTo(new Scalar(0), unknownMat);
+  }
+
   /**
    * Extract all the rois. id starts from 1 because we want to ignore boundaries (-1) and the
    * background (0)
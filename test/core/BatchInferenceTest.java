@@ -0,0 +1,279 @@
+package core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+import org.opencv.core.Point;
+
+import model.CTSlice;
+import model.CTStack;
+import model.Circle;
+import model.Prediction;
+import model.ROI;
+import util.LungsException;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Runs {@link BatchInference} on slices with made up {@link ROI}s, which are segmented in a random
+ * order, so that the batching can be tested without the database or OpenCV.
+ *
+ * @author Stuart Clark
+ */
+public class BatchInferenceTest {
+
+  private static final int NUM_STACKS = 3;
+  private static final int SLICES_PER_STACK = 10;
+  private static final int FAILED_SLICE = 7;
+  private static final int THROWING_SLICE = 12;
+  private static final int MAX_DELAY = 5;
+
+  /**
+   * The {@link ROI}s with a value above this are nodules.
+   */
+  private static final double THRESHOLD = 0.5;
+
+  private Instances structure;
+  private List<CTStack> stacks;
+
+  /**
+   * The value of the single attribute for each of the {@link ROI}s of each slice, by imageSopUID.
+   */
+  private Map<String, double[]> values;
+
+  @Before
+  public void setUp() throws Exception {
+    structure = new Instances("Structure", new ArrayList<>(Arrays.asList(new Attribute("Value"),
+        new Attribute("Class", Arrays.asList(ROI.Class.NODULE.name(),
+            ROI.Class.NON_NODULE.name())))), 0);
+    structure.setClassIndex(1);
+
+    // Slices with between 0 and 4 ROIs, with and without nodules
+    Random random = new Random(0);
+    stacks = new ArrayList<>();
+    values = new HashMap<>();
+    for (int i = 0; i < NUM_STACKS; i++) {
+      CTStack stack = new CTStack();
+      stack.setSeriesInstanceUID("series " + i);
+      for (int j = 0; j < SLICES_PER_STACK; j++) {
+        CTSlice slice = slice(stack.getSeriesInstanceUID(), i * SLICES_PER_STACK + j);
+        double[] rois = new double[j % 5];
+        for (int k = 0; k < rois.length; k++) {
+          rois[k] = random.nextDouble();
+        }
+        values.put(slice.getImageSopUID(), rois);
+        stack.addSlice(slice);
+      }
+      stacks.add(stack);
+    }
+  }
+
+  @Test
+  public void testRun() throws Exception {
+    // Every slice that did not fail should have exactly one prediction, whatever the batch size
+    for (int batchSize : Arrays.asList(1, 3, 10, Integer.MAX_VALUE)) {
+      Collected output = new Collected();
+      new BatchInference(new Threshold(), 4, batchSize, structure, this::segment).run(stacks,
+          output);
+
+      Map<String, Prediction> bySop = new HashMap<>();
+      for (Prediction prediction : output.predictions) {
+        assertNull(bySop.put(prediction.getImageSopUID(), prediction));
+      }
+      assertEquals(NUM_STACKS * SLICES_PER_STACK - 2, bySop.size());
+      assertFalse(bySop.containsKey(sop(FAILED_SLICE)));
+      assertFalse(bySop.containsKey(sop(THROWING_SLICE)));
+
+      // Each ROI should have been given its own distribution
+      for (Prediction prediction : bySop.values()) {
+        double[] rois = values.get(prediction.getImageSopUID());
+        assertEquals(rois.length, prediction.getNumROIs());
+        List<Double> expected = new ArrayList<>();
+        for (double value : rois) {
+          if (value > THRESHOLD) {
+            expected.add(value);
+          }
+        }
+        List<Double> actual = new ArrayList<>();
+        prediction.getNodules().forEach(nodule -> actual.add(nodule.getProbability()));
+        assertEquals(expected, actual);
+        assertEquals(expected.size(), prediction.getNumNodules());
+      }
+    }
+  }
+
+  @Test
+  public void testDefaultThreads() throws Exception {
+    // 0 threads should use one per processor
+    Collected output = new Collected();
+    new BatchInference(new Threshold(), 0, 3, structure, this::segment).run(stacks, output);
+    assertEquals(NUM_STACKS * SLICES_PER_STACK - 2, output.predictions.size());
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    Collected output = new Collected();
+    new BatchInference(new Threshold(), 2, 1, structure, this::segment).run(
+        Collections.emptyList(), output);
+    assertTrue(output.predictions.isEmpty());
+  }
+
+  @Test
+  public void testCsv() throws Exception {
+    Prediction nodules = new Prediction(slice("series", 0), 3);
+    ROI roi = new ROI();
+    roi.setContour(Collections.singletonList(new Point(1, 2)));
+    roi.setMinCircle(new Circle(new Point(1, 2), 3));
+    nodules.addNodule(roi, 0.75);
+    nodules.addNodule(roi, 0.5);
+    Prediction none = new Prediction(slice("series", 1), 2);
+
+    File file = File.createTempFile("predictions", ".csv");
+    try {
+      BatchInference.Output output = BatchInference.Output.csv(file);
+      output.write(Arrays.asList(nodules, none));
+      output.close();
+
+      // A row for each nodule and one for the slice without any
+      List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+      assertEquals(4, lines.size());
+      assertEquals("series,sop 0,0,3,1.0,2.0,3.0,0.75", lines.get(1));
+      assertEquals("series,sop 0,0,3,1.0,2.0,3.0,0.5", lines.get(2));
+      assertEquals("series,sop 1,1,2,,,,", lines.get(3));
+      assertEquals(lines.get(0).split(",").length, lines.get(3).split(",", -1).length);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testMongo() throws Exception {
+    List<Object> saved = new ArrayList<>();
+    Datastore ds =
+        (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+            new Class<?>[] {Datastore.class}, (proxy, method, args) -> {
+              if (method.getName().equals("save")) {
+                ((Iterable<?>) args[0]).forEach(saved::add);
+                return null;
+              }
+              throw new UnsupportedOperationException(method.getName());
+            });
+
+    BatchInference.Output output = BatchInference.Output.mongo(ds);
+    output.write(Collections.emptyList());
+    assertTrue(saved.isEmpty());
+
+    Prediction none = new Prediction(slice("series", 0), 0);
+    Prediction other = new Prediction(slice("series", 1), 0);
+    output.write(Arrays.asList(none, other));
+    assertEquals(new HashSet<>(Arrays.asList(none, other)), new HashSet<>(saved));
+    output.close();
+  }
+
+  /**
+   * Creates an {@link ROI} and {@link Instance} for each of the values of the {@code slice} after
+   * a random delay. Fails for {@link BatchInferenceTest#FAILED_SLICE} and throws for
+   * {@link BatchInferenceTest#THROWING_SLICE}.
+   */
+  private BatchInference.Segmented segment(CTSlice slice) {
+    try {
+      Thread.sleep(new Random().nextInt(MAX_DELAY));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (slice.getImageNumber() == FAILED_SLICE) {
+      return new BatchInference.Segmented(slice);
+    } else if (slice.getImageNumber() == THROWING_SLICE) {
+      throw new IllegalStateException("Failed to segment " + slice.getImageSopUID());
+    }
+
+    List<ROI> rois = new ArrayList<>();
+    List<Instance> instances = new ArrayList<>();
+    for (double value : values.get(slice.getImageSopUID())) {
+      rois.add(new ROI());
+      Instance instance = new DenseInstance(structure.numAttributes());
+      instance.setDataset(structure);
+      instance.setValue(0, value);
+      instances.add(instance);
+    }
+    return new BatchInference.Segmented(slice, rois, instances);
+  }
+
+  private static CTSlice slice(String seriesUID, int imageNumber) {
+    CTSlice slice = new CTSlice();
+    slice.setSeriesInstanceUID(seriesUID);
+    slice.setImageSopUID(sop(imageNumber));
+    slice.setImageNumber(imageNumber);
+    return slice;
+  }
+
+  private static String sop(int imageNumber) {
+    return "sop " + imageNumber;
+  }
+
+  /**
+   * Collects the {@link Prediction}s written.
+   */
+  private static class Collected implements BatchInference.Output {
+
+    private final List<Prediction> predictions = new ArrayList<>();
+
+    @Override
+    public void write(List<Prediction> predictions) throws LungsException {
+      this.predictions.addAll(predictions);
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+
+  }
+
+  /**
+   * Classifies the instances with a value above {@link BatchInferenceTest#THRESHOLD} as nodules,
+   * with the value as the probability.
+   */
+  private static class Threshold extends AbstractClassifier {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void buildClassifier(Instances data) {
+      // Nothing to learn
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) {
+      double value = instance.value(0);
+      double[] distribution = new double[instance.numClasses()];
+      int nodule = instance.classAttribute().indexOfValue(ROI.Class.NODULE.name());
+      distribution[nodule] = value > THRESHOLD ? value : 0;
+      distribution[1 - nodule] = 1 - distribution[nodule];
+      return distribution;
+    }
+
+  }
+
+}
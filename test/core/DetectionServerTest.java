@@ -0,0 +1,214 @@
+package core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import util.Testing;
+
+/**
+ * Tests the endpoints of {@link DetectionServer} that respond without the database or a
+ * classifier.
+ *
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class DetectionServerTest {
+
+  private static final int MAX_UPLOAD = 1024;
+  private static final int CACHE_BYTES = 1024 * 1024;
+  private static final long TIMEOUT = 10000;
+
+  private DetectionServer server;
+  private final List<Socket> sockets = new ArrayList<>();
+
+  @After
+  public void tearDown() throws Exception {
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testMethodNotAllowed() throws Exception {
+    listen(1, 1);
+    assertEquals(405, request("POST", "/detect?series=series", new byte[0]).status);
+    assertEquals(405, request("GET", "/detect/dicom", null).status);
+  }
+
+  @Test
+  public void testMissingSeries() throws Exception {
+    listen(1, 1);
+    Response response = request("GET", "/detect", null);
+    assertEquals(400, response.status);
+    assertEquals("Missing query parameter series", response.body.getString("error"));
+    assertEquals(400, request("GET", "/detect?series=", null).status);
+  }
+
+  @Test
+  public void testNotDicom() throws Exception {
+    listen(1, 1);
+    assertEquals(400, request("POST", "/detect/dicom", new byte[MAX_UPLOAD]).status);
+  }
+
+  @Test
+  public void testTooLarge() throws Exception {
+    listen(1, 1);
+
+    // Rejected from the Content-Length header
+    assertEquals(413, request("POST", "/detect/dicom", new byte[MAX_UPLOAD + 1]).status);
+
+    // Rejected while copying a chunked body, which has no Content-Length
+    URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(),
+        "/detect/dicom");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setChunkedStreamingMode(MAX_UPLOAD / 4);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(new byte[MAX_UPLOAD * 2]);
+    }
+    assertEquals(413, connection.getResponseCode());
+  }
+
+  @Test
+  public void testBadContentLength() throws Exception {
+    listen(1, 1);
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+      OutputStream out = socket.getOutputStream();
+      out.write(("POST /detect/dicom HTTP/1.1\r\nHost: localhost\r\nContent-Length: lots\r\n"
+          + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      // Some versions of the JDK reject the header before the server sees it
+      String response = read(socket.getInputStream());
+      assertTrue(response, response.startsWith("HTTP/1.1 400"));
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    listen(1, 1);
+
+    // Uploads that never send their body keep the worker busy and fill the queue
+    stall();
+    awaitStats("active", 1);
+    stall();
+    awaitStats("queued", 1);
+
+    Response response = request("GET", "/detect?series=series", null);
+    assertEquals(503, response.status);
+    assertEquals(1, (int) stats().getInteger("rejected"));
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    listen(2, 4);
+    request("GET", "/detect", null);
+    request("GET", "/detect", null);
+
+    Document stats = stats();
+    Document detect = (Document) ((Document) stats.get("endpoints")).get("/detect");
+    assertEquals(2, (int) detect.getInteger("count"));
+    assertTrue(detect.getDouble("maxMs") >= detect.getDouble("p50Ms"));
+    assertEquals(0, (int) stats.getInteger("active"));
+    assertEquals(0, (int) stats.getInteger("queued"));
+    assertEquals(0, (int) stats.getInteger("rejected"));
+    assertEquals(0, (int) stats.getInteger("cachedSlices"));
+    assertEquals(0, stats.getDouble("cachedMb"), 0);
+  }
+
+  private void listen(int threads, int queueSize) throws IOException {
+    server = new DetectionServer(0, threads, queueSize, CACHE_BYTES, MAX_UPLOAD);
+    server.listen();
+  }
+
+  /**
+   * Send the headers of an upload but not its body.
+   */
+  private void stall() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    sockets.add(socket);
+    OutputStream out = socket.getOutputStream();
+    out.write(("POST /detect/dicom HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + MAX_UPLOAD
+        + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+  }
+
+  private void awaitStats(String key, int value) throws Exception {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (stats().getInteger(key) != value) {
+      assertTrue("Timed out waiting for " + key + " to be " + value,
+          System.currentTimeMillis() < end);
+      Thread.sleep(10);
+    }
+  }
+
+  private Document stats() throws IOException {
+    Response response = request("GET", "/stats", null);
+    assertEquals(200, response.status);
+    return response.body;
+  }
+
+  private Response request(String method, String path, byte[] body) throws IOException {
+    URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(),
+        path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+    }
+
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    return new Response(status, Document.parse(read(in)));
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream stream = in) {
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = stream.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static class Response {
+
+    private final int status;
+    private final Document body;
+
+    Response(int status, Document body) {
+      this.status = status;
+      this.body = body;
+    }
+
+  }
+
+}
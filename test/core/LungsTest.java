@@ -0,0 +1,72 @@
+package core;
+
+import static config.Segmentation.Filter.KERNEL_SIZE;
+import static config.Segmentation.Filter.SIGMA_COLOUR;
+import static config.Segmentation.Filter.SIGMA_SPACE;
+import static config.Segmentation.SURE_BG_FRAC;
+import static config.Segmentation.SURE_FG;
+import static org.junit.Assert.assertEquals;
+import static util.ConfigHelper.getDouble;
+import static util.ConfigHelper.getInt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import ij.plugin.DICOM;
+import model.ROI;
+import util.MatUtils;
+import util.Testing;
+import vision.BilateralFilter;
+import vision.BlobDetector;
+import vision.ROIExtractor;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class LungsTest {
+
+  private static final int NUM_MATS = 4;
+
+  @Test
+  public void testExtractRoisStack() throws Exception {
+    DICOM dicom = new DICOM();
+    dicom.open("testres/test.dcm");
+    Mat mat = MatUtils.fromDICOM(dicom);
+
+    // Create a stack of mats, flipping every other one so that the slices differ
+    List<Mat> mats = new ArrayList<>();
+    for (int i = 0; i < NUM_MATS; i++) {
+      Mat copy = mat.clone();
+      if (i % 2 == 1) {
+        Core.flip(mat, copy, 1);
+      }
+      mats.add(copy);
+    }
+
+    Lungs lungs =
+        new Lungs(new BilateralFilter(getInt(KERNEL_SIZE), getInt(SIGMA_COLOUR),
+            getInt(SIGMA_SPACE)), new ROIExtractor(getInt(SURE_FG), getDouble(SURE_BG_FRAC)),
+            BlobDetector.getInstance(), true, true, new ForkJoinPool(3));
+    List<List<ROI>> parallel = lungs.extractRois(mats);
+
+    // The results should be the same as segmenting the mats one at a time and in the same order
+    assertEquals(mats.size(), parallel.size());
+    for (int i = 0; i < mats.size(); i++) {
+      List<ROI> expected = lungs.extractRois(mats.get(i));
+      List<ROI> actual = parallel.get(i);
+      assertEquals(expected.size(), actual.size());
+      for (int j = 0; j < expected.size(); j++) {
+        assertEquals(expected.get(j).getRegion(), actual.get(j).getRegion());
+        assertEquals(expected.get(j).isJuxtapleural(), actual.get(j).isJuxtapleural());
+      }
+    }
+  }
+
+}
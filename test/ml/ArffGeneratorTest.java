@@ -0,0 +1,150 @@
+package ml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import model.ROI;
+import util.Testing;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class ArffGeneratorTest {
+
+  // More than one chunk of ROIs, with a partial chunk at the end
+  private static final int TRAIN_NODULES = 100;
+  private static final int TRAIN_NON_NODULES = 1500;
+  private static final int TEST_NODULES = 50;
+  private static final int TEST_NON_NODULES = 850;
+
+  private File dir;
+  private Instances structure;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("arff").toFile();
+
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    attributes.add(new Attribute("Area"));
+    attributes.add(new Attribute("Class", Arrays.asList("NODULE", "NON_NODULE")));
+    structure = new Instances("Structure", attributes, 0);
+    structure.setClassIndex(1);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void test() throws Exception {
+    List<ROI> rois = new ArrayList<>();
+    add(rois, TRAIN_NODULES, ROI.Class.NODULE, ROI.Set.TRAIN);
+    add(rois, TEST_NON_NODULES, ROI.Class.NON_NODULE, ROI.Set.TEST);
+    add(rois, TRAIN_NON_NODULES, ROI.Class.NON_NODULE, ROI.Set.TRAIN);
+    add(rois, TEST_NODULES, ROI.Class.NODULE, ROI.Set.TEST);
+
+    ArffGenerator.createFiles(rois, this::instance, structure, dir);
+
+    // The nodules in the training arff file are oversampled to match the non nodules
+    Instances train = read(ArffGenerator.TRAIN_FILE);
+    assertEquals("Training Set", train.relationName());
+    assertEquals(TRAIN_NON_NODULES, count(train, 0));
+    assertEquals(TRAIN_NON_NODULES, count(train, 1));
+
+    // The testing arff file is not oversampled
+    Instances test = read(ArffGenerator.TEST_FILE);
+    assertEquals("Testing Set", test.relationName());
+    assertEquals(TEST_NODULES, count(test, 0));
+    assertEquals(TEST_NON_NODULES, count(test, 1));
+
+    // The stores hold each ROI once and can be balanced
+    FeatureStore trainStore = FeatureStore.open(new File(dir, ArffGenerator.TRAIN_STORE));
+    assertEquals(TRAIN_NODULES + TRAIN_NON_NODULES, trainStore.numRows());
+    assertEquals(TRAIN_NODULES, count(trainStore, trainStore.all(), 0));
+    int[] balanced = trainStore.balanced();
+    assertEquals(TRAIN_NON_NODULES, count(trainStore, balanced, 0));
+    assertEquals(TRAIN_NON_NODULES, count(trainStore, balanced, 1));
+
+    FeatureStore testStore = FeatureStore.open(new File(dir, ArffGenerator.TEST_STORE));
+    assertEquals(TEST_NODULES, count(testStore, testStore.all(), 0));
+    assertEquals(TEST_NON_NODULES, count(testStore, testStore.all(), 1));
+  }
+
+  @Test
+  public void testNoNodules() throws Exception {
+    List<ROI> rois = new ArrayList<>();
+    add(rois, TRAIN_NON_NODULES, ROI.Class.NON_NODULE, ROI.Set.TRAIN);
+
+    ArffGenerator.createFiles(rois, this::instance, structure, dir);
+
+    // There are no nodules to oversample
+    Instances train = read(ArffGenerator.TRAIN_FILE);
+    assertEquals(0, count(train, 0));
+    assertEquals(TRAIN_NON_NODULES, count(train, 1));
+    assertEquals(0, read(ArffGenerator.TEST_FILE).size());
+  }
+
+  private void add(List<ROI> rois, int number, ROI.Class classification, ROI.Set set) {
+    for (int i = 0; i < number; i++) {
+      ROI roi = new ROI();
+      roi.setArea(classification == ROI.Class.NODULE ? 100 + i : i % 10);
+      roi.setClassification(classification);
+      roi.setSet(set);
+      rois.add(roi);
+    }
+  }
+
+  private Instance instance(ROI roi) {
+    Instance instance = new DenseInstance(2);
+    instance.setDataset(structure);
+    instance.setValue(0, roi.getArea());
+    instance.setValue(1, roi.getClassification().name());
+    return instance;
+  }
+
+  private Instances read(String file) throws Exception {
+    try (Reader reader = new FileReader(new File(dir, file))) {
+      Instances instances = new Instances(reader);
+      instances.setClassIndex(instances.numAttributes() - 1);
+      return instances;
+    }
+  }
+
+  private static int count(Instances instances, int classIndex) {
+    int count = 0;
+    for (Instance instance : instances) {
+      count += (int) instance.classValue() == classIndex ? 1 : 0;
+    }
+    return count;
+  }
+
+  private static int count(FeatureStore store, int[] rows, int classIndex) {
+    int count = 0;
+    for (int row : rows) {
+      count += store.classIndex(row) == classIndex ? 1 : 0;
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,126 @@
+package ml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Mat;
+
+import ml.feature.Area;
+import ml.feature.Circularity;
+import ml.feature.Feature;
+import ml.feature.LTP;
+import ml.feature.MeanIntensity;
+import ml.feature.MinCircle;
+import model.ROI;
+import util.Testing;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class FeatureGraphTest {
+
+  private final Feature area = new Area();
+  private final Feature minCircle = new MinCircle();
+  private final Feature circularity = new Circularity();
+  private final Feature meanIntensity = new MeanIntensity();
+
+  @Test
+  public void testLevels() throws Exception {
+    FeatureGraph graph =
+        new FeatureGraph(asList(circularity, meanIntensity, minCircle, area), emptyList());
+    assertEquals(asList(asList(meanIntensity, minCircle, area), asList(circularity)),
+        graph.getLevels());
+    assertEquals(asList(meanIntensity, minCircle, area, circularity),
+        asList(graph.getFeatures().toArray()));
+  }
+
+  @Test
+  public void testStale() throws Exception {
+    FeatureGraph graph = new FeatureGraph(asList(area, minCircle, circularity), emptyList());
+
+    // Everything is stale if nothing has been computed
+    ROI roi = new ROI();
+    assertEquals(graph.getFeatures(), graph.stale(roi, emptySet()));
+
+    // Nothing is stale once everything has been computed
+    roi.setFeatureVersion(area.name(), 1);
+    roi.setFeatureVersion(minCircle.name(), 1);
+    roi.setFeatureVersion(circularity.name(), 1);
+    assertEquals(emptySet(), graph.stale(roi, emptySet()));
+
+    // A new version of area should also require circularity to be recomputed
+    FeatureGraph newArea =
+        new FeatureGraph(asList(new Versioned(area), minCircle, circularity), emptyList());
+    assertEquals(asList("Area", "Circularity"), names(newArea.stale(roi, emptySet())));
+
+    // Features that use changed inputs are stale
+    FeatureGraph ltp = new FeatureGraph(asList(new LTP()), singleton(Feature.AREA_STATS));
+    roi.setFeatureVersion("LTP", 1);
+    assertEquals(emptySet(), ltp.stale(roi, emptySet()));
+    assertEquals(1, ltp.stale(roi, singleton(Feature.AREA_STATS)).size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingInput() throws Exception {
+    new FeatureGraph(asList(circularity, area), emptyList());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateOutput() throws Exception {
+    new FeatureGraph(asList(area, new Versioned(area)), emptyList());
+  }
+
+  private static List<String> names(Iterable<Feature> features) {
+    List<String> names = new ArrayList<>();
+    features.forEach(f -> names.add(f.name()));
+    return names;
+  }
+
+  /**
+   * A second version of a feature.
+   */
+  private static class Versioned implements Feature {
+
+    private final Feature feature;
+
+    Versioned(Feature feature) {
+      this.feature = feature;
+    }
+
+    @Override
+    public void compute(ROI roi, Mat mat) {
+      // Not needed
+    }
+
+    @Override
+    public String name() {
+      return feature.name();
+    }
+
+    @Override
+    public int version() {
+      return 2;
+    }
+
+    @Override
+    public List<String> inputs() {
+      return feature.inputs();
+    }
+
+    @Override
+    public List<String> outputs() {
+      return feature.outputs();
+    }
+
+  }
+
+}
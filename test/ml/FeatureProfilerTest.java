@@ -0,0 +1,61 @@
+package ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+import ml.feature.Area;
+import ml.feature.Feature;
+import ml.feature.MinCircle;
+
+/**
+ * @author Stuart Clark
+ */
+public class FeatureProfilerTest {
+
+  @Test
+  public void test() throws Exception {
+    FeatureProfiler profiler = new FeatureProfiler(true);
+    Feature area = new Area();
+    Feature minCircle = new MinCircle();
+
+    // MinCircle is made slower in total than Area
+    for (int i = 0; i < 10; i++) {
+      profiler.record(area, System.nanoTime(), profiler.allocatedBytes(), false);
+    }
+    long allocated = profiler.allocatedBytes();
+    long start = System.nanoTime() - 1_000_000_000L;
+    profiler.record(minCircle, start, allocated, true);
+
+    String summary = profiler.summary();
+    assertTrue(summary.indexOf("MinCircle") < summary.indexOf("Area"));
+
+    File file = File.createTempFile("profile", ".csv");
+    try {
+      profiler.writeCsv(file.getPath());
+      List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+      assertEquals(3, lines.size());
+      String[] minCircleRow = lines.get(1).split(",");
+      assertEquals("MinCircle", minCircleRow[0]);
+      assertEquals("1", minCircleRow[1]);
+      assertEquals("1", minCircleRow[2]);
+      assertTrue(Double.parseDouble(minCircleRow[3]) >= 1000);
+      String[] areaRow = lines.get(2).split(",");
+      assertEquals("Area", areaRow[0]);
+      assertEquals("10", areaRow[1]);
+      assertEquals("0", areaRow[2]);
+    } finally {
+      file.delete();
+    }
+
+    profiler.reset();
+    assertEquals(1, profiler.summary().split("\n").length);
+  }
+
+}
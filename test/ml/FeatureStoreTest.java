@@ -0,0 +1,109 @@
+package ml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * @author Stuart Clark
+ */
+public class FeatureStoreTest {
+
+  private static final double DELTA = 1e-6;
+
+  private File file;
+  private Instances structure;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("store", ".features");
+
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    attributes.add(new Attribute("Area"));
+    attributes.add(new Attribute("Circularity"));
+    attributes.add(new Attribute("Class", Arrays.asList("NODULE", "NON_NODULE")));
+    structure = new Instances("Structure", attributes, 0);
+    structure.setClassIndex(2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void test() throws Exception {
+    // One nodule and three non nodules, one with a missing value
+    List<Instance> rows = new ArrayList<>();
+    rows.add(instance(1, 0.5, "NODULE"));
+    rows.add(instance(2, 0.25, "NON_NODULE"));
+    rows.add(instance(3, Utils.missingValue(), "NON_NODULE"));
+    rows.add(instance(4, 1, "NON_NODULE"));
+    try (FeatureStore.Writer writer = new FeatureStore.Writer(file, structure)) {
+      writer.write(rows.subList(0, 2));
+      writer.write(rows.subList(2, 4));
+    }
+
+    FeatureStore store = FeatureStore.open(file);
+    assertEquals(4, store.numRows());
+    assertEquals(Arrays.asList("Area", "Circularity"), store.getFeatureNames());
+    assertEquals(Arrays.asList("NODULE", "NON_NODULE"), store.getClassValues());
+    assertEquals(3, store.get(2, 0), DELTA);
+    assertTrue(Float.isNaN(store.get(2, 1)));
+    assertEquals(0, store.classIndex(0));
+    assertEquals(1, store.classIndex(3));
+
+    // The nodule should be repeated so that there are 3 of each class
+    assertArrayEquals(new int[] {0, 1, 2, 3, 0, 0}, store.balanced());
+
+    // The adapter should give the same instances back
+    Instances instances = store.toInstances("Test", store.all());
+    assertEquals(structure.numAttributes(), instances.numAttributes());
+    assertEquals(2, instances.classIndex());
+    assertEquals("Class", instances.classAttribute().name());
+    for (int i = 0; i < rows.size(); i++) {
+      Instance expected = rows.get(i);
+      Instance actual = instances.get(i);
+      for (int j = 0; j < expected.numAttributes(); j++) {
+        assertEquals(expected.isMissing(j), actual.isMissing(j));
+        if (!expected.isMissing(j)) {
+          assertEquals(expected.value(j), actual.value(j), DELTA);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    new FeatureStore.Writer(file, structure).close();
+    FeatureStore store = FeatureStore.open(file);
+    assertEquals(0, store.numRows());
+    assertEquals(0, store.balanced().length);
+    assertEquals(0, store.toInstances("Test", store.all()).size());
+  }
+
+  private Instance instance(double area, double circularity, String classification) {
+    Instance instance = new DenseInstance(3);
+    instance.setDataset(structure);
+    instance.setValue(0, area);
+    instance.setValue(1, circularity);
+    instance.setValue(2, classification);
+    return instance;
+  }
+
+}
@@ -0,0 +1,118 @@
+package ml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import model.ROI;
+import util.Testing;
+import weka.classifiers.bayes.NaiveBayesUpdateable;
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class IncrementalTrainerTest {
+
+  private File file;
+  private Instances structure;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("trainer", ".model");
+    file.delete();
+
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    attributes.add(new Attribute("Area"));
+    attributes.add(new Attribute("Class", Arrays.asList("NODULE", "NON_NODULE")));
+    structure = new Instances("Structure", attributes, 0);
+    structure.setClassIndex(1);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void test() throws Exception {
+    NaiveBayesUpdateable classifier = new NaiveBayesUpdateable();
+    classifier.buildClassifier(structure);
+
+    IncrementalTrainer trainer = new IncrementalTrainer(classifier, structure, this::instance,
+        file, 10, 25);
+    for (int i = 0; i < 100; i++) {
+      // Large nodules and small non nodules
+      boolean nodule = i % 4 == 0;
+      trainer.publish(roi(nodule ? 100 + i : i % 10, nodule ? ROI.Class.NODULE
+          : ROI.Class.NON_NODULE, ROI.Set.TRAIN));
+    }
+    // Should be ignored as it is in the test set
+    trainer.publish(roi(1000, ROI.Class.NODULE, ROI.Set.TEST));
+    trainer.close();
+
+    assertEquals(100, trainer.getUpdates());
+    assertEquals(4, trainer.getSnapshots());
+
+    // The snapshot should have learnt to separate the classes
+    NaiveBayesUpdateable snapshot = (NaiveBayesUpdateable) SerializationHelper.read(file.getPath());
+    Instances test = new Instances(structure, 0);
+    test.add(instance(roi(150, ROI.Class.NODULE, ROI.Set.TEST)));
+    test.add(instance(roi(5, ROI.Class.NON_NODULE, ROI.Set.TEST)));
+    assertEquals(0, snapshot.classifyInstance(test.get(0)), 0);
+    assertEquals(1, snapshot.classifyInstance(test.get(1)), 0);
+  }
+
+  @Test
+  public void testExistingCounts() throws Exception {
+    NaiveBayesUpdateable classifier = new NaiveBayesUpdateable();
+    classifier.buildClassifier(structure);
+
+    // Continuing from a classifier that has already seen 90 non nodules and no nodules, so the
+    // first nodule should be weighted by all 90 rather than just the new non nodule
+    IncrementalTrainer trainer = new IncrementalTrainer(classifier, structure, this::instance,
+        file, 10, 25, 0, 90);
+    trainer.publish(roi(150, ROI.Class.NODULE, ROI.Set.TRAIN));
+    trainer.publish(roi(5, ROI.Class.NON_NODULE, ROI.Set.TRAIN));
+    trainer.close();
+
+    // Class counts start at 1, so the nodule count is 1 + 90 and the non nodule count 1 + 1
+    NaiveBayesUpdateable snapshot = (NaiveBayesUpdateable) SerializationHelper.read(file.getPath());
+    assertEquals(91.0 / 93, snapshot.getClassEstimator().getProbability(0), 1e-9);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNotUpdateable() throws Exception {
+    new IncrementalTrainer(new J48(), structure, this::instance, file, 1, 1);
+  }
+
+  private ROI roi(int area, ROI.Class classification, ROI.Set set) {
+    ROI roi = new ROI();
+    roi.setArea(area);
+    roi.setClassification(classification);
+    roi.setSet(set);
+    return roi;
+  }
+
+  private Instance instance(ROI roi) {
+    Instance instance = new DenseInstance(2);
+    instance.setDataset(structure);
+    instance.setValue(0, roi.getArea());
+    instance.setValue(1, roi.getClassification().name());
+    return instance;
+  }
+
+}
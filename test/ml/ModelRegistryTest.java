@@ -0,0 +1,115 @@
+package ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.rules.ZeroR;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ * @author Stuart Clark
+ */
+public class ModelRegistryTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("registry", ".model");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void testCopies() throws Exception {
+    write("A");
+    ModelRegistry registry = new ModelRegistry(file, 0);
+
+    // The same copy should be returned to the same thread
+    Classifier copy = registry.classifier();
+    assertSame(copy, registry.classifier());
+
+    // Other threads should get their own copy
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    Classifier other = es.submit(registry::classifier).get();
+    es.shutdown();
+    assertNotSame(copy, other);
+    assertEquals(1, registry.version());
+  }
+
+  @Test
+  public void testReload() throws Exception {
+    write("A");
+    ModelRegistry registry = new ModelRegistry(file, 0);
+    Instances data = data("A");
+    assertEquals(0, registry.classifier().classifyInstance(data.get(0)), 0);
+
+    // Unchanged files should not be reloaded
+    assertEquals(1, registry.version());
+
+    write("B");
+    file.setLastModified(file.lastModified() + 10000);
+    assertEquals(2, registry.version());
+    assertEquals(1, registry.classifier().classifyInstance(data.get(0)), 0);
+  }
+
+  @Test
+  public void testBadReload() throws Exception {
+    write("A");
+    ModelRegistry registry = new ModelRegistry(file, 0);
+    Classifier copy = registry.classifier();
+
+    // A file that can't be read should leave the old model in place
+    SerializationHelper.write(file.getPath(), "Not a model");
+    file.setLastModified(file.lastModified() + 10000);
+    assertSame(copy, registry.classifier());
+    assertEquals(1, registry.version());
+  }
+
+  private void write(String majority) throws Exception {
+    ZeroR classifier = new ZeroR();
+    classifier.buildClassifier(data(majority));
+    SerializationHelper.write(file.getPath(), classifier);
+  }
+
+  /**
+   * @param majority the class that the majority of the instances should have.
+   * @return a small data set.
+   */
+  private static Instances data(String majority) {
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    attributes.add(new Attribute("Value"));
+    attributes.add(new Attribute("Class", Arrays.asList("A", "B")));
+    Instances data = new Instances("Data", attributes, 3);
+    data.setClassIndex(1);
+
+    String minority = majority.equals("A") ? "B" : "A";
+    for (String value : Arrays.asList(majority, majority, minority)) {
+      DenseInstance instance = new DenseInstance(2);
+      instance.setDataset(data);
+      instance.setValue(0, 1);
+      instance.setValue(1, value);
+      data.add(instance);
+    }
+    return data;
+  }
+
+}
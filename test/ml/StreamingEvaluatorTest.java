@@ -0,0 +1,72 @@
+package ml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.classifiers.Evaluation;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * @author Stuart Clark
+ */
+public class StreamingEvaluatorTest {
+
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void test() throws Exception {
+    Instances train = data(500, 1);
+    Instances test = data(1234, 2);
+    NaiveBayes classifier = new NaiveBayes();
+    classifier.buildClassifier(train);
+
+    // Should give the same results as evaluating the whole set on one thread
+    Evaluation expected = new Evaluation(train);
+    expected.evaluateModel(classifier, test);
+    StreamingEvaluator.Result result =
+        new StreamingEvaluator(classifier, 3, 100).evaluate(new Instances(test, 0), test);
+    Evaluation actual = result.getEvaluation();
+
+    assertEquals(test.size(), actual.numInstances(), DELTA);
+    assertEquals(expected.correct(), actual.correct(), DELTA);
+    for (int i = 0; i < test.numClasses(); i++) {
+      assertEquals(expected.precision(i), actual.precision(i), DELTA);
+      assertEquals(expected.recall(i), actual.recall(i), DELTA);
+      assertEquals(expected.areaUnderROC(i), actual.areaUnderROC(i), DELTA);
+    }
+    assertEquals(13, result.getLatency().count());
+  }
+
+  /**
+   * @return {@code size} instances where the feature is drawn from a different normal
+   *         distribution for each class.
+   */
+  private static Instances data(int size, long seed) {
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    attributes.add(new Attribute("Area"));
+    attributes.add(new Attribute("Class", Arrays.asList("NODULE", "NON_NODULE")));
+    Instances data = new Instances("Data", attributes, size);
+    data.setClassIndex(1);
+
+    Random random = new Random(seed);
+    for (int i = 0; i < size; i++) {
+      int c = random.nextInt(2);
+      Instance instance = new DenseInstance(2);
+      instance.setDataset(data);
+      instance.setValue(0, random.nextGaussian() + c);
+      instance.setValue(1, c);
+      data.add(instance);
+    }
+    return data;
+  }
+
+}
@@ -0,0 +1,123 @@
+package ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.LungsException;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * @author Stuart Clark
+ */
+public class TrainingHarnessTest {
+
+  private static final int NODULES = 10;
+  private static final int NON_NODULES = 30;
+  private static final int FOLDS = 5;
+
+  private File file;
+  private FeatureStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("store", ".features");
+
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    attributes.add(new Attribute("Area"));
+    attributes.add(new Attribute("Class", Arrays.asList("NODULE", "NON_NODULE")));
+    Instances structure = new Instances("Structure", attributes, 0);
+    structure.setClassIndex(1);
+
+    // Nodules are large and non nodules are small
+    List<Instance> rows = new ArrayList<>();
+    for (int i = 0; i < NODULES + NON_NODULES; i++) {
+      Instance instance = new DenseInstance(2);
+      instance.setDataset(structure);
+      instance.setValue(0, i < NODULES ? 100 : 1);
+      instance.setValue(1, i < NODULES ? "NODULE" : "NON_NODULE");
+      rows.add(instance);
+    }
+    try (FeatureStore.Writer writer = new FeatureStore.Writer(file, structure)) {
+      writer.write(rows);
+    }
+    store = FeatureStore.open(file);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void testFolds() throws Exception {
+    int[][] folds = new TrainingHarness(store, FOLDS, 1, 1).folds();
+    assertEquals(FOLDS, folds.length);
+
+    // Every row is in exactly one fold and the classes are spread evenly
+    Set<Integer> seen = new HashSet<>();
+    for (int[] fold : folds) {
+      int nodules = 0;
+      for (int row : fold) {
+        assertTrue(seen.add(row));
+        nodules += store.classIndex(row) == 0 ? 1 : 0;
+      }
+      assertEquals(NODULES / FOLDS, nodules);
+      assertEquals((NODULES + NON_NODULES) / FOLDS, fold.length);
+    }
+    assertEquals(store.numRows(), seen.size());
+  }
+
+  @Test
+  public void testRun() throws Exception {
+    TrainingHarness harness = new TrainingHarness(store, FOLDS, 2, 1);
+    List<TrainingHarness.Result> results =
+        harness.run(Arrays.asList("weka.classifiers.rules.ZeroR", "weka.classifiers.trees.J48"));
+    assertEquals(2, results.size());
+
+    // Every row is tested once
+    for (TrainingHarness.Result result : results) {
+      assertEquals(store.numRows(), result.getEvaluation().numInstances(), 0);
+      assertTrue(result.getModelSize() > 0);
+    }
+
+    // The tree should separate the classes perfectly
+    assertEquals("weka.classifiers.trees.J48", results.get(1).getSpec());
+    assertEquals(100, results.get(1).getAccuracy(), 1e-6);
+  }
+
+  @Test
+  public void testUpdateable() throws Exception {
+    // No memory for the training folds, so the batch learners are trained one at a time
+    TrainingHarness harness = new TrainingHarness(store, FOLDS, 3, 1, 0);
+    List<TrainingHarness.Result> results =
+        harness.run(Arrays.asList("weka.classifiers.bayes.NaiveBayesUpdateable",
+            "weka.classifiers.bayes.NaiveBayes", "weka.classifiers.trees.J48"));
+    assertEquals(3, results.size());
+
+    // The streamed classifier should be evaluated in the same way as the others
+    for (TrainingHarness.Result result : results) {
+      assertEquals(store.numRows(), result.getEvaluation().numInstances(), 0);
+      assertEquals(100, result.getAccuracy(), 1e-6);
+    }
+  }
+
+  @Test(expected = LungsException.class)
+  public void testBadSpec() throws Exception {
+    new TrainingHarness(store, FOLDS, 1, 1).run(Arrays.asList("not.a.Classifier"));
+  }
+
+}
@@ -0,0 +1,92 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mongodb.morphia.Datastore;
+
+import util.MongoHelper;
+import util.Testing;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class GroundTruthRepositoryTest {
+
+  private static final String SERIES = "series";
+  private static final String OTHER_SERIES = "other series";
+  private static final String SOP = "sop";
+
+  private Datastore ds;
+  private GroundTruth nodule;
+  private GroundTruth otherReading;
+
+  @Before
+  public void setUp() throws Exception {
+    Testing.drop();
+    ds = MongoHelper.getDataStore();
+
+    nodule = groundTruth(SERIES, SOP, GroundTruth.Type.BIG_NODULE, 0);
+    otherReading = groundTruth(SERIES, SOP, GroundTruth.Type.BIG_NODULE, 1);
+    groundTruth(SERIES, SOP, GroundTruth.Type.SMALL_NODULE, 0);
+    groundTruth(SERIES, "other sop", GroundTruth.Type.BIG_NODULE, 0);
+    groundTruth(OTHER_SERIES, "another sop", GroundTruth.Type.BIG_NODULE, 0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Testing.drop();
+  }
+
+  @Test
+  public void test() throws Exception {
+    GroundTruthRepository repository = new GroundTruthRepository(1);
+
+    assertEquals(3, repository.get(SERIES, SOP).size());
+    List<GroundTruth> nodules = repository.get(SERIES, SOP, GroundTruth.Type.BIG_NODULE, 0);
+    assertEquals(1, nodules.size());
+    assertEquals(nodule.getId(), nodules.get(0).getId());
+    assertEquals(otherReading.getId(),
+        repository.get(SERIES, SOP, GroundTruth.Type.BIG_NODULE, 1).get(0).getId());
+    assertTrue(repository.get(SERIES, "missing").isEmpty());
+
+    // Lookups for the same series should be served from memory
+    GroundTruth byId = repository.get(SERIES, nodule.getId());
+    assertSame(nodules.get(0), byId);
+    assertNull(repository.get(SERIES, new ObjectId()));
+
+    // Fetching another series should evict the first as the capacity is 1
+    assertEquals(1, repository.get(OTHER_SERIES, "another sop").size());
+    assertTrue(byId != repository.get(SERIES, nodule.getId()));
+  }
+
+  @Test
+  public void testRoi() throws Exception {
+    ROI roi = new ROI();
+    roi.setSeriesInstanceUID(SERIES);
+    roi.setGroundTruth(nodule);
+    assertEquals(nodule.getId(), roi.getGroundTruth().getId());
+  }
+
+  private GroundTruth groundTruth(String series, String sop, GroundTruth.Type type,
+      int readingNumber) {
+    GroundTruth gt = new GroundTruth();
+    gt.setSeriesInstanceUID(series);
+    gt.setImageSopUID(sop);
+    gt.setType(type);
+    gt.setReadingNumber(readingNumber);
+    ds.save(gt);
+    return gt;
+  }
+
+}
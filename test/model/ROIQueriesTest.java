@@ -0,0 +1,88 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mongodb.morphia.Datastore;
+import org.opencv.core.Point;
+
+import util.MongoHelper;
+import util.Testing;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class ROIQueriesTest {
+
+  private Datastore ds;
+
+  @Before
+  public void setUp() throws Exception {
+    Testing.drop();
+
+    ds = MongoHelper.getDataStore();
+
+    List<Point> points = Arrays.asList(new Point(0, 0), new Point(0, 1));
+    ROI roi = new ROI();
+    roi.setRegion(points);
+    roi.setContour(points);
+    roi.setArea(2);
+    roi.setMatchScore(0.5);
+    roi.setSet(ROI.Set.TRAIN);
+    roi.setClassification(ROI.Class.NODULE);
+    ds.save(roi);
+
+    // Not in a set so shouldn't be returned by features(..)
+    ROI other = new ROI();
+    other.setArea(3);
+    ds.save(other);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Testing.drop();
+  }
+
+  @Test
+  public void testFeatures() throws Exception {
+    List<ROI> rois = ROIQueries.features(ds).asList();
+    assertEquals(1, rois.size());
+
+    ROI roi = rois.get(0);
+    assertEquals(Integer.valueOf(2), roi.getArea());
+    assertEquals(ROI.Set.TRAIN, roi.getSet());
+    assertEquals(ROI.Class.NODULE, roi.getClassification());
+    assertTrue(roi.getRegion().isEmpty());
+    assertNull(roi.getContour());
+    assertNull(roi.getMatchScore());
+  }
+
+  @Test
+  public void testMatchScores() throws Exception {
+    List<ROI> rois = ROIQueries.matchScores(ds).asList();
+    assertEquals(1, rois.size());
+    assertEquals(Double.valueOf(0.5), rois.get(0).getMatchScore());
+    assertNull(rois.get(0).getArea());
+    assertTrue(rois.get(0).getRegion().isEmpty());
+  }
+
+  @Test
+  public void testAreas() throws Exception {
+    List<ROI> rois = ROIQueries.areas(ds).asList();
+    assertEquals(2, rois.size());
+    for (ROI roi : rois) {
+      assertTrue(roi.getArea() != null);
+      assertNull(roi.getSet());
+    }
+  }
+
+}
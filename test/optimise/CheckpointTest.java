@@ -0,0 +1,85 @@
+package optimise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jenetics.DoubleChromosome;
+import org.jenetics.DoubleGene;
+import org.jenetics.Genotype;
+import org.jenetics.Phenotype;
+import org.jenetics.Population;
+import org.junit.Test;
+
+/**
+ * @author Stuart Clark
+ */
+public class CheckpointTest {
+
+  @Test
+  public void test() throws Exception {
+    // Create an evaluated population
+    Population<DoubleGene, Double> population = new Population<>();
+    for (int i = 0; i < 10; i++) {
+      Genotype<DoubleGene> gt = Genotype.of(DoubleChromosome.of(0, 10));
+      population.add(Phenotype.of(gt, i, g -> g.getGene().doubleValue()));
+    }
+    population.forEach(Phenotype::getFitness);
+
+    // A fitness that is only in the cache
+    Map<Genotype<DoubleGene>, Double> cache = new HashMap<>();
+    Genotype<DoubleGene> cached = Genotype.of(DoubleChromosome.of(20, 30));
+    cache.put(cached, 25.0);
+
+    // Write and read back the checkpoint
+    File file = File.createTempFile("checkpoint", ".ckpt");
+    file.deleteOnExit();
+    new Checkpoint<>(population, 7, cache).write(file);
+    Checkpoint<DoubleGene, Double> checkpoint = Checkpoint.read(file);
+    assertEquals(7, checkpoint.getGeneration());
+
+    // The fitnesses should be available without re-evaluating the population
+    Map<Genotype<DoubleGene>, Double> fitnesses = checkpoint.getFitnesses();
+    assertEquals(population.size() + 1, fitnesses.size());
+    assertEquals(25.0, fitnesses.get(cached), 0.0);
+
+    Population<DoubleGene, Double> loaded = checkpoint.getPopulation(fitnesses::get);
+    assertEquals(population.size(), loaded.size());
+    for (int i = 0; i < population.size(); i++) {
+      Phenotype<DoubleGene, Double> expected = population.get(i);
+      Phenotype<DoubleGene, Double> actual = loaded.get(i);
+      assertEquals(expected.getGenotype(), actual.getGenotype());
+      assertEquals(expected.getGeneration(), actual.getGeneration());
+      assertEquals(expected.getFitness(), actual.getFitness());
+    }
+  }
+
+  @Test
+  public void testPartial() throws Exception {
+    Population<DoubleGene, Double> population = new Population<>();
+    for (int i = 0; i < 2; i++) {
+      Genotype<DoubleGene> gt = Genotype.of(DoubleChromosome.of(0, 10));
+      population.add(Phenotype.of(gt, i, g -> g.getGene().doubleValue()));
+    }
+    population.forEach(Phenotype::getFitness);
+    Genotype<DoubleGene> partial = population.get(0).getGenotype();
+
+    File file = File.createTempFile("checkpoint", ".ckpt");
+    file.deleteOnExit();
+    new Checkpoint<>(population, 1, new HashMap<>(), Collections.singleton(partial), "optimiser")
+        .write(file);
+    Checkpoint<DoubleGene, Double> checkpoint = Checkpoint.read(file);
+    assertEquals("optimiser", checkpoint.getOptimiser());
+
+    // The partial fitness should not be stored but the genotype should
+    Map<Genotype<DoubleGene>, Double> fitnesses = checkpoint.getFitnesses();
+    assertEquals(1, fitnesses.size());
+    assertFalse(fitnesses.containsKey(partial));
+    assertEquals(partial, checkpoint.getPopulation(g -> 0.0).get(0).getGenotype());
+  }
+
+}
@@ -0,0 +1,52 @@
+package optimise;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenetics.DoubleChromosome;
+import org.jenetics.DoubleGene;
+import org.jenetics.Genotype;
+import org.junit.Test;
+
+/**
+ * @author Stuart Clark
+ */
+public class FitnessCacheTest {
+
+  @Test
+  public void test() throws Exception {
+    FitnessCache<DoubleGene, Double> cache = new FitnessCache<>(1);
+    AtomicInteger evaluations = new AtomicInteger();
+
+    Genotype<DoubleGene> gt1 = Genotype.of(DoubleChromosome.of(0, 10));
+    Genotype<DoubleGene> gt2 = Genotype.of(DoubleChromosome.of(20, 30));
+
+    // The first call should evaluate, the second should be served from the cache
+    Double fitness = cache.get(gt1, gt -> (double) evaluations.incrementAndGet());
+    assertEquals(fitness, cache.get(gt1, gt -> (double) evaluations.incrementAndGet()));
+    assertEquals(1, evaluations.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // Adding a second genotype should evict the first as the capacity is 1
+    cache.get(gt2, gt -> (double) evaluations.incrementAndGet());
+    cache.get(gt1, gt -> (double) evaluations.incrementAndGet());
+    assertEquals(3, evaluations.get());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testNotCacheable() throws Exception {
+    FitnessCache<DoubleGene, Double> cache = new FitnessCache<>(10);
+    AtomicInteger evaluations = new AtomicInteger();
+    Genotype<DoubleGene> gt1 = Genotype.of(DoubleChromosome.of(0, 10));
+
+    // Fitnesses that are not cacheable should be evaluated every time
+    cache.get(gt1, gt -> (double) evaluations.incrementAndGet(), fitness -> false);
+    cache.get(gt1, gt -> (double) evaluations.incrementAndGet(), fitness -> false);
+    assertEquals(2, evaluations.get());
+    assertEquals(0, cache.size());
+  }
+
+}
@@ -0,0 +1,70 @@
+package optimise;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.jenetics.DoubleChromosome;
+import org.jenetics.DoubleGene;
+import org.jenetics.Genotype;
+import org.jenetics.util.Factory;
+
+import config.Mode;
+import util.ConfigHelper;
+
+/**
+ * A cheap {@link Optimiser} used to test the distribution of fitness evaluation. The fitness is the
+ * negated sum of the squares of the genes.
+ *
+ * @author Stuart Clark
+ */
+public class SphereOpt extends Optimiser<DoubleGene, Double> {
+
+  static final int POPULATION = 10;
+  static final long HEARTBEAT_INTERVAL = 200;
+
+  public SphereOpt(Executor executor) {
+    super(POPULATION, 1, executor);
+  }
+
+  @Override
+  protected String name() {
+    return "Sphere Optimiser";
+  }
+
+  @Override
+  protected String populationFile() {
+    return "sphere-opt-population.ckpt";
+  }
+
+  @Override
+  protected Factory<Genotype<DoubleGene>> factory() {
+    return Genotype.of(DoubleChromosome.of(-10, 10), DoubleChromosome.of(-10, 10));
+  }
+
+  @Override
+  protected Double eval(Genotype<DoubleGene> gt) {
+    double sum = 0;
+    for (int i = 0; i < gt.length(); i++) {
+      double value = gt.getChromosome(i).getGene().doubleValue();
+      sum += value * value;
+    }
+    return -sum;
+  }
+
+  @Override
+  protected String gtToString(Genotype<DoubleGene> gt) {
+    return gt.toString();
+  }
+
+  /**
+   * Run a {@link Worker} for a {@link SphereOpt}.
+   *
+   * @param args args[0] the name of the database to use.
+   */
+  public static void main(String[] args) {
+    ConfigHelper.getProps().put("db", args[0]);
+    ConfigHelper.getProps().put(Mode.KEY, Mode.Value.TEST.name());
+    new Worker<>(new SphereOpt(Executors.newSingleThreadExecutor()), HEARTBEAT_INTERVAL).run();
+  }
+
+}
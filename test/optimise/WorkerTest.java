@@ -0,0 +1,120 @@
+package optimise;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jenetics.DoubleGene;
+import org.jenetics.Genotype;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mongodb.morphia.Datastore;
+
+import model.FitnessJob;
+import util.ConfigHelper;
+import util.MongoHelper;
+import util.Testing;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class WorkerTest {
+
+  private static final int NUM_WORKERS = 3;
+  private static final int NUM_GENOTYPES = 30;
+  private static final long HEARTBEAT_TIMEOUT = 2000;
+  private static final int MAX_ATTEMPTS = 2;
+
+  private Datastore ds;
+  private List<Process> workers;
+  private ExecutorService es;
+
+  @Before
+  public void setUp() throws Exception {
+    Testing.drop();
+    ds = MongoHelper.getDataStore();
+    workers = new ArrayList<>();
+    es = Executors.newFixedThreadPool(NUM_GENOTYPES);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    workers.forEach(Process::destroyForcibly);
+    es.shutdownNow();
+    Testing.drop();
+  }
+
+  @Test
+  public void testMatchesSingleProcess() throws Exception {
+    SphereOpt optimiser = new SphereOpt(es);
+
+    // Start the worker processes
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    for (int i = 0; i < NUM_WORKERS; i++) {
+      ProcessBuilder builder =
+          new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+              SphereOpt.class.getName(), (String) ConfigHelper.getProps().get("db"));
+      workers.add(builder.inheritIO().start());
+    }
+
+    try (JobQueue<DoubleGene, Double> queue =
+        new JobQueue<>(optimiser.name(), HEARTBEAT_TIMEOUT, MAX_ATTEMPTS)) {
+
+      // Evaluate the genotypes using the workers
+      List<Genotype<DoubleGene>> gts = new ArrayList<>();
+      List<Future<Double>> futures = new ArrayList<>();
+      for (int i = 0; i < NUM_GENOTYPES; i++) {
+        Genotype<DoubleGene> gt = optimiser.factory().newInstance();
+        gts.add(gt);
+        futures.add(es.submit(() -> queue.evaluate(gt)));
+      }
+
+      // Check the fitnesses match those evaluated in this process
+      for (int i = 0; i < NUM_GENOTYPES; i++) {
+        assertEquals(optimiser.eval(gts.get(i)), futures.get(i).get());
+      }
+    }
+
+    // All of the jobs should have been removed
+    assertEquals(0, ds.createQuery(FitnessJob.class).count());
+  }
+
+  @Test
+  public void testReap() throws Exception {
+    SphereOpt optimiser = new SphereOpt(es);
+
+    try (JobQueue<DoubleGene, Double> queue =
+        new JobQueue<>(optimiser.name(), HEARTBEAT_TIMEOUT, MAX_ATTEMPTS)) {
+
+      // A job whose worker has died
+      FitnessJob retry = deadJob(optimiser, 1);
+
+      // A job whose worker has died too many times
+      FitnessJob fail = deadJob(optimiser, MAX_ATTEMPTS);
+
+      queue.reap();
+
+      assertEquals(FitnessJob.Status.PENDING, ds.get(retry).getStatus());
+      assertEquals(FitnessJob.Status.FAILED, ds.get(fail).getStatus());
+    }
+  }
+
+  private FitnessJob deadJob(SphereOpt optimiser, int attempts) {
+    FitnessJob job = new FitnessJob(optimiser.name(), new byte[0]);
+    job.setStatus(FitnessJob.Status.RUNNING);
+    job.setWorker("dead");
+    job.setHeartbeat(0);
+    job.setAttempts(attempts);
+    ds.save(job);
+    return job;
+  }
+
+}
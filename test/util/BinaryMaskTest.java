@@ -0,0 +1,54 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class BinaryMaskTest {
+
+  @Test
+  public void test() throws Exception {
+    Mat mat = Mat.zeros(4, 5, CvType.CV_8UC1);
+    mat.put(1, 2, 255);
+    mat.put(3, 4, 1);
+    BinaryMask mask = new BinaryMask(mat);
+
+    assertEquals(4, mask.rows());
+    assertEquals(5, mask.cols());
+
+    // Points use x for the column and y for the row
+    assertTrue(mask.contains(new Point(2, 1)));
+    assertTrue(mask.contains(new Point(4, 3)));
+    assertFalse(mask.contains(new Point(1, 2)));
+    assertFalse(mask.contains(new Point(2.5, 1)));
+    assertFalse(mask.contains(new Point(-1, 0)));
+    assertFalse(mask.contains(new Point(5, 3)));
+
+    assertTrue(mask.containsAll(Arrays.asList(new Point(2, 1), new Point(4, 3))));
+    assertFalse(mask.containsAll(Arrays.asList(new Point(2, 1), new Point(0, 0))));
+  }
+
+  @Test
+  public void testSubmat() throws Exception {
+    // Submats are not continuous
+    Mat mat = Mat.zeros(4, 5, CvType.CV_8UC1);
+    mat.put(2, 3, 255);
+    BinaryMask mask = new BinaryMask(mat.submat(1, 4, 1, 5));
+
+    assertTrue(mask.contains(1, 2));
+    assertFalse(mask.contains(2, 3));
+  }
+
+}
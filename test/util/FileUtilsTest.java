@@ -0,0 +1,74 @@
+package util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Stuart Clark
+ */
+public class FileUtilsTest {
+
+  private Path dir;
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("fileutils");
+    file = dir.resolve("file.txt");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File child : dir.toFile().listFiles()) {
+      child.delete();
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testWriteAtomically() throws Exception {
+    FileUtils.writeAtomically(file, tmp -> Files.write(tmp, bytes("first")));
+    assertArrayEquals(bytes("first"), Files.readAllBytes(file));
+
+    FileUtils.writeAtomically(file, tmp -> Files.write(tmp, bytes("second")));
+    assertArrayEquals(bytes("second"), Files.readAllBytes(file));
+
+    // Only the file itself should be left behind
+    assertEquals(1, dir.toFile().listFiles().length);
+  }
+
+  @Test
+  public void testFailedWrite() throws Exception {
+    FileUtils.writeAtomically(file, tmp -> Files.write(tmp, bytes("first")));
+
+    try {
+      FileUtils.writeAtomically(file, tmp -> {
+        Files.write(tmp, bytes("partial"));
+        throw new IOException("Failed");
+      });
+      fail("The write should have failed");
+    } catch (IOException e) {
+      assertEquals("Failed", e.getMessage());
+    }
+
+    // The file should be unchanged and the temporary file removed
+    assertArrayEquals(bytes("first"), Files.readAllBytes(file));
+    assertEquals(1, dir.toFile().listFiles().length);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+
+}
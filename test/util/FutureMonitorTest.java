@@ -0,0 +1,107 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Stuart Clark
+ */
+public class FutureMonitorTest {
+
+  private ExecutorService es;
+
+  @Before
+  public void setUp() throws Exception {
+    es = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    es.shutdownNow();
+  }
+
+  @Test
+  public void testMonitor() throws Exception {
+    FutureMonitor monitor = new FutureMonitor(es, 10);
+    AtomicInteger ran = new AtomicInteger();
+    int numTasks = 1000;
+    for (int i = 0; i < numTasks; i++) {
+      int task = i;
+      monitor.submit(() -> {
+        if (task % 100 == 0) {
+          throw new IllegalStateException("Failed " + task);
+        }
+        ran.incrementAndGet();
+      });
+    }
+    monitor.monitor();
+
+    assertEquals(numTasks, monitor.getSubmitted());
+    assertEquals(numTasks, monitor.getFinished());
+    assertEquals(10, monitor.getFailed());
+    assertEquals(0, monitor.getCancelled());
+    assertEquals(numTasks - 10, ran.get());
+  }
+
+  @Test
+  public void testNoTasks() throws Exception {
+    FutureMonitor monitor = new FutureMonitor(es);
+    monitor.monitor();
+    assertEquals(0, monitor.getFinished());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    FutureMonitor monitor = new FutureMonitor(es, 10);
+    CountDownLatch blocked = new CountDownLatch(1);
+    Future<Integer> future = monitor.submit(() -> {
+      blocked.await();
+      return 1;
+    });
+    monitor.cancel();
+    monitor.monitor();
+
+    assertTrue(future.isCancelled());
+    assertEquals(1, monitor.getFinished());
+    assertEquals(1, monitor.getCancelled());
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    // Runs the first task and rejects the rest
+    AtomicInteger executed = new AtomicInteger();
+    FutureMonitor monitor = new FutureMonitor(task -> {
+      if (executed.getAndIncrement() > 0) {
+        throw new RejectedExecutionException("Full");
+      }
+      task.run();
+    }, 10);
+
+    assertEquals(1, (int) monitor.submit(() -> 1).get());
+    try {
+      monitor.submit(() -> 2);
+      fail("The task should have been rejected");
+    } catch (RejectedExecutionException e) {
+      assertEquals("Full", e.getMessage());
+    }
+
+    // The rejected task should not be waited for
+    monitor.monitor();
+    assertEquals(1, monitor.getSubmitted());
+    assertEquals(1, monitor.getFinished());
+    assertEquals(0, monitor.getFailed());
+  }
+
+}
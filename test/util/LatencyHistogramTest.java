@@ -0,0 +1,83 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * @author Stuart Clark
+ */
+public class LatencyHistogramTest {
+
+  private static final double ERROR = 0.125;
+
+  @Test
+  public void testBuckets() throws Exception {
+    // Every value should be between the bounds of its bucket and the buckets should be contiguous
+    long previous = -1;
+    for (long value = 0; value < 100000; value++) {
+      int index = LatencyHistogram.index(value);
+      assertTrue(LatencyHistogram.lowerBound(index) <= value);
+      assertTrue(LatencyHistogram.upperBound(index) >= value);
+      assertTrue(index == previous || index == previous + 1);
+      previous = index;
+    }
+    assertEquals(Long.MAX_VALUE,
+        LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentile(50));
+
+    for (long value = 1; value <= 1000; value++) {
+      histogram.record(value * 1000);
+    }
+
+    assertEquals(1000, histogram.count());
+    assertEquals(500500, histogram.mean(), 0.001);
+    assertEquals(1000000, histogram.max());
+    assertWithin(500000, histogram.percentile(50));
+    assertWithin(900000, histogram.percentile(90));
+    assertWithin(990000, histogram.percentile(99));
+    assertEquals(1000000, histogram.percentile(100));
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    final int threads = 4;
+    final int records = 10000;
+
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      futures.add(es.submit(() -> {
+        for (int j = 0; j < records; j++) {
+          histogram.record(j);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    es.shutdown();
+
+    assertEquals(threads * records, histogram.count());
+    assertEquals(records - 1, histogram.max());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(actual + " should be at least " + expected, actual >= expected);
+    assertTrue(actual + " should be close to " + expected, actual <= expected * (1 + ERROR));
+  }
+
+}
@@ -1,8 +1,14 @@
 package util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
 
@@ -26,4 +32,21 @@ public class MatViewerTest {
     new MatViewer(mats).display();
   }
 
+  @Test
+  public void testLazy() throws Exception {
+    AtomicInteger rendered = new AtomicInteger();
+    ImageSource source = ImageSource.of(300, i -> {
+      rendered.incrementAndGet();
+      return Mat.zeros(8, 8, CvType.CV_8UC1);
+    });
+
+    // Nothing should be rendered until it is displayed
+    MatViewer viewer = new MatViewer(source, source);
+    assertEquals(0, rendered.get());
+
+    // Images should be rendered once and then served from memory, looping round at either end
+    assertSame(viewer.image(-1), viewer.image(299));
+    assertEquals(1, rendered.get());
+  }
+
 }
@@ -0,0 +1,63 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.SortedMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Stuart Clark
+ */
+public class MetricsTest {
+
+  private static final double DELTA = 1e-9;
+
+  @After
+  public void tearDown() throws Exception {
+    Metrics.clear();
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Metrics.counter("test.counter").add(3);
+    Metrics.counter("test.counter").increment();
+
+    Metrics.Timer timer = Metrics.timer("test.timer");
+    timer.getLatency().record(1000000);
+    timer.getLatency().record(3000000);
+
+    Metrics.gauge("test.gauge", () -> 7);
+
+    SortedMap<String, Double> snapshot = Metrics.snapshot();
+    assertEquals(4, snapshot.get("test.counter.count"), DELTA);
+    assertTrue(snapshot.get("test.counter.rate") > 0);
+    assertEquals(2, snapshot.get("test.timer.count"), DELTA);
+    assertEquals(2, snapshot.get("test.timer.meanMs"), DELTA);
+    assertEquals(3, snapshot.get("test.timer.maxMs"), DELTA);
+    assertTrue(snapshot.get("test.timer.p50Ms") >= 1);
+    assertEquals(7, snapshot.get("test.gauge.value"), DELTA);
+
+    Metrics.removeGauge("test.gauge");
+    assertEquals(null, Metrics.snapshot().get("test.gauge.value"));
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    Metrics.counter("test.counter").increment();
+    File file = File.createTempFile("metrics", ".txt");
+    try {
+      Metrics.write(file.toPath());
+      String report = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+      assertTrue(report.contains("test.counter.count = 1.000"));
+    } finally {
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mongodb.morphia.Datastore;
+
+import config.Database;
+import model.CTStack;
+
+/**
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class MongoHelperTest {
+
+  private Datastore ds;
+
+  @Before
+  public void setUp() throws Exception {
+    ds = MongoHelper.getDataStore();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    ds.getCollection(CTStack.class).drop();
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    int numStacks = 100;
+    for (int i = 0; i < numStacks; i++) {
+      CTStack stack = new CTStack();
+      stack.setSeriesInstanceUID(Integer.toString(i));
+      MongoHelper.runAsync(() -> ds.save(stack, MongoHelper.bulkInsertOptions()));
+    }
+    MongoHelper.awaitAsync();
+    assertEquals(numStacks, ds.createQuery(CTStack.class).count());
+
+    CompletableFuture<Long> count =
+        MongoHelper.supplyAsync(() -> ds.createQuery(CTStack.class).count());
+    assertEquals(numStacks, (long) count.get());
+  }
+
+  @Test
+  public void testAsyncFailure() throws Exception {
+    CompletableFuture<Void> future = MongoHelper.runAsync(() -> {
+      throw new IllegalStateException("Failed");
+    });
+    try {
+      MongoHelper.awaitAsync();
+      fail("The failure should have been reported");
+    } catch (IllegalStateException e) {
+      assertEquals("1 asynchronous database operations failed", e.getMessage());
+    }
+    try {
+      future.get();
+      fail("Future should have failed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    // The failure is only reported once
+    MongoHelper.awaitAsync();
+  }
+
+  @Test
+  public void testFindOptions() throws Exception {
+    assertEquals(ConfigHelper.getInt(Database.BATCH_SIZE),
+        MongoHelper.findOptions().getBatchSize());
+  }
+
+}
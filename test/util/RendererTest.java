@@ -0,0 +1,95 @@
+package util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import ij.plugin.DICOM;
+
+/**
+ * Checks that {@link Renderer#toBGR(Mat)} and {@link Renderer#paint(Mat, List, double[])} produce
+ * exactly the same pixels as the per pixel loops they replaced, including for points that fall
+ * outside of the {@link Mat}.
+ *
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class RendererTest {
+
+  private Mat grey;
+  private List<Point> points;
+
+  @Before
+  public void setUp() throws Exception {
+    DICOM dicom = new DICOM();
+    dicom.open("testres/test.dcm");
+    grey = MatUtils.fromDICOM(dicom);
+
+    // A filled square and a diagonal line, plus points outside of the Mat
+    points = new ArrayList<>();
+    for (int x = 100; x < 200; x++) {
+      for (int y = 150; y < 250; y++) {
+        points.add(new Point(x, y));
+      }
+      points.add(new Point(x + 200, x + 100));
+    }
+    points.add(new Point(-1, 5));
+    points.add(new Point(5, grey.rows()));
+  }
+
+  @Test
+  public void testToBGR() throws Exception {
+    assertArrayEquals(pixels(loopToBGR(grey)), pixels(Renderer.toBGR(grey)));
+  }
+
+  @Test
+  public void testPaint() throws Exception {
+    Mat expected = Renderer.toBGR(grey);
+    loopPaint(expected, points, ColourBGR.GREEN);
+
+    Mat actual = Renderer.toBGR(grey);
+    Renderer.paint(actual, points, ColourBGR.GREEN);
+
+    assertArrayEquals(pixels(expected), pixels(actual));
+  }
+
+  /**
+   * The per pixel implementation of {@link MatUtils#grey2BGR(Mat)} that {@link Renderer} replaced.
+   */
+  private static Mat loopToBGR(Mat mat) {
+    Mat bgr = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC3);
+    for (int i = 0; i < mat.rows(); i++) {
+      for (int j = 0; j < mat.cols(); j++) {
+        double val = mat.get(i, j)[0];
+        bgr.put(i, j, val, val, val);
+      }
+    }
+    return bgr;
+  }
+
+  /**
+   * The per pixel painting that {@link Renderer#paint(Mat, List, double[])} replaced.
+   */
+  private static void loopPaint(Mat bgr, List<Point> points, double[] colour) {
+    for (Point point : points) {
+      if (point.x >= 0 && point.x < bgr.cols() && point.y >= 0 && point.y < bgr.rows()) {
+        MatUtils.put(bgr, point, colour);
+      }
+    }
+  }
+
+  private static byte[] pixels(Mat mat) {
+    byte[] pixels = new byte[(int) (mat.total() * mat.channels())];
+    mat.get(0, 0, pixels);
+    return pixels;
+  }
+
+}
@@ -0,0 +1,135 @@
+package vision;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.opencv.imgproc.Imgproc.THRESH_BINARY;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.plugin.DICOM;
+import util.MatUtils;
+import util.Testing;
+
+/**
+ * Checks {@link ROIExtractor#markers(Mat, Mat)} against the per pixel implementation it replaced
+ * and benchmarks the two. The benchmark only logs its timings so is ignored, run it by hand with
+ * the same VM args as {@link core.Lungs}.
+ *
+ * @author Stuart Clark
+ */
+@RunWith(Testing.class)
+public class WatershedMarkersTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WatershedMarkersTest.class);
+
+  private static final int FOREGROUND = 255;
+  private static final int SURE_FG = 104;
+  private static final int SURE_BG = 91;
+  private static final int REPEATS = 20;
+
+  private Mat original;
+  private Mat labels;
+  private Mat unknown;
+
+  @Before
+  public void setUp() throws Exception {
+    DICOM dicom = new DICOM();
+    dicom.open("testres/test.dcm");
+    original = MatUtils.fromDICOM(dicom);
+
+    Mat foreground = MatUtils.similarMat(original, false);
+    Imgproc.threshold(original, foreground, SURE_FG, FOREGROUND, THRESH_BINARY);
+    Mat background = MatUtils.similarMat(original, false);
+    Imgproc.threshold(original, background, SURE_BG, FOREGROUND, THRESH_BINARY);
+    unknown = MatUtils.similarMat(original, false);
+    Core.subtract(background, foreground, unknown);
+
+    labels = new Mat(original.rows(), original.cols(), CvType.CV_32S);
+    Imgproc.connectedComponents(foreground, labels);
+  }
+
+  @Test
+  public void test() throws Exception {
+    Mat expected = labels.clone();
+    loopMarkers(expected, unknown);
+
+    Mat actual = labels.clone();
+    ROIExtractor.markers(actual, unknown);
+
+    assertArrayEquals(pixels(expected), pixels(actual));
+  }
+
+  @Test
+  @Ignore
+  public void benchmark() throws Exception {
+    ROIExtractor extractor = new ROIExtractor(SURE_FG, SURE_BG);
+    Mat bgr = new Mat();
+
+    // Warm up so that the first run is not measured
+    loopMarkers(labels.clone(), unknown);
+    ROIExtractor.markers(labels.clone(), unknown);
+    extractor.extractROIs(original);
+
+    long loop = 0;
+    long matrix = 0;
+    long extract = 0;
+    for (int i = 0; i < REPEATS; i++) {
+      Mat copy = labels.clone();
+      long start = System.nanoTime();
+      loopMarkers(copy, unknown);
+      Imgproc.cvtColor(original, bgr, Imgproc.COLOR_GRAY2BGR);
+      loop += System.nanoTime() - start;
+
+      copy = labels.clone();
+      start = System.nanoTime();
+      ROIExtractor.markers(copy, unknown);
+      Imgproc.cvtColor(original, bgr, Imgproc.COLOR_GRAY2BGR);
+      matrix += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      extractor.extractROIs(original);
+      extract += System.nanoTime() - start;
+    }
+
+    LOGGER.info(String.format("Watershed preparation per slice: per pixel %.3fms, whole matrix "
+        + "%.3fms, whole of extractROIs %.3fms", millis(loop), millis(matrix), millis(extract)));
+  }
+
+  /**
+   * The per pixel implementation that {@link ROIExtractor#markers(Mat, Mat)} replaced.
+   */
+  private static void loopMarkers(Mat labels, Mat unknownMat) {
+    for (int row = 0; row < labels.rows(); row++) {
+      for (int col = 0; col < labels.cols(); col++) {
+        labels.put(row, col, labels.get(row, col)[0] + 1);
+      }
+    }
+
+    for (int row = 0; row < labels.rows(); row++) {
+      for (int col = 0; col < labels.cols(); col++) {
+        if (unknownMat.get(row, col)[0] == FOREGROUND) {
+          labels.put(row, col, 0);
+        }
+      }
+    }
+  }
+
+  private static double millis(long total) {
+    return total / 1e6 / REPEATS;
+  }
+
+  private static int[] pixels(Mat labels) {
+    int[] pixels = new int[(int) labels.total()];
+    labels.get(0, 0, pixels);
+    return pixels;
+  }
+
+}